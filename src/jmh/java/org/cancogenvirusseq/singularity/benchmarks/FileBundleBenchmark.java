@@ -0,0 +1,101 @@
+package org.cancogenvirusseq.singularity.benchmarks;
+
+import static org.cancogenvirusseq.singularity.components.utils.FileBundleUtils.createFileBundleFromPairsWithArchive;
+import static org.cancogenvirusseq.singularity.components.utils.FileBundleUtils.deleteFileBundleForArchive;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentMolecularDataPair;
+import org.cancogenvirusseq.singularity.components.utils.ParallelGzipOutputStream;
+import org.cancogenvirusseq.singularity.repository.model.Archive;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveStatus;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import reactor.core.publisher.Flux;
+
+/** End to end tar.gz file bundle throughput (genomes per second) by compression worker count */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FileBundleBenchmark {
+  private static final int GENOMES = 2000;
+  private static final int COMPRESSION_LEVEL = 6;
+  private static final int COMPRESSION_BLOCK_SIZE = 1024 * 1024;
+
+  // 0 compresses on the calling thread
+  @Param({"0", "4"})
+  public int compressionWorkers;
+
+  private List<AnalysisDocumentMolecularDataPair> pairs;
+  private ExecutorService executorService;
+  private Archive archive;
+
+  @Setup
+  public void setup() {
+    pairs =
+        IntStream.range(0, GENOMES)
+            .mapToObj(SyntheticAnalysisDocuments::pair)
+            .collect(Collectors.toList());
+    executorService =
+        compressionWorkers == 0
+            ? MoreExecutors.newDirectExecutorService()
+            : Executors.newFixedThreadPool(compressionWorkers);
+  }
+
+  @Setup(Level.Invocation)
+  public void createArchive() {
+    archive =
+        Archive.builder()
+            .id(UUID.randomUUID())
+            .status(ArchiveStatus.BUILDING)
+            .type(ArchiveType.ALL)
+            .hashInfo("benchmark")
+            .numOfSamples((long) GENOMES)
+            .build();
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteArchive() {
+    deleteFileBundleForArchive.accept(archive);
+  }
+
+  @TearDown
+  public void teardown() {
+    executorService.shutdownNow();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(GENOMES)
+  public Path fileBundle() {
+    return Flux.fromIterable(pairs)
+        .transform(
+            createFileBundleFromPairsWithArchive(
+                archive,
+                outputStream ->
+                    new ParallelGzipOutputStream(
+                        outputStream,
+                        COMPRESSION_LEVEL,
+                        COMPRESSION_BLOCK_SIZE,
+                        executorService,
+                        Math.max(1, compressionWorkers) * 2),
+                archiveBytesWritten -> {}))
+        .blockLast();
+  }
+}
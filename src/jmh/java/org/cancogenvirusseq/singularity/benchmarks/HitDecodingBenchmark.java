@@ -0,0 +1,57 @@
+package org.cancogenvirusseq.singularity.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocument;
+import org.cancogenvirusseq.singularity.components.utils.AnalysisDocumentRowDecoder;
+import org.elasticsearch.search.SearchHit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** ElasticSearchScroll hit decoding, JsonNode documents against streamed rows */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HitDecodingBenchmark {
+  private static final int HITS = 1000;
+
+  private List<SearchHit> searchHits;
+
+  @Setup
+  public void setup() {
+    searchHits =
+        IntStream.range(0, HITS)
+            .mapToObj(SyntheticAnalysisDocuments::searchHit)
+            .collect(Collectors.toList());
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(HITS)
+  public void analysisDocuments(Blackhole blackhole) throws IOException {
+    for (SearchHit searchHit : searchHits) {
+      blackhole.consume(
+          SyntheticAnalysisDocuments.objectMapper.readValue(
+              searchHit.getSourceAsString(), AnalysisDocument.class));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(HITS)
+  public void analysisDocumentRows(Blackhole blackhole) throws IOException {
+    for (SearchHit searchHit : searchHits) {
+      blackhole.consume(
+          AnalysisDocumentRowDecoder.decodeSource(
+              SyntheticAnalysisDocuments.objectMapper.getFactory(), searchHit.getSourceRef()));
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package org.cancogenvirusseq.singularity.benchmarks;
+
+import static java.lang.String.format;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import lombok.SneakyThrows;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocument;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentMolecularDataPair;
+import org.cancogenvirusseq.singularity.components.utils.AnalysisDocumentRowDecoder;
+import org.cancogenvirusseq.singularity.components.utils.TsvUtils;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.search.SearchHit;
+
+/** Synthetic file_centric documents and genomes shaped like a production release */
+public class SyntheticAnalysisDocuments {
+  public static final ObjectMapper objectMapper = new ObjectMapper();
+
+  // SARS-CoV-2 genomes are ~30kb
+  private static final int GENOME_LENGTH = 29_903;
+  private static final int FASTA_LINE_LENGTH = 60;
+  private static final String BASES = "ACGTN";
+
+  private static final String[] LINEAGES = {"B.1.1.7", "AY.4", "BA.1.1", "BA.2", "B.1.617.2"};
+  private static final String[] PROVINCES = {"Ontario", "Québec", "British Columbia", "Nunavut"};
+
+  static {
+    new TsvUtils().setListSeparator(";");
+  }
+
+  public static String documentJson(int index) {
+    return format(
+        "{\"object_id\":\"0a1b2c3d-0000-4000-8000-%012d\",\"study_id\":\"STUDY-%d\","
+            + "\"analysis\":{\"firstPublishedAt\":%d,\"updatedAt\":\"2022-03-%02dT12:00:00.000Z\","
+            + "\"experiment\":{\"purpose_of_sequencing\":\"Baseline surveillance (random sampling)\","
+            + "\"purpose_of_sequencing_details\":null,\"sequencing_instrument\":[\"Illumina MiSeq\"],"
+            + "\"sequencing_protocol\":\"ARTIC v4\"},"
+            + "\"database_identifiers\":{\"gisaid_accession\":\"EPI_ISL_%d\"},"
+            + "\"host\":{\"host_age\":%d,\"host_age_null_reason\":null,\"host_gender\":\"Female\","
+            + "\"host_age_bin\":\"30 - 39\",\"host_disease\":\"COVID-19\",\"host_age_unit\":\"year\","
+            + "\"host_scientific_name\":\"Homo sapiens\"},"
+            + "\"lineage_analysis\":{\"lineage_name\":\"%s\",\"lineage_analysis_software_name\":\"pangolin\","
+            + "\"lineage_analysis_software_version\":\"3.1.20\","
+            + "\"lineage_analysis_software_data_version\":\"PUSHER-v1.2.133\","
+            + "\"scorpio_call\":\"Omicron (BA.1-like)\",\"scorpio_version\":\"0.3.16\"},"
+            + "\"pathogen_diagnostic_testing\":{\"gene_name\":[\"E gene (E)\",\"RdRp gene (RdRp)\"],"
+            + "\"diagnostic_pcr_ct_value\":%d.5,\"diagnostic_pcr_ct_value_null_reason\":null},"
+            + "\"sample_collection\":{\"isolate\":\"hCoV-19/Canada/ON-%d/2022\","
+            + "\"fasta_header_name\":\"ON-%d\",\"organism\":\"Severe acute respiratory syndrome coronavirus 2\","
+            + "\"body_product\":null,\"anatomical_part\":\"Nasopharynx (NP)\",\"geo_loc_country\":\"Canada\","
+            + "\"geo_loc_province\":\"%s\",\"collection_device\":\"Swab\",\"collection_method\":\"Swabbing\","
+            + "\"environmental_site\":null,\"anatomical_material\":\"Upper respiratory tract\","
+            + "\"purpose_of_sampling\":\"Diagnostic testing\",\"sample_collected_by\":\"Public Health Ontario\","
+            + "\"sequence_submitted_by\":\"Public Health Ontario\",\"environmental_material\":null,"
+            + "\"sample_collection_date\":\"2022-02-%02d\",\"purpose_of_sampling_details\":\"\","
+            + "\"sample_collection_date_null_reason\":null},"
+            + "\"sequence_analysis\":{\"consensus_sequence_software_name\":\"ncov-tools\","
+            + "\"consensus_sequence_software_version\":\"1.8.0\",\"dehosting_method\":\"NCBI:SRA human scrubber\","
+            + "\"metrics\":{\"depth_of_coverage\":%d,\"breadth_of_coverage\":0.98%d},"
+            + "\"reference_genome_accession\":\"MN908947.3\","
+            + "\"raw_sequence_data_processing_method\":\"Porechop 0.2.4\","
+            + "\"bioinformatics_protocol\":\"https://github.com/connor-lab/ncov2019-artic-nf\"},"
+            + "\"samples\":[{\"donor\":{\"submitterDonorId\":\"donor-%d\"}}]}}",
+        index,
+        index % 12,
+        1646092800000L + index,
+        index % 28 + 1,
+        100_000 + index,
+        index % 90,
+        LINEAGES[index % LINEAGES.length],
+        15 + index % 20,
+        index,
+        index,
+        PROVINCES[index % PROVINCES.length],
+        index % 28 + 1,
+        100 + index % 400,
+        index % 100,
+        index);
+  }
+
+  public static List<String> documentJsons(int count) {
+    return IntStream.range(0, count)
+        .mapToObj(SyntheticAnalysisDocuments::documentJson)
+        .collect(Collectors.toList());
+  }
+
+  public static SearchHit searchHit(int index) {
+    return new SearchHit(index)
+        .sourceRef(new BytesArray(documentJson(index).getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @SneakyThrows
+  public static AnalysisDocument analysisDocument(int index) {
+    return objectMapper.readValue(documentJson(index), AnalysisDocument.class);
+  }
+
+  @SneakyThrows
+  public static AnalysisDocumentMolecularDataPair pair(int index) {
+    return new AnalysisDocumentMolecularDataPair(
+        AnalysisDocumentRowDecoder.decodeSource(
+            objectMapper.getFactory(), searchHit(index).getSourceRef()),
+        fasta(index));
+  }
+
+  public static byte[] fasta(int index) {
+    Random random = new Random(index);
+    StringBuilder fasta = new StringBuilder(GENOME_LENGTH + GENOME_LENGTH / FASTA_LINE_LENGTH + 64);
+    fasta.append(format(">hCoV-19/Canada/ON-%d/2022\n", index));
+    for (int base = 0; base < GENOME_LENGTH; base++) {
+      fasta.append(BASES.charAt(random.nextInt(4)));
+      if ((base + 1) % FASTA_LINE_LENGTH == 0) {
+        fasta.append('\n');
+      }
+    }
+    return fasta.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,64 @@
+package org.cancogenvirusseq.singularity.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocument;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentRow;
+import org.cancogenvirusseq.singularity.components.utils.TsvRowEncoder;
+import org.cancogenvirusseq.singularity.components.utils.TsvUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Metadata tsv row encoding, the string built rows against the byte buffer encoder */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TsvRowEncodingBenchmark {
+  private static final int ROWS = 1000;
+
+  private List<AnalysisDocument> analysisDocuments;
+  private List<AnalysisDocumentRow> analysisDocumentRows;
+  private TsvRowEncoder tsvRowEncoder;
+  private OutputStream outputStream;
+
+  @Setup
+  public void setup() {
+    analysisDocuments =
+        IntStream.range(0, ROWS)
+            .mapToObj(SyntheticAnalysisDocuments::analysisDocument)
+            .collect(Collectors.toList());
+    analysisDocumentRows =
+        IntStream.range(0, ROWS)
+            .mapToObj(index -> SyntheticAnalysisDocuments.pair(index).getAnalysisDocumentRow())
+            .collect(Collectors.toList());
+    tsvRowEncoder = new TsvRowEncoder();
+    outputStream = OutputStream.nullOutputStream();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public void stringTsvRows(Blackhole blackhole) {
+    for (AnalysisDocument analysisDocument : analysisDocuments) {
+      blackhole.consume(TsvUtils.analysisDocumentToTsvRowBytes(analysisDocument));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public void encodedTsvRows() throws IOException {
+    for (AnalysisDocumentRow analysisDocumentRow : analysisDocumentRows) {
+      tsvRowEncoder.writeRow(analysisDocumentRow, outputStream);
+    }
+  }
+}
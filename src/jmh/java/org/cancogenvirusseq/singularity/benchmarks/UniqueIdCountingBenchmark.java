@@ -0,0 +1,84 @@
+package org.cancogenvirusseq.singularity.benchmarks;
+
+import static java.lang.String.format;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.cancogenvirusseq.singularity.components.utils.HyperLogLog;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * TotalCountsPipeline style unique genome counting, submitterDonorIds are extracted from the source
+ * map of each hit and counted exactly in a HashSet or estimated with a HyperLogLog sketch
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UniqueIdCountingBenchmark {
+  private static final int HITS = 10_000;
+  // every donor id appears twice
+  private static final int UNIQUE_DONORS = HITS / 2;
+
+  private List<BytesReference> sources;
+
+  @Setup
+  public void setup() {
+    sources =
+        IntStream.range(0, HITS)
+            .mapToObj(
+                index ->
+                    new BytesArray(
+                        format(
+                                "{\"analysis\":{\"samples\":[{\"donor\":{\"submitterDonorId\":\"donor-%d\"}}]}}",
+                                index % UNIQUE_DONORS)
+                            .getBytes(StandardCharsets.UTF_8)))
+            .collect(Collectors.toList());
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(HITS)
+  public int uniqueSubmitterDonorIds() {
+    HashSet<String> submitterDonorIds = new HashSet<>();
+    forEachSubmitterDonorId(submitterDonorIds::add);
+    return submitterDonorIds.size();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(HITS)
+  public long hyperLogLogSubmitterDonorIds() {
+    HyperLogLog hyperLogLog = HyperLogLog.withRelativeError(0.01);
+    forEachSubmitterDonorId(hyperLogLog::add);
+    return hyperLogLog.cardinality();
+  }
+
+  @SuppressWarnings("unchecked")
+  private void forEachSubmitterDonorId(Consumer<String> consumer) {
+    for (BytesReference source : sources) {
+      Map<String, Object> analysis =
+          (Map<String, Object>)
+              XContentHelper.convertToMap(source, false, XContentType.JSON).v2().get("analysis");
+      for (Object sample : (List<Object>) analysis.get("samples")) {
+        Map<String, Object> donor =
+            (Map<String, Object>) ((Map<String, Object>) sample).get("donor");
+        consumer.accept((String) donor.get("submitterDonorId"));
+      }
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package org.cancogenvirusseq.singularity.components.base;
+
+import java.util.concurrent.TimeUnit;
+import org.cancogenvirusseq.singularity.benchmarks.SyntheticAnalysisDocuments;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Copy of each downloaded genome to append the trailing newline, in the component's package as the
+ * copy is package-private
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MolecularDataBufferBenchmark {
+  private byte[] fasta;
+
+  @Setup
+  public void setup() {
+    fasta = SyntheticAnalysisDocuments.fasta(0);
+  }
+
+  @Benchmark
+  public byte[] molecularDataBufferWithNewline() {
+    return DownloadMolecularDataToPair.molecularDataBufferWithNewline(fasta);
+  }
+}
@@ -21,17 +21,25 @@ package org.cancogenvirusseq.singularity.api;
 import static java.lang.String.format;
 
 import java.nio.ByteBuffer;
-import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 import lombok.RequiredArgsConstructor;
+import lombok.val;
 import lombok.extern.slf4j.Slf4j;
 import org.cancogenvirusseq.singularity.api.model.*;
+import org.cancogenvirusseq.singularity.components.base.ArchiveDownloadCounter;
 import org.cancogenvirusseq.singularity.components.base.DownloadObjectById;
+import org.cancogenvirusseq.singularity.components.base.PresignedArchiveDownloadUrl;
+import org.cancogenvirusseq.singularity.components.model.AwsSdkFluxResponse;
+import org.cancogenvirusseq.singularity.components.model.ByteRange;
 import org.cancogenvirusseq.singularity.components.model.TotalCounts;
+import org.cancogenvirusseq.singularity.components.pipelines.ArchiveGenomes;
 import org.cancogenvirusseq.singularity.components.pipelines.CancelSetArchive;
 import org.cancogenvirusseq.singularity.components.pipelines.Contributors;
 import org.cancogenvirusseq.singularity.components.pipelines.SetQueryArchiveRequest;
 import org.cancogenvirusseq.singularity.components.pipelines.TotalCountsPipeline;
+import org.cancogenvirusseq.singularity.components.utils.HttpHeaderUtils;
+import org.cancogenvirusseq.singularity.config.s3Client.S3ClientProperties;
 import org.cancogenvirusseq.singularity.exceptions.http.ArchiveNotFoundHttpException;
 import org.cancogenvirusseq.singularity.exceptions.http.BaseHttpException;
 import org.cancogenvirusseq.singularity.exceptions.http.SetNotFoundHttpException;
@@ -47,6 +55,7 @@ import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RestController;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 
 @Slf4j
 @RestController
@@ -55,13 +64,30 @@ public class ApiController implements ApiDefinition {
   private final TotalCountsPipeline totalCountsPipeline;
   private final Contributors contributors;
   private final DownloadObjectById downloadObjectById;
+  private final ArchiveDownloadCounter archiveDownloadCounter;
+  private final ArchiveGenomes archiveGenomes;
+  private final PresignedArchiveDownloadUrl presignedArchiveDownloadUrl;
   private final SetQueryArchiveRequest setQueryArchiveRequest;
   private final CancelSetArchive cancelSetArchive;
   private final ArchivesRepo archivesRepo;
+  private final S3ClientProperties s3ClientProperties;
 
   @Override
-  public Mono<EntityListResponse<String>> getContributors() {
-    return contributors.getContributors().transform(this::listResponseTransform);
+  public Mono<ResponseEntity<EntityListResponse<String>>> getContributors(String ifNoneMatch) {
+    return contributors
+        .getContributors()
+        .map(
+            snapshot ->
+                snapshot.matchesIfNoneMatch(ifNoneMatch)
+                    ? ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                        .eTag(snapshot.getEtag())
+                        .<EntityListResponse<String>>build()
+                    : ResponseEntity.ok()
+                        .eTag(snapshot.getEtag())
+                        .body(
+                            EntityListResponse.<String>builder()
+                                .data(snapshot.getContributors())
+                                .build()));
   }
 
   @Override
@@ -73,13 +99,42 @@ public class ApiController implements ApiDefinition {
   }
 
   @Override
-  public Mono<ResponseEntity<Flux<ByteBuffer>>> downloadLatestAllArchive() {
-    return archivesRepo.findLatestAllArchive().transform(this::processArchiveDownloadRequest);
+  public Mono<ResponseEntity<Flux<ByteBuffer>>> downloadLatestAllArchive(
+      String range, String ifRange, String ifNoneMatch) {
+    return archivesRepo
+        .findLatestAllArchive()
+        .transform(
+            archiveMono -> processArchiveDownloadRequest(archiveMono, range, ifRange, ifNoneMatch));
   }
 
   @Override
-  public Mono<ResponseEntity<Flux<ByteBuffer>>> downloadArchiveById(UUID id) {
-    return archivesRepo.findCompletedArchiveById(id).transform(this::processArchiveDownloadRequest);
+  public Mono<ResponseEntity<Flux<ByteBuffer>>> downloadArchiveById(
+      UUID id, String range, String ifRange, String ifNoneMatch) {
+    return archivesRepo
+        .findCompletedArchiveById(id)
+        .transform(
+            archiveMono -> processArchiveDownloadRequest(archiveMono, range, ifRange, ifNoneMatch));
+  }
+
+  @Override
+  public Mono<ResponseEntity<Flux<ByteBuffer>>> downloadGenomesFromLatestAllArchive(
+      GenomesRequest genomesRequest) {
+    val objectIds =
+        genomesRequest.getObjectIds() == null ? List.<String>of() : genomesRequest.getObjectIds();
+    val file = genomesRequest.getFile() == null ? GenomesFile.FASTA : genomesRequest.getFile();
+
+    return (GenomesFile.TSV.equals(file)
+            ? archiveGenomes.tsvRows(objectIds)
+            : archiveGenomes.molecularData(objectIds))
+        .map(
+            genomes ->
+                ResponseEntity.ok()
+                    .header(
+                        HttpHeaders.CONTENT_DISPOSITION,
+                        format("attachment; filename=%s", file.getFilename()))
+                    .header(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_PLAIN_VALUE)
+                    .body(genomes))
+        .switchIfEmpty(Mono.just(ResponseEntity.notFound().build()));
   }
 
   @Override
@@ -94,40 +149,126 @@ public class ApiController implements ApiDefinition {
 
   @Override
   public Mono<Archive> buildArchiveWithSetId(SetIdBuildRequest setIdBuildRequest) {
-    return setQueryArchiveRequest
-        .apply(setIdBuildRequest.getSetId())
+    return (setIdBuildRequest.getFormat() == null
+            ? setQueryArchiveRequest.apply(setIdBuildRequest.getSetId())
+            : setQueryArchiveRequest.apply(
+                setIdBuildRequest.getSetId(), setIdBuildRequest.getFormat()))
         .switchIfEmpty(Mono.error(new SetNotFoundHttpException()));
   }
 
-  private <T> Mono<EntityListResponse<T>> listResponseTransform(
-      Mono<? extends Collection<T>> entities) {
-    return entities.map(entityList -> EntityListResponse.<T>builder().data(entityList).build());
-  }
-
+  /**
+   * Redirects to a presigned url of the archive when enabled, otherwise streams the archive, or
+   * only the requested byte range of it (206) when a single byte range is requested and If-Range,
+   * if given, still matches the archive's ETag. A download is counted once,
+   * when it starts at the first byte, so resumed and parallel ranged fetches are not counted again.
+   */
   private Mono<ResponseEntity<Flux<ByteBuffer>>> processArchiveDownloadRequest(
-      Mono<Archive> archiveMono) {
+      Mono<Archive> archiveMono, String range, String ifRange, String ifNoneMatch) {
     return archiveMono
-        .map(Archive::incrementDownloadsForArchive)
-        .flatMap(archivesRepo::save)
         .flatMap(
-            archive ->
-                downloadObjectById
-                    .apply(archive.getObjectId())
-                    .map(
-                        archiveDownload ->
-                            ResponseEntity.ok()
-                                .header(
-                                    HttpHeaders.CONTENT_DISPOSITION,
-                                    format(
-                                        "attachment; filename=%s",
-                                        Archive.parseFilenameFromArchive(archive)))
-                                .header(
-                                    HttpHeaders.CONTENT_TYPE,
-                                    MediaType.APPLICATION_OCTET_STREAM_VALUE)
-                                .body(archiveDownload.getFlux())))
+            archive -> {
+              val etag = Archive.parseEtagFromArchive(archive);
+
+              if (HttpHeaderUtils.etagMatches(ifNoneMatch, etag)) {
+                return Mono.just(
+                    ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                        .eTag(etag)
+                        .<Flux<ByteBuffer>>build());
+              }
+
+              if (s3ClientProperties.getPresignedDownloadRedirectEnabled()) {
+                // ranges and resumes of a redirected download go to the object store directly, a
+                // client may still send its Range to this endpoint before following the redirect
+                val redirectedByteRange = HttpHeaderUtils.parseSingleByteRange(range);
+                if (redirectedByteRange.isEmpty() || redirectedByteRange.get().isFromStart()) {
+                  archiveDownloadCounter.increment(archive.getId());
+                }
+                return Mono.just(
+                    ResponseEntity.status(HttpStatus.FOUND)
+                        .location(presignedArchiveDownloadUrl.apply(archive))
+                        .eTag(etag)
+                        .<Flux<ByteBuffer>>build());
+              }
+
+              // If-Range is a strong comparison, when it does not match the whole archive is sent
+              val byteRange =
+                  ifRange == null || ifRange.equals(etag)
+                      ? HttpHeaderUtils.parseSingleByteRange(range).orElse(null)
+                      : null;
+
+              return downloadObjectById
+                  .apply(archive.getObjectId(), byteRange)
+                  .doOnNext(
+                      archiveDownload -> {
+                        if (byteRange == null || byteRange.isFromStart()) {
+                          archiveDownloadCounter.increment(archive.getId());
+                        }
+                      })
+                  .map(
+                      archiveDownload ->
+                          archiveDownloadResponse(archive, etag, byteRange, archiveDownload))
+                  .onErrorResume(
+                      S3Exception.class,
+                      s3Exception ->
+                          s3Exception.statusCode()
+                                  == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value()
+                              ? rangeNotSatisfiableResponse(archive, etag)
+                              : Mono.error(s3Exception));
+            })
         .switchIfEmpty(Mono.just(ResponseEntity.notFound().build()));
   }
 
+  /**
+   * 416 with the archive's length in Content-Range so a resuming client can retry with a valid
+   * range, the header is left out if the length can't be read
+   */
+  private Mono<ResponseEntity<Flux<ByteBuffer>>> rangeNotSatisfiableResponse(
+      Archive archive, String etag) {
+    val responseBuilder =
+        ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE).eTag(etag);
+
+    return downloadObjectById
+        .objectSize(archive.getObjectId())
+        .map(
+            size ->
+                responseBuilder.header(
+                    HttpHeaders.CONTENT_RANGE, HttpHeaderUtils.unsatisfiedContentRange(size)))
+        .onErrorResume(
+            throwable -> {
+              log.error(
+                  "Failed to read the size of archive {}: {}",
+                  archive.getId(),
+                  throwable.getLocalizedMessage());
+              return Mono.empty();
+            })
+        .defaultIfEmpty(responseBuilder)
+        .map(builder -> builder.<Flux<ByteBuffer>>build());
+  }
+
+  private ResponseEntity<Flux<ByteBuffer>> archiveDownloadResponse(
+      Archive archive, String etag, ByteRange byteRange, AwsSdkFluxResponse archiveDownload) {
+    val sdkResponse = archiveDownload.getSdkResponse();
+
+    val responseBuilder =
+        ResponseEntity.status(byteRange == null ? HttpStatus.OK : HttpStatus.PARTIAL_CONTENT)
+            .header(
+                HttpHeaders.CONTENT_DISPOSITION,
+                format("attachment; filename=%s", Archive.parseFilenameFromArchive(archive)))
+            .header(HttpHeaders.CONTENT_TYPE, archive.getFormat().getMediaType())
+            .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+            .eTag(etag);
+
+    if (sdkResponse.contentLength() != null) {
+      responseBuilder.contentLength(sdkResponse.contentLength());
+    }
+
+    if (byteRange != null && sdkResponse.contentRange() != null) {
+      responseBuilder.header(HttpHeaders.CONTENT_RANGE, sdkResponse.contentRange());
+    }
+
+    return responseBuilder.body(archiveDownload.getFlux());
+  }
+
   @ExceptionHandler
   public ResponseEntity<ErrorResponse> handle(Throwable ex) {
     log.error("ApiController exception handler", ex);
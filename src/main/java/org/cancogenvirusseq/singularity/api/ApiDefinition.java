@@ -30,6 +30,7 @@ import org.cancogenvirusseq.singularity.components.model.TotalCounts;
 import org.cancogenvirusseq.singularity.repository.model.Archive;
 import org.cancogenvirusseq.singularity.repository.query.FindArchivesQuery;
 import org.springframework.data.domain.Page;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.transaction.annotation.Transactional;
@@ -51,13 +52,15 @@ public interface ApiDefinition {
   @ApiResponses(
       value = {
         @ApiResponse(code = 200, message = "", response = EntityListResponse.class),
+        @ApiResponse(code = 304, message = "Contributors have not changed since the given ETag"),
         @ApiResponse(code = 500, message = UNKNOWN_MSG, response = ErrorResponse.class)
       })
   @RequestMapping(
       value = "/contributors",
       produces = MediaType.APPLICATION_JSON_VALUE,
       method = RequestMethod.GET)
-  Mono<EntityListResponse<String>> getContributors();
+  Mono<ResponseEntity<EntityListResponse<String>>> getContributors(
+      @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
 
   @ApiOperation(
       value = "Get total counts of samples, files and studies",
@@ -83,6 +86,10 @@ public interface ApiDefinition {
   @ApiResponses(
       value = {
         @ApiResponse(code = 200, message = "", response = MultipartFile.class),
+        @ApiResponse(code = 206, message = "The requested byte range of the archive"),
+        @ApiResponse(code = 302, message = "Redirect to a presigned url of the archive"),
+        @ApiResponse(code = 304, message = "The archive matches the given ETag"),
+        @ApiResponse(code = 416, message = "The requested byte range is not satisfiable"),
         @ApiResponse(code = 500, message = UNKNOWN_MSG, response = ErrorResponse.class)
       })
   @RequestMapping(
@@ -90,7 +97,10 @@ public interface ApiDefinition {
       produces = MediaType.APPLICATION_OCTET_STREAM_VALUE,
       method = RequestMethod.GET)
   @Transactional
-  Mono<ResponseEntity<Flux<ByteBuffer>>> downloadLatestAllArchive();
+  Mono<ResponseEntity<Flux<ByteBuffer>>> downloadLatestAllArchive(
+      @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+      @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
+      @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
 
   @ApiOperation(
       value = "Download an archive by ID",
@@ -100,6 +110,10 @@ public interface ApiDefinition {
   @ApiResponses(
       value = {
         @ApiResponse(code = 200, message = "", response = MultipartFile.class),
+        @ApiResponse(code = 206, message = "The requested byte range of the archive"),
+        @ApiResponse(code = 302, message = "Redirect to a presigned url of the archive"),
+        @ApiResponse(code = 304, message = "The archive matches the given ETag"),
+        @ApiResponse(code = 416, message = "The requested byte range is not satisfiable"),
         @ApiResponse(code = 500, message = UNKNOWN_MSG, response = ErrorResponse.class)
       })
   @RequestMapping(
@@ -107,7 +121,38 @@ public interface ApiDefinition {
       produces = MediaType.APPLICATION_OCTET_STREAM_VALUE,
       method = RequestMethod.GET)
   @Transactional
-  Mono<ResponseEntity<Flux<ByteBuffer>>> downloadArchiveById(@PathVariable("id") UUID id);
+  Mono<ResponseEntity<Flux<ByteBuffer>>> downloadArchiveById(
+      @PathVariable("id") UUID id,
+      @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+      @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
+      @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
+
+  @ApiOperation(
+      value =
+          "Download the molecular data (FASTA) or the tsv rows (TSV) of the given genomes from the latest data archive",
+      nickname = "Download Genomes",
+      response = MultipartFile.class,
+      tags = "Singularity API")
+  @ApiResponses(
+      value = {
+        @ApiResponse(code = 200, message = "", response = MultipartFile.class),
+        @ApiResponse(
+            code = 404,
+            message = "The latest archive does not exist or can only be downloaded as a whole"),
+        @ApiResponse(
+            code = 413,
+            message = "Too many genomes requested at once",
+            response = ErrorResponse.class),
+        @ApiResponse(code = 500, message = UNKNOWN_MSG, response = ErrorResponse.class)
+      })
+  @RequestMapping(
+      value = "/download/archive/all/genomes",
+      consumes = MediaType.APPLICATION_JSON_VALUE,
+      produces = MediaType.TEXT_PLAIN_VALUE,
+      method = RequestMethod.POST)
+  @Transactional
+  Mono<ResponseEntity<Flux<ByteBuffer>>> downloadGenomesFromLatestAllArchive(
+      @RequestBody GenomesRequest genomesRequest);
 
   @ApiOperation(
       value = "Get details of any archives that bundles all sample data.",
@@ -146,6 +191,10 @@ public interface ApiDefinition {
   @ApiResponses(
       value = {
         @ApiResponse(code = 200, message = "", response = Archive.class),
+        @ApiResponse(
+            code = 429,
+            message = "Too many archives are waiting to be built",
+            response = ErrorResponse.class),
         @ApiResponse(code = 500, message = UNKNOWN_MSG, response = ErrorResponse.class)
       })
   @RequestMapping(
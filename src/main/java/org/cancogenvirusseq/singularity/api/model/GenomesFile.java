@@ -0,0 +1,13 @@
+package org.cancogenvirusseq.singularity.api.model;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+@Getter
+@RequiredArgsConstructor
+public enum GenomesFile {
+  FASTA("genomes.fasta"),
+  TSV("genomes.tsv");
+
+  private final String filename;
+}
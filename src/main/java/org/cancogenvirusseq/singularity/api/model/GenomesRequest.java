@@ -0,0 +1,13 @@
+package org.cancogenvirusseq.singularity.api.model;
+
+import java.util.List;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+public class GenomesRequest {
+  private List<String> objectIds;
+  // optional, the molecular data (FASTA) is served when not given
+  private GenomesFile file;
+}
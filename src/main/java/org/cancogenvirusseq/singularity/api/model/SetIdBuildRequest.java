@@ -3,9 +3,12 @@ package org.cancogenvirusseq.singularity.api.model;
 import java.util.UUID;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveFormat;
 
 @Data
 @NoArgsConstructor
 public class SetIdBuildRequest {
   private UUID setId;
+  // optional, the format configured for SET_QUERY archives is used when not given
+  private ArchiveFormat format;
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.singularity.components.base;
+
+import io.r2dbc.postgresql.PostgresqlConnectionFactory;
+import io.r2dbc.postgresql.api.PostgresqlConnection;
+import java.time.Duration;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.cancogenvirusseq.singularity.exceptions.runtime.AllArchiveBuildLockLostException;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * A postgres session level advisory lock held by the replica building the ALL archive. The lock is
+ * taken on a dedicated connection (not one from the pool) that is kept open for the whole build, if
+ * the replica dies its session ends and postgres releases the lock. The session can also end under
+ * a running build (network failure, failover), so the build watches the lock with {@link #lost} and
+ * stops once it is no longer held.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class AllArchiveBuildLock {
+  // arbitrary key shared by all replicas, only needs to be unique among this database's locks
+  private static final long ALL_ARCHIVE_BUILD_LOCK_KEY = 0x73696e67756c6172L;
+
+  private final PostgresqlConnectionFactory psqlConnectionFactory;
+
+  /** Emits the connection holding the lock, empty if another replica holds it */
+  public Mono<PostgresqlConnection> tryAcquire() {
+    return psqlConnectionFactory
+        .create()
+        .flatMap(
+            connection ->
+                connection
+                    .createStatement("SELECT pg_try_advisory_lock($1)")
+                    .bind("$1", ALL_ARCHIVE_BUILD_LOCK_KEY)
+                    .execute()
+                    .flatMap(result -> result.map((row, metadata) -> row.get(0, Boolean.class)))
+                    .next()
+                    .onErrorResume(throwable -> connection.close().then(Mono.error(throwable)))
+                    .flatMap(
+                        acquired -> {
+                          if (Boolean.TRUE.equals(acquired)) {
+                            log.info("Acquired the ALL archive build lock");
+                            return Mono.just(connection);
+                          }
+
+                          return connection.close().then(Mono.empty());
+                        }));
+  }
+
+  /**
+   * Checks on the lock connection every interval that its session still holds the lock, errors with
+   * an {@link AllArchiveBuildLockLostException} as soon as it doesn't, never completes otherwise
+   */
+  public Mono<Void> lost(PostgresqlConnection connection, Duration interval) {
+    return Flux.interval(interval)
+        .onBackpressureDrop()
+        .concatMap(
+            tick ->
+                connection
+                    .createStatement(
+                        "SELECT EXISTS (SELECT 1 FROM pg_locks WHERE locktype = 'advisory' "
+                            + "AND pid = pg_backend_pid() AND granted "
+                            + "AND classid::bigint = $1 AND objid::bigint = $2 AND objsubid = 1)")
+                    .bind("$1", ALL_ARCHIVE_BUILD_LOCK_KEY >>> 32)
+                    .bind("$2", ALL_ARCHIVE_BUILD_LOCK_KEY & 0xffffffffL)
+                    .execute()
+                    .flatMap(result -> result.map((row, metadata) -> row.get(0, Boolean.class)))
+                    .next()
+                    .onErrorMap(AllArchiveBuildLockLostException::new)
+                    .filter(Boolean.TRUE::equals)
+                    .switchIfEmpty(Mono.error(AllArchiveBuildLockLostException::new)))
+        .doOnError(throwable -> log.error("Lost the ALL archive build lock"))
+        .then();
+  }
+
+  /** Releases the lock by ending the session that holds it */
+  public Mono<Void> release(PostgresqlConnection connection) {
+    return connection
+        .close()
+        .doOnSuccess(unused -> log.info("Released the ALL archive build lock"))
+        .onErrorResume(
+            throwable -> {
+              log.error(
+                  "Failed to close the ALL archive build lock connection: {}",
+                  throwable.getLocalizedMessage());
+              return Mono.empty();
+            });
+  }
+}
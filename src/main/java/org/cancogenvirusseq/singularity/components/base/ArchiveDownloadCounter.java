@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.singularity.components.base;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.cancogenvirusseq.singularity.config.archive.ArchiveProperties;
+import org.cancogenvirusseq.singularity.repository.ArchivesRepo;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Counts archive downloads in memory and periodically adds them to the archive rows, so a download
+ * never waits on a database write and concurrent downloads of the same archive are not lost to a
+ * read-modify-write of the whole row.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ArchiveDownloadCounter {
+  private final ArchivesRepo archivesRepo;
+  private final ArchiveProperties archiveProperties;
+
+  private final Map<UUID, LongAdder> pendingDownloads = new ConcurrentHashMap<>();
+
+  @Getter private Disposable flushDisposable;
+
+  @PostConstruct
+  public void init() {
+    flushDisposable =
+        Flux.interval(Duration.ofSeconds(archiveProperties.getDownloadCountFlushIntervalSeconds()))
+            .onBackpressureDrop()
+            .concatMap(tick -> flush())
+            .subscribe();
+  }
+
+  @PreDestroy
+  public void destroy() {
+    flushDisposable.dispose();
+    flush().block(Duration.ofSeconds(archiveProperties.getDownloadCountFlushIntervalSeconds()));
+  }
+
+  public void increment(UUID archiveId) {
+    // incremented inside compute so a drained counter can't be removed in between
+    pendingDownloads.compute(
+        archiveId,
+        (id, downloads) -> {
+          val counter = downloads == null ? new LongAdder() : downloads;
+          counter.increment();
+          return counter;
+        });
+  }
+
+  /**
+   * Adds the pending downloads of each archive with a single update. Only the flushed amount is
+   * taken from the counter so downloads counted during the flush are kept for the next one, and the
+   * amount is put back if the update fails. Counters drained by a successful update are removed so
+   * archives that are no longer downloaded don't stay in the map.
+   */
+  public Mono<Void> flush() {
+    return Flux.fromIterable(pendingDownloads.entrySet())
+        .concatMap(
+            entry -> {
+              long downloads = entry.getValue().sum();
+
+              if (downloads == 0) {
+                return Mono.empty();
+              }
+
+              entry.getValue().add(-downloads);
+
+              return archivesRepo
+                  .incrementNumOfDownloads(entry.getKey(), downloads)
+                  .doOnNext(
+                      updated -> {
+                        log.debug("Added {} downloads to archive {}", downloads, entry.getKey());
+                        pendingDownloads.computeIfPresent(
+                            entry.getKey(), (id, pending) -> pending.sum() == 0 ? null : pending);
+                      })
+                  .onErrorResume(
+                      throwable -> {
+                        log.error(
+                            "Failed to add {} downloads to archive {}: {}",
+                            downloads,
+                            entry.getKey(),
+                            throwable.getLocalizedMessage());
+                        entry.getValue().add(downloads);
+                        return Mono.empty();
+                      });
+            })
+        .then();
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.base;
+
+import static java.lang.String.format;
+import static org.cancogenvirusseq.singularity.components.model.FileBundle.DOWNLOAD_DIR;
+import static org.cancogenvirusseq.singularity.components.model.FileBundle.archiveManifestFilenameFromArchiveId;
+import static org.cancogenvirusseq.singularity.components.utils.ArchiveManifestUtils.manifestKeyForArchiveObjectId;
+
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.UUID;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.cancogenvirusseq.singularity.components.model.ArchiveManifestEntry;
+import org.cancogenvirusseq.singularity.components.utils.ArchiveManifestUtils;
+import org.cancogenvirusseq.singularity.config.s3Client.S3ClientProperties;
+import org.cancogenvirusseq.singularity.repository.model.Archive;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+/** Uploads and downloads the manifests kept in object storage next to the archives */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ArchiveManifestStore {
+  private static final String MANIFEST_MEDIA_TYPE = "application/gzip";
+
+  private final S3AsyncClient s3AsyncClient;
+  private final S3ClientProperties s3ClientProperties;
+
+  /**
+   * Uploads the manifest written while building the archive, a failed upload only means the next
+   * incremental build falls back to a full build so it is logged and not propagated
+   */
+  public Mono<UUID> upload(Archive archive, UUID archiveObjectId) {
+    return Mono.fromFuture(
+            () ->
+                s3AsyncClient.putObject(
+                    PutObjectRequest.builder()
+                        .bucket(s3ClientProperties.getBucket())
+                        .key(
+                            manifestKeyForArchiveObjectId(
+                                s3ClientProperties.getDataDir(), archiveObjectId))
+                        .contentType(MANIFEST_MEDIA_TYPE)
+                        .build(),
+                    AsyncRequestBody.fromFile(
+                        Paths.get(
+                            format(
+                                "%s/%s",
+                                DOWNLOAD_DIR,
+                                archiveManifestFilenameFromArchiveId(archive.getId()))))))
+        .doOnNext(
+            response ->
+                log.debug(
+                    "Uploaded manifest for archive {} objectId: {}",
+                    archive.getId(),
+                    archiveObjectId))
+        .thenReturn(archiveObjectId)
+        .onErrorResume(
+            throwable -> {
+              log.error(
+                  "Failed to upload manifest for archive {}: {}",
+                  archive.getId(),
+                  throwable.getLocalizedMessage());
+              return Mono.just(archiveObjectId);
+            });
+  }
+
+  /**
+   * Downloads the manifest of a completed archive, empty if the archive has no manifest or its rows
+   * can not be reused
+   */
+  public Mono<List<ArchiveManifestEntry>> download(Archive archive) {
+    return Mono.fromFuture(
+            () ->
+                s3AsyncClient.getObject(
+                    GetObjectRequest.builder()
+                        .bucket(s3ClientProperties.getBucket())
+                        .key(
+                            manifestKeyForArchiveObjectId(
+                                s3ClientProperties.getDataDir(), archive.getObjectId()))
+                        .build(),
+                    AsyncResponseTransformer.toBytes()))
+        .flatMap(
+            responseBytes ->
+                Mono.fromCallable(
+                    () ->
+                        ArchiveManifestUtils.readManifest(responseBytes.asByteArray())
+                            .orElse(null)))
+        .onErrorResume(
+            NoSuchKeyException.class,
+            noSuchKey -> {
+              log.info("Archive {} has no manifest", archive.getId());
+              return Mono.empty();
+            });
+  }
+}
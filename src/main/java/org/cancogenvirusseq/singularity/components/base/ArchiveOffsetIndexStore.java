@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.base;
+
+import static java.lang.String.format;
+import static org.cancogenvirusseq.singularity.components.model.FileBundle.DOWNLOAD_DIR;
+import static org.cancogenvirusseq.singularity.components.model.FileBundle.archiveOffsetIndexFilenameFromArchiveId;
+import static org.cancogenvirusseq.singularity.components.utils.ArchiveOffsetIndexUtils.offsetIndexKeyForArchiveObjectId;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.cancogenvirusseq.singularity.components.model.ArchiveOffsetIndex;
+import org.cancogenvirusseq.singularity.components.utils.ArchiveOffsetIndexUtils;
+import org.cancogenvirusseq.singularity.config.s3Client.S3ClientProperties;
+import org.cancogenvirusseq.singularity.repository.model.Archive;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+/**
+ * Uploads the offset indexes kept in object storage next to the ALL archives, and downloads them to
+ * local disk where they are decompressed and loaded once for the genome requests of the archive
+ * until a newer archive's index is loaded
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ArchiveOffsetIndexStore {
+  private static final String OFFSET_INDEX_MEDIA_TYPE = "application/gzip";
+  private static final String DECOMPRESSED_OFFSET_INDEX_EXTENSION = ".offsets";
+
+  private final S3AsyncClient s3AsyncClient;
+  private final S3ClientProperties s3ClientProperties;
+
+  // keyed by archive objectId, only errors and missing indexes are not cached
+  private final Map<UUID, Mono<ArchiveOffsetIndex>> localOffsetIndexes = new ConcurrentHashMap<>();
+
+  // evicted indexes are deleted on the next eviction, requests may still be reading them
+  private final Set<Path> evictedOffsetIndexPaths = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Uploads the offset index written while building the archive, a failed upload only means genomes
+   * can't be served from this archive so it is logged and not propagated
+   */
+  public Mono<UUID> upload(Archive archive, UUID archiveObjectId) {
+    Path path =
+        Paths.get(
+            format(
+                "%s/%s", DOWNLOAD_DIR, archiveOffsetIndexFilenameFromArchiveId(archive.getId())));
+
+    // archives in a format that can't be read at random have no offset index
+    if (!Files.exists(path)) {
+      log.info("Archive {} has no offset index to upload", archive.getId());
+      return Mono.just(archiveObjectId);
+    }
+
+    return Mono.fromFuture(
+            () ->
+                s3AsyncClient.putObject(
+                    PutObjectRequest.builder()
+                        .bucket(s3ClientProperties.getBucket())
+                        .key(
+                            offsetIndexKeyForArchiveObjectId(
+                                s3ClientProperties.getDataDir(), archiveObjectId))
+                        .contentType(OFFSET_INDEX_MEDIA_TYPE)
+                        .build(),
+                    AsyncRequestBody.fromFile(path)))
+        .doOnNext(
+            response ->
+                log.debug(
+                    "Uploaded offset index for archive {} objectId: {}",
+                    archive.getId(),
+                    archiveObjectId))
+        .thenReturn(archiveObjectId)
+        .onErrorResume(
+            throwable -> {
+              log.error(
+                  "Failed to upload offset index for archive {}: {}",
+                  archive.getId(),
+                  throwable.getLocalizedMessage());
+              return Mono.just(archiveObjectId);
+            });
+  }
+
+  /**
+   * The offset index of a completed archive, downloaded and loaded once per archive. Empty if the
+   * archive has no offset index.
+   */
+  public Mono<ArchiveOffsetIndex> localOffsetIndex(Archive archive) {
+    return localOffsetIndexes.computeIfAbsent(
+        archive.getObjectId(),
+        archiveObjectId ->
+            download(archive)
+                .flatMap(
+                    downloadedPath ->
+                        Mono.fromCallable(() -> decompressAndLoad(archive, downloadedPath))
+                            .subscribeOn(Schedulers.boundedElastic()))
+                .doOnNext(offsetIndex -> evictOtherOffsetIndexes(archiveObjectId))
+                .cache(
+                    path -> Duration.ofMillis(Long.MAX_VALUE),
+                    error -> Duration.ZERO,
+                    () -> Duration.ZERO));
+  }
+
+  private Mono<Path> download(Archive archive) {
+    Path path = downloadedOffsetIndexPath(archive.getObjectId());
+
+    return Mono.fromCallable(() -> Files.deleteIfExists(path))
+        .subscribeOn(Schedulers.boundedElastic())
+        .then(
+            Mono.fromFuture(
+                () ->
+                    s3AsyncClient.getObject(
+                        GetObjectRequest.builder()
+                            .bucket(s3ClientProperties.getBucket())
+                            .key(
+                                offsetIndexKeyForArchiveObjectId(
+                                    s3ClientProperties.getDataDir(), archive.getObjectId()))
+                            .build(),
+                        AsyncResponseTransformer.toFile(path))))
+        .doOnNext(response -> log.info("Downloaded offset index of archive {}", archive.getId()))
+        .thenReturn(path)
+        .onErrorResume(
+            NoSuchKeyException.class,
+            noSuchKey -> {
+              log.info("Archive {} has no offset index", archive.getId());
+              return Mono.empty();
+            });
+  }
+
+  private ArchiveOffsetIndex decompressAndLoad(Archive archive, Path downloadedPath)
+      throws IOException {
+    Path path = localOffsetIndexPath(archive.getObjectId());
+
+    try {
+      ArchiveOffsetIndexUtils.decompressOffsetIndex(downloadedPath, path);
+    } finally {
+      Files.deleteIfExists(downloadedPath);
+    }
+
+    ArchiveOffsetIndex offsetIndex = ArchiveOffsetIndexUtils.loadOffsetIndex(path);
+    log.info(
+        "Loaded offset index of archive {} with {} entries",
+        archive.getId(),
+        offsetIndex.getEntries().size());
+    return offsetIndex;
+  }
+
+  /**
+   * Only the index of the latest archive is kept, the files of an evicted index are deleted on the
+   * next eviction so requests still reading it finish
+   */
+  private void evictOtherOffsetIndexes(UUID archiveObjectId) {
+    Path path = localOffsetIndexPath(archiveObjectId);
+
+    evictedOffsetIndexPaths.removeIf(
+        evictedPath -> {
+          try {
+            if (!evictedPath.equals(path)) {
+              Files.deleteIfExists(evictedPath);
+            }
+          } catch (IOException e) {
+            log.error(e.getLocalizedMessage(), e);
+          }
+          return true;
+        });
+
+    localOffsetIndexes
+        .keySet()
+        .removeIf(
+            otherArchiveObjectId -> {
+              if (otherArchiveObjectId.equals(archiveObjectId)) {
+                return false;
+              }
+
+              evictedOffsetIndexPaths.add(localOffsetIndexPath(otherArchiveObjectId));
+              return true;
+            });
+  }
+
+  private static Path downloadedOffsetIndexPath(UUID archiveObjectId) {
+    return Paths.get(
+        format(
+            "%s/%s%s",
+            DOWNLOAD_DIR, archiveObjectId, ArchiveOffsetIndexUtils.OFFSET_INDEX_EXTENSION));
+  }
+
+  private static Path localOffsetIndexPath(UUID archiveObjectId) {
+    return Paths.get(
+        format("%s/%s%s", DOWNLOAD_DIR, archiveObjectId, DECOMPRESSED_OFFSET_INDEX_EXTENSION));
+  }
+}
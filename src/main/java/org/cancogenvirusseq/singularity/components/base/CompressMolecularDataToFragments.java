@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.base;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentMolecularDataPair;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentRow;
+import org.cancogenvirusseq.singularity.components.model.CompressedFragment;
+import org.cancogenvirusseq.singularity.components.utils.ParallelGzipOutputStream;
+import org.cancogenvirusseq.singularity.components.utils.TsvRowEncoder;
+import org.cancogenvirusseq.singularity.config.archive.ArchiveProperties;
+import org.cancogenvirusseq.singularity.config.s3Client.S3ClientProperties;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Provides the compressed fragment of each analysis, from the fragment cache when it is there and
+ * otherwise by downloading the molecular data and compressing it (and the tsv row) on the archive
+ * compression worker pool, the newly compressed fragments are added to the cache
+ */
+@Slf4j
+@Component
+public class CompressMolecularDataToFragments
+    implements Function<Flux<AnalysisDocumentRow>, Flux<CompressedFragment>> {
+
+  private final DownloadMolecularDataToPair downloadMolecularDataToPair;
+  private final MolecularDataFragmentCache molecularDataFragmentCache;
+  private final S3ClientProperties s3ClientProperties;
+  private final ArchiveProperties archiveProperties;
+  private final Scheduler compressionScheduler;
+
+  public CompressMolecularDataToFragments(
+      DownloadMolecularDataToPair downloadMolecularDataToPair,
+      MolecularDataFragmentCache molecularDataFragmentCache,
+      S3ClientProperties s3ClientProperties,
+      ArchiveProperties archiveProperties,
+      ExecutorService archiveCompressionExecutorService) {
+    this.downloadMolecularDataToPair = downloadMolecularDataToPair;
+    this.molecularDataFragmentCache = molecularDataFragmentCache;
+    this.s3ClientProperties = s3ClientProperties;
+    this.archiveProperties = archiveProperties;
+    this.compressionScheduler = Schedulers.fromExecutorService(archiveCompressionExecutorService);
+  }
+
+  @Override
+  public Flux<CompressedFragment> apply(Flux<AnalysisDocumentRow> analysisDocumentRowFlux) {
+    return analysisDocumentRowFlux
+        .flatMap(
+            analysisDocumentRow ->
+                Mono.deferContextual(
+                    ctx ->
+                        molecularDataFragmentCache.isEnabledFor(ctx)
+                            ? molecularDataFragmentCache
+                                .getCompressed(analysisDocumentRow)
+                                .switchIfEmpty(
+                                    Mono.defer(
+                                        () ->
+                                            downloadAndCompress(analysisDocumentRow)
+                                                .flatMap(
+                                                    compressedFragment ->
+                                                        molecularDataFragmentCache
+                                                            .putCompressed(compressedFragment)
+                                                            .thenReturn(compressedFragment))))
+                            : downloadAndCompress(analysisDocumentRow)),
+            s3ClientProperties.getMaxConcurrency())
+        .doOnError(
+            throwable ->
+                log.info("CompressMolecularDataToFragments" + throwable.getLocalizedMessage()));
+  }
+
+  private Mono<CompressedFragment> downloadAndCompress(AnalysisDocumentRow analysisDocumentRow) {
+    return downloadMolecularDataToPair
+        .downloadPair(analysisDocumentRow)
+        .publishOn(compressionScheduler)
+        .map(this::compress);
+  }
+
+  private CompressedFragment compress(AnalysisDocumentMolecularDataPair pair) {
+    byte[] tsvRow = encodeTsvRow(pair.getAnalysisDocumentRow());
+    int compressionLevel = archiveProperties.getCompressionLevel();
+
+    return new CompressedFragment(
+        pair.getAnalysisDocumentRow(),
+        ParallelGzipOutputStream.compressMember(
+            pair.getMolecularData(), pair.getMolecularData().length, compressionLevel),
+        pair.getMolecularData().length,
+        ParallelGzipOutputStream.compressMember(tsvRow, tsvRow.length, compressionLevel),
+        tsvRow.length);
+  }
+
+  private static byte[] encodeTsvRow(AnalysisDocumentRow analysisDocumentRow) {
+    try {
+      ByteArrayOutputStream tsvRow = new ByteArrayOutputStream();
+      // encoders aren't thread safe and rows are compressed concurrently
+      new TsvRowEncoder().writeRow(analysisDocumentRow, tsvRow);
+      return tsvRow.toByteArray();
+    } catch (IOException e) {
+      // a ByteArrayOutputStream never throws
+      throw new IllegalStateException(e);
+    }
+  }
+}
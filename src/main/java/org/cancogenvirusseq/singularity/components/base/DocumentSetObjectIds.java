@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.singularity.components.base;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import lombok.RequiredArgsConstructor;
+import org.cancogenvirusseq.singularity.config.elasticsearch.ElasticsearchProperties;
+import org.cancogenvirusseq.singularity.config.elasticsearch.ReactiveElasticSearchClientConfig;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+/**
+ * Object ids of the documents matched by a query, read from doc values (no source is fetched) and
+ * falling back to the document id.
+ */
+@Component
+@RequiredArgsConstructor
+public class DocumentSetObjectIds implements Function<QueryBuilder, Flux<String>> {
+  private static final String OBJECT_ID_FIELD = "object_id";
+
+  private final ElasticsearchProperties elasticsearchProperties;
+  private final ReactiveElasticSearchClientConfig reactiveElasticSearchClientConfig;
+
+  @Override
+  public Flux<String> apply(QueryBuilder queryBuilder) {
+    return reactiveElasticSearchClientConfig
+        .reactiveElasticsearchClient()
+        .scroll(
+            new SearchRequest()
+                .indices(elasticsearchProperties.getFileCentricIndex())
+                .source(
+                    new SearchSourceBuilder()
+                        .query(queryBuilder)
+                        .size(elasticsearchProperties.getScrollPageSize())
+                        .fetchSource(false)
+                        .docValueField(OBJECT_ID_FIELD))
+                .scroll(
+                    new TimeValue(
+                        elasticsearchProperties.getScrollTimeoutMinutes(), TimeUnit.MINUTES)))
+        .map(this::objectIdFromHit);
+  }
+
+  private String objectIdFromHit(SearchHit hit) {
+    return Optional.ofNullable(hit.field(OBJECT_ID_FIELD))
+        .map(DocumentField::getValue)
+        .map(Object::toString)
+        .orElse(hit.getId());
+  }
+}
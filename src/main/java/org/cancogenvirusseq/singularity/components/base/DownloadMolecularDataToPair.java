@@ -7,8 +7,10 @@ import java.nio.charset.StandardCharsets;
 import java.util.function.Function;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.cancogenvirusseq.singularity.components.model.AnalysisDocument;
+import org.cancogenvirusseq.singularity.components.metrics.ArchiveBuildMetrics;
+import org.cancogenvirusseq.singularity.components.metrics.ArchiveBuildStats;
 import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentMolecularDataPair;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentRow;
 import org.cancogenvirusseq.singularity.config.s3Client.S3ClientProperties;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Flux;
@@ -21,46 +23,87 @@ import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 @Component
 @RequiredArgsConstructor
 public class DownloadMolecularDataToPair
-    implements Function<Flux<AnalysisDocument>, Flux<AnalysisDocumentMolecularDataPair>> {
+    implements Function<Flux<AnalysisDocumentRow>, Flux<AnalysisDocumentMolecularDataPair>> {
 
   private static final byte[] newlineBytes = "\n".getBytes(StandardCharsets.UTF_8);
 
   private final S3AsyncClient s3AsyncClient;
   private final S3ClientProperties s3ClientProperties;
+  private final ArchiveBuildMetrics archiveBuildMetrics;
+  private final MolecularDataFragmentCache molecularDataFragmentCache;
 
   @Override
   public Flux<AnalysisDocumentMolecularDataPair> apply(
-      Flux<AnalysisDocument> analysisDocumentFlux) {
-    return analysisDocumentFlux
+      Flux<AnalysisDocumentRow> analysisDocumentRowFlux) {
+    return analysisDocumentRowFlux
         .flatMap(
-            analysisDocument ->
-                // we can go straight to object storage and get the bytes as we know that these
-                // objects are already verified to be there by song/score else they wouldn't be
-                // in an AnalysisDocument, otherwise we would use the DownloadObjectById
-                // component here
-                Mono.fromFuture(
-                        s3AsyncClient.getObject(
-                            getObjectRequestForAnalysisDocument(analysisDocument),
-                            AsyncResponseTransformer.toBytes()))
-                    .map(
-                        getObjectResponseResponseBytes ->
-                            new AnalysisDocumentMolecularDataPair(
-                                analysisDocument,
-                                molecularDataBufferWithNewline(
-                                    getObjectResponseResponseBytes.asByteArray()))),
+            analysisDocumentRow ->
+                Mono.deferContextual(
+                    ctx ->
+                        molecularDataFragmentCache.isEnabledFor(ctx)
+                            ? cachedOrDownloadedPair(analysisDocumentRow)
+                            : downloadPair(analysisDocumentRow)),
             s3ClientProperties.getMaxConcurrency())
         .doOnError(
             throwable -> log.info("DownloadMolecularDataToPair" + throwable.getLocalizedMessage()));
   }
 
-  private GetObjectRequest getObjectRequestForAnalysisDocument(AnalysisDocument analysisDocument) {
+  private Mono<AnalysisDocumentMolecularDataPair> cachedOrDownloadedPair(
+      AnalysisDocumentRow analysisDocumentRow) {
+    return molecularDataFragmentCache
+        .get(analysisDocumentRow)
+        .map(
+            molecularData ->
+                new AnalysisDocumentMolecularDataPair(analysisDocumentRow, molecularData))
+        .switchIfEmpty(
+            Mono.defer(
+                () ->
+                    downloadPair(analysisDocumentRow)
+                        .flatMap(
+                            pair ->
+                                molecularDataFragmentCache
+                                    .put(analysisDocumentRow, pair.getMolecularData())
+                                    .thenReturn(pair))));
+  }
+
+  /** Downloads the molecular data of a single analysis from object storage, never from the cache */
+  public Mono<AnalysisDocumentMolecularDataPair> downloadPair(
+      AnalysisDocumentRow analysisDocumentRow) {
+    // we can go straight to object storage and get the bytes as we know that these
+    // objects are already verified to be there by song/score else they wouldn't be
+    // in an AnalysisDocument, otherwise we would use the DownloadObjectById
+    // component here
+    return timeDownload(
+            Mono.fromFuture(
+                () ->
+                    s3AsyncClient.getObject(
+                        getObjectRequestForAnalysisDocumentRow(analysisDocumentRow),
+                        AsyncResponseTransformer.toBytes())))
+        .map(
+            getObjectResponseResponseBytes ->
+                new AnalysisDocumentMolecularDataPair(
+                    analysisDocumentRow,
+                    molecularDataBufferWithNewline(getObjectResponseResponseBytes.asByteArray())));
+  }
+
+  /** Download metrics are recorded when running as part of an archive build */
+  private <T> Mono<T> timeDownload(Mono<T> download) {
+    return Mono.deferContextual(
+        ctx ->
+            ctx.<ArchiveBuildStats>getOrEmpty(ArchiveBuildMetrics.STATS_CONTEXT_KEY)
+                .map(stats -> archiveBuildMetrics.timeDownload(stats.getArchiveType(), download))
+                .orElse(download));
+  }
+
+  private GetObjectRequest getObjectRequestForAnalysisDocumentRow(
+      AnalysisDocumentRow analysisDocumentRow) {
     return GetObjectRequest.builder()
-        .key(format("%s/%s", s3ClientProperties.getDataDir(), analysisDocument.getObjectId().textValue()))
+        .key(format("%s/%s", s3ClientProperties.getDataDir(), analysisDocumentRow.getObjectId()))
         .bucket(s3ClientProperties.getBucket())
         .build();
   }
 
-  private byte[] molecularDataBufferWithNewline(byte[] molecularBytes) {
+  static byte[] molecularDataBufferWithNewline(byte[] molecularBytes) {
     return ByteBuffer.allocate(molecularBytes.length + newlineBytes.length)
         .put(molecularBytes)
         .put(newlineBytes)
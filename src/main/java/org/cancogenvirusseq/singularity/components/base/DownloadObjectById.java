@@ -10,6 +10,7 @@ import java.util.function.UnaryOperator;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.cancogenvirusseq.singularity.components.model.AwsSdkFluxResponse;
+import org.cancogenvirusseq.singularity.components.model.ByteRange;
 import org.cancogenvirusseq.singularity.components.utils.FluxResponseProvider;
 import org.cancogenvirusseq.singularity.config.s3Client.S3ClientProperties;
 import org.cancogenvirusseq.singularity.exceptions.runtime.S3DownloadFailedException;
@@ -18,6 +19,8 @@ import reactor.core.publisher.Mono;
 import software.amazon.awssdk.http.SdkHttpResponse;
 import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 
 @Slf4j
 @Component
@@ -28,16 +31,34 @@ public class DownloadObjectById implements Function<UUID, Mono<AwsSdkFluxRespons
 
   @Override
   public Mono<AwsSdkFluxResponse> apply(UUID objectId) {
+    return apply(objectId, null);
+  }
+
+  /** Download only the given byte range of the object, the whole object when the range is null */
+  public Mono<AwsSdkFluxResponse> apply(UUID objectId, ByteRange byteRange) {
     return Mono.fromFuture(
             s3AsyncClient.getObject(
-                getObjectRequestForObjectId(objectId), new FluxResponseProvider()))
+                getObjectRequestForObjectId(objectId, byteRange), new FluxResponseProvider()))
         .map(verifyResponse);
   }
 
-  private GetObjectRequest getObjectRequestForObjectId(UUID objectId) {
+  /** Size in bytes of the object, read with a HEAD request */
+  public Mono<Long> objectSize(UUID objectId) {
+    return Mono.fromFuture(
+            () ->
+                s3AsyncClient.headObject(
+                    HeadObjectRequest.builder()
+                        .key(format("%s/%s", s3ClientProperties.getDataDir(), objectId))
+                        .bucket(s3ClientProperties.getBucket())
+                        .build()))
+        .mapNotNull(HeadObjectResponse::contentLength);
+  }
+
+  private GetObjectRequest getObjectRequestForObjectId(UUID objectId, ByteRange byteRange) {
     return GetObjectRequest.builder()
         .key(format("%s/%s", s3ClientProperties.getDataDir(), objectId))
         .bucket(s3ClientProperties.getBucket())
+        .range(byteRange == null ? null : byteRange.toRangeHeaderValue())
         .build();
   }
 
@@ -7,6 +7,8 @@ import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.cancogenvirusseq.singularity.components.model.AnalysisDocument;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentRow;
+import org.cancogenvirusseq.singularity.components.utils.AnalysisDocumentRowDecoder;
 import org.cancogenvirusseq.singularity.config.elasticsearch.ElasticsearchProperties;
 import org.cancogenvirusseq.singularity.config.elasticsearch.ReactiveElasticSearchClientConfig;
 import org.elasticsearch.action.search.SearchRequest;
@@ -14,29 +16,45 @@ import org.elasticsearch.core.TimeValue;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Flux;
-import reactor.core.publisher.Mono;
 
 @Slf4j
 @Component
 @RequiredArgsConstructor
-public class ElasticSearchScroll implements Function<QueryBuilder, Flux<AnalysisDocument>> {
+public class ElasticSearchScroll implements Function<QueryBuilder, Flux<AnalysisDocumentRow>> {
   private final ElasticsearchProperties elasticsearchProperties;
   private final ReactiveElasticSearchClientConfig reactiveElasticSearchClientConfig;
   private final ObjectMapper objectMapper;
 
+  /**
+   * With more than one scroll slice configured the query is split into independent sliced scrolls
+   * that are read concurrently and merged, each slice prefetches at most one page of hits. The
+   * merged documents are not in any particular order.
+   */
   @Override
-  public Flux<AnalysisDocument> apply(QueryBuilder queryBuilder) {
-    return Mono.just(searchSourceBuilderFromQueryBuilder(queryBuilder))
-        .flatMapMany(this::executeScrollQuery)
-        .map(this::hitMapToAnalysisDocument);
+  public Flux<AnalysisDocumentRow> apply(QueryBuilder queryBuilder) {
+    int slices = elasticsearchProperties.getScrollSlices();
+
+    return Flux.range(0, slices)
+        .map(sliceId -> searchSourceBuilderFromQueryBuilder(queryBuilder, sliceId, slices))
+        .flatMap(this::executeScrollQuery, slices, elasticsearchProperties.getScrollPageSize())
+        .map(this::hitToAnalysisDocumentRow);
   }
 
-  private SearchSourceBuilder searchSourceBuilderFromQueryBuilder(QueryBuilder queryBuilder) {
-    return new SearchSourceBuilder()
-        .query(queryBuilder)
-        .fetchSource(AnalysisDocument.getEsIncludeFields(), null);
+  private SearchSourceBuilder searchSourceBuilderFromQueryBuilder(
+      QueryBuilder queryBuilder, Integer sliceId, Integer slices) {
+    SearchSourceBuilder searchSourceBuilder =
+        new SearchSourceBuilder()
+            .query(queryBuilder)
+            .size(elasticsearchProperties.getScrollPageSize())
+            .fetchSource(AnalysisDocument.getEsIncludeFields(), null);
+
+    // elasticsearch rejects a slice query with a max of one
+    return slices > 1
+        ? searchSourceBuilder.slice(new SliceBuilder(sliceId, slices))
+        : searchSourceBuilder;
   }
 
   private Flux<SearchHit> executeScrollQuery(SearchSourceBuilder searchSourceBuilder) {
@@ -51,8 +69,9 @@ public class ElasticSearchScroll implements Function<QueryBuilder, Flux<Analysis
                         elasticsearchProperties.getScrollTimeoutMinutes(), TimeUnit.MINUTES)));
   }
 
+  /** Parses the source bytes of the hit directly, without first copying them into a String */
   @SneakyThrows
-  private AnalysisDocument hitMapToAnalysisDocument(SearchHit hit) {
-    return objectMapper.readValue(hit.getSourceAsString(), AnalysisDocument.class);
+  private AnalysisDocumentRow hitToAnalysisDocumentRow(SearchHit hit) {
+    return AnalysisDocumentRowDecoder.decodeSource(objectMapper.getFactory(), hit.getSourceRef());
   }
 }
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.base;
+
+import static java.lang.String.format;
+import static org.cancogenvirusseq.singularity.components.model.FileBundle.DOWNLOAD_DIR;
+import static org.cancogenvirusseq.singularity.components.model.FileBundle.archiveFilenameFromArchiveId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.cancogenvirusseq.singularity.components.model.MultipartArchiveUpload;
+import org.cancogenvirusseq.singularity.config.s3Client.S3ClientProperties;
+import org.cancogenvirusseq.singularity.repository.model.Archive;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class FileBundleMultipartUpload {
+  // S3 rejects parts (other than the last) smaller than 5MiB
+  private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+
+  private final S3AsyncClient s3AsyncClient;
+  private final S3ClientProperties s3ClientProperties;
+
+  public MultipartArchiveUpload createMultipartArchiveUpload(Archive archive) {
+    return new MultipartArchiveUpload(
+        Paths.get(format("%s/%s", DOWNLOAD_DIR, archiveFilenameFromArchiveId(archive.getId()))),
+        archive.getFormat().getMediaType(),
+        Math.max(MIN_PART_SIZE, s3ClientProperties.getMultipartPartSizeBytes()));
+  }
+
+  /**
+   * Uploads the archive as it is written, parts are uploaded as soon as the archive file grows past
+   * them, the remaining parts are uploaded and the upload completed once the file bundle path is
+   * emitted. The upload is aborted if the file bundle errors, is cancelled or completes empty.
+   */
+  public Function<Flux<Path>, Flux<UUID>> uploadFileBundleWithMultipartUpload(
+      MultipartArchiveUpload multipartArchiveUpload) {
+    return fileBundlePathFlux ->
+        Mono.usingWhen(
+                createMultipartUpload(multipartArchiveUpload),
+                upload ->
+                    Mono.zip(
+                            upload
+                                .getReadyPartNumbers()
+                                .asFlux()
+                                .flatMap(
+                                    partNumber -> uploadPart(upload, partNumber),
+                                    s3ClientProperties.getMultipartUploadParallelism())
+                                .collectList(),
+                            fileBundlePathFlux
+                                .singleOrEmpty()
+                                .doFinally(signalType -> upload.archiveFinished()))
+                        .flatMap(
+                            uploadedPartsAndPath ->
+                                uploadRemainingParts(
+                                    upload,
+                                    uploadedPartsAndPath.getT1(),
+                                    uploadedPartsAndPath.getT2()))
+                        .flatMap(completedParts -> completeMultipartUpload(upload, completedParts))
+                        .doOnNext(
+                            objectId ->
+                                log.debug(
+                                    "Successfully uploaded archive: {} with multipart upload as objectId: {}",
+                                    upload.getArchivePath().getFileName(),
+                                    objectId)),
+                this::abortIncompleteMultipartUpload,
+                (upload, throwable) -> abortIncompleteMultipartUpload(upload),
+                this::abortIncompleteMultipartUpload)
+            .flux()
+            .log("ArchiveMultipartUpload");
+  }
+
+  private Mono<MultipartArchiveUpload> createMultipartUpload(MultipartArchiveUpload upload) {
+    return Mono.fromFuture(
+            () ->
+                s3AsyncClient.createMultipartUpload(
+                    CreateMultipartUploadRequest.builder()
+                        .bucket(s3ClientProperties.getBucket())
+                        .key(objectKey(upload))
+                        .contentType(upload.getContentType())
+                        .build()))
+        .map(
+            response -> {
+              upload.setUploadId(response.uploadId());
+              return upload;
+            });
+  }
+
+  private Mono<List<CompletedPart>> uploadRemainingParts(
+      MultipartArchiveUpload upload, List<CompletedPart> uploadedParts, Path archivePath) {
+    Set<Integer> uploadedPartNumbers =
+        uploadedParts.stream().map(CompletedPart::partNumber).collect(Collectors.toSet());
+
+    return Mono.fromCallable(() -> Files.size(archivePath))
+        .flatMapMany(
+            archiveSize ->
+                Flux.fromStream(
+                    IntStream.rangeClosed(1, upload.partCountForArchiveSize(archiveSize))
+                        .boxed()
+                        .filter(partNumber -> !uploadedPartNumbers.contains(partNumber))))
+        .flatMap(
+            partNumber -> uploadPart(upload, partNumber),
+            s3ClientProperties.getMultipartUploadParallelism())
+        .concatWithValues(uploadedParts.toArray(CompletedPart[]::new))
+        .sort(Comparator.comparing(CompletedPart::partNumber))
+        .collectList();
+  }
+
+  private Mono<CompletedPart> uploadPart(MultipartArchiveUpload upload, Integer partNumber) {
+    // the part is (re)read from disk on each attempt
+    return Mono.fromCallable(() -> readPart(upload, partNumber))
+        .subscribeOn(Schedulers.boundedElastic())
+        .flatMap(
+            partBuffer ->
+                Mono.fromFuture(
+                    () ->
+                        s3AsyncClient.uploadPart(
+                            UploadPartRequest.builder()
+                                .bucket(s3ClientProperties.getBucket())
+                                .key(objectKey(upload))
+                                .uploadId(upload.getUploadId())
+                                .partNumber(partNumber)
+                                .contentLength((long) partBuffer.remaining())
+                                .build(),
+                            AsyncRequestBody.fromByteBuffer(partBuffer))))
+        .map(
+            response ->
+                CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build())
+        .retryWhen(
+            Retry.backoff(s3ClientProperties.getMultipartPartMaxRetries(), Duration.ofSeconds(1))
+                .doBeforeRetry(
+                    retrySignal ->
+                        log.warn(
+                            "Retrying upload of part {} for archive {}: {}",
+                            partNumber,
+                            upload.getArchivePath().getFileName(),
+                            retrySignal.failure().getLocalizedMessage())));
+  }
+
+  private ByteBuffer readPart(MultipartArchiveUpload upload, Integer partNumber)
+      throws IOException {
+    try (FileChannel fileChannel =
+        FileChannel.open(upload.getArchivePath(), StandardOpenOption.READ)) {
+      long partStart = (partNumber - 1) * upload.getPartSize();
+      long partEnd = Math.min(partStart + upload.getPartSize(), fileChannel.size());
+
+      ByteBuffer partBuffer = ByteBuffer.allocate((int) (partEnd - partStart));
+      while (partBuffer.hasRemaining()) {
+        if (fileChannel.read(partBuffer, partStart + partBuffer.position()) < 0) {
+          throw new IOException(format("Unexpected end of archive reading part %s", partNumber));
+        }
+      }
+      return partBuffer.flip();
+    }
+  }
+
+  private Mono<UUID> completeMultipartUpload(
+      MultipartArchiveUpload upload, List<CompletedPart> completedParts) {
+    return Mono.fromFuture(
+            () ->
+                s3AsyncClient.completeMultipartUpload(
+                    CompleteMultipartUploadRequest.builder()
+                        .bucket(s3ClientProperties.getBucket())
+                        .key(objectKey(upload))
+                        .uploadId(upload.getUploadId())
+                        .multipartUpload(
+                            CompletedMultipartUpload.builder().parts(completedParts).build())
+                        .build()))
+        .map(
+            response -> {
+              // completed uploads can no longer be aborted
+              upload.setUploadId(null);
+              return upload.getObjectId();
+            });
+  }
+
+  private Mono<Void> abortIncompleteMultipartUpload(MultipartArchiveUpload upload) {
+    // the uploadId is cleared once the upload has been completed
+    if (upload.getUploadId() == null) {
+      return Mono.empty();
+    }
+
+    return Mono.fromFuture(
+            () ->
+                s3AsyncClient.abortMultipartUpload(
+                    AbortMultipartUploadRequest.builder()
+                        .bucket(s3ClientProperties.getBucket())
+                        .key(objectKey(upload))
+                        .uploadId(upload.getUploadId())
+                        .build()))
+        .doOnNext(
+            response ->
+                log.info(
+                    "Aborted multipart upload for archive: {}",
+                    upload.getArchivePath().getFileName()))
+        .onErrorResume(
+            throwable -> {
+              log.error(throwable.getLocalizedMessage(), throwable);
+              return Mono.empty();
+            })
+        .then();
+  }
+
+  private String objectKey(MultipartArchiveUpload upload) {
+    return format("%s/%s", s3ClientProperties.getDataDir(), upload.getObjectId());
+  }
+}
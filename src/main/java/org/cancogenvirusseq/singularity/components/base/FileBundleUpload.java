@@ -16,6 +16,7 @@ import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.cancogenvirusseq.singularity.config.s3Client.S3ClientProperties;
 import org.cancogenvirusseq.singularity.exceptions.runtime.S3ArchiveUploadException;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveFormat;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Mono;
 import reactor.netty.ByteBufFlux;
@@ -31,21 +32,23 @@ import software.amazon.awssdk.services.s3.presigner.model.PutObjectPresignReques
 @Component
 @RequiredArgsConstructor
 public class FileBundleUpload implements Function<Path, Mono<UUID>> {
-  private final String ARCHIVE_MEDIA_TYPE = "application/x-gtar";
-
   private final S3Presigner s3Presigner;
   private final S3ClientProperties s3ClientProperties;
 
   @Override
   public Mono<UUID> apply(Path fileBundlePath) {
+    return apply(fileBundlePath, ArchiveFormat.TAR_GZ.getMediaType());
+  }
+
+  public Mono<UUID> apply(Path fileBundlePath, String contentType) {
     return HttpClient.create()
         .headers(
             h -> {
               h.set(HttpHeaderNames.CONTENT_LENGTH, getFileSize(fileBundlePath));
-              h.set(HttpHeaderNames.CONTENT_TYPE, ARCHIVE_MEDIA_TYPE);
+              h.set(HttpHeaderNames.CONTENT_TYPE, contentType);
             })
         .put()
-        .uri(getPresignedUrlStringForFileBundle(fileBundlePath))
+        .uri(getPresignedUrlStringForFileBundle(fileBundlePath, contentType))
         .send(ByteBufFlux.fromPath(fileBundlePath))
         .response()
         .doOnNext(
@@ -58,14 +61,14 @@ public class FileBundleUpload implements Function<Path, Mono<UUID>> {
         .log("ArchiveUpload");
   }
 
-  private final BiFunction<S3ClientProperties, Path, PutObjectRequest> createPutObjectRequest =
-      (s3ClientProperties, fileBundlePath) ->
-          PutObjectRequest.builder()
-              .key(format("%s/%s", s3ClientProperties.getDataDir(), UUID.randomUUID()))
-              .bucket(s3ClientProperties.getBucket())
-              .contentLength(getFileSize(fileBundlePath))
-              .contentType(ARCHIVE_MEDIA_TYPE)
-              .build();
+  private PutObjectRequest createPutObjectRequest(Path fileBundlePath, String contentType) {
+    return PutObjectRequest.builder()
+        .key(format("%s/%s", s3ClientProperties.getDataDir(), UUID.randomUUID()))
+        .bucket(s3ClientProperties.getBucket())
+        .contentLength(getFileSize(fileBundlePath))
+        .contentType(contentType)
+        .build();
+  }
 
   private PutObjectPresignRequest createPutObjectPresignRequest(PutObjectRequest putObjectRequest) {
     return PutObjectPresignRequest.builder()
@@ -77,15 +80,13 @@ public class FileBundleUpload implements Function<Path, Mono<UUID>> {
   private final BiFunction<S3Presigner, PutObjectPresignRequest, PresignedPutObjectRequest>
       createPresignedPutObjectRequest = S3Presigner::presignPutObject;
 
-  private String getPresignedUrlStringForFileBundle(Path fileBundlePath) {
-    return createPutObjectRequest
-        .andThen(putObjectPreSignRequest-> createPutObjectPresignRequest(putObjectPreSignRequest))
-        .andThen(
-            putObjectPreSignRequest ->
-                createPresignedPutObjectRequest.apply(s3Presigner, putObjectPreSignRequest))
+  private String getPresignedUrlStringForFileBundle(Path fileBundlePath, String contentType) {
+    return createPresignedPutObjectRequest
         .andThen(PresignedRequest::url)
         .andThen(URL::toString)
-        .apply(s3ClientProperties, fileBundlePath);
+        .apply(
+            s3Presigner,
+            createPutObjectPresignRequest(createPutObjectRequest(fileBundlePath, contentType)));
   }
 
   @SneakyThrows
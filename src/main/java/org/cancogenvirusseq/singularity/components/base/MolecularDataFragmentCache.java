@@ -0,0 +1,450 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.base;
+
+import static java.lang.String.format;
+
+import com.google.common.hash.Hashing;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.cancogenvirusseq.singularity.components.metrics.ArchiveBuildMetrics;
+import org.cancogenvirusseq.singularity.components.metrics.ArchiveBuildStats;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentRow;
+import org.cancogenvirusseq.singularity.components.model.CompressedFragment;
+import org.cancogenvirusseq.singularity.components.model.MolecularDataChunk;
+import org.cancogenvirusseq.singularity.components.utils.ArchiveManifestUtils;
+import org.cancogenvirusseq.singularity.components.utils.LruSizeIndex;
+import org.cancogenvirusseq.singularity.components.utils.TsvRowEncoder;
+import org.cancogenvirusseq.singularity.components.utils.TsvUtils;
+import org.cancogenvirusseq.singularity.config.fragmentCache.FragmentCacheProperties;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.context.ContextView;
+
+/**
+ * Local disk cache of the rendered fragments of each analysis: the newline terminated molecular
+ * data and the encoded tsv row, stored together in one file per objectId and last updated at. They
+ * are stored either as they are or as gzip members (see {@link CompressedFragment}) depending on
+ * how the archive is built. A document that changes gets a new key so entries never go stale, the
+ * old ones are simply evicted once they are the least recently used and the cache is over its size
+ * cap. The tsv format is part of the key as well so rows rendered with a different list separator
+ * or time zone aren't reused. Only builds of the configured archive types read and fill the cache,
+ * the index is rebuilt from the files on disk (oldest modified first) at start up and a hit bumps
+ * the modified time of its file.
+ */
+@Slf4j
+@Component
+public class MolecularDataFragmentCache {
+  private static final int UPDATED_AT_COLUMN =
+      TsvUtils.getColumnSourcePaths().indexOf("analysis.updatedAt");
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+  private static final String COMPRESSED_FILE_SUFFIX = ".gz";
+
+  private final FragmentCacheProperties fragmentCacheProperties;
+  private final Path directory;
+  private final LruSizeIndex index;
+
+  public MolecularDataFragmentCache(FragmentCacheProperties fragmentCacheProperties) {
+    this.fragmentCacheProperties = fragmentCacheProperties;
+    this.directory = Paths.get(fragmentCacheProperties.getDirectory());
+    this.index = new LruSizeIndex(fragmentCacheProperties.getMaxSizeBytes());
+  }
+
+  @PostConstruct
+  public void init() {
+    if (fragmentCacheProperties.getArchiveTypes().isEmpty()) {
+      return;
+    }
+
+    try {
+      Files.createDirectories(directory);
+      try (Stream<Path> files = Files.list(directory)) {
+        // temp files were left by writes that never finished
+        List<Path> cachedFiles =
+            files
+                .filter(this::deleteIfTempFile)
+                .sorted(Comparator.comparing(this::lastModifiedMillis))
+                .collect(Collectors.toList());
+        cachedFiles.forEach(
+            file ->
+                index
+                    .put(file.getFileName().toString(), file.toFile().length())
+                    .forEach(this::delete));
+      }
+      log.info(
+          "Fragment cache {} holds {} fragments ({} bytes)",
+          directory,
+          index.size(),
+          index.getTotalSize());
+    } catch (IOException e) {
+      log.error("Fragment cache {} could not be loaded: {}", directory, e.getLocalizedMessage());
+    }
+  }
+
+  /** The cache is only used by builds of the configured archive types */
+  public boolean isEnabledFor(ContextView ctx) {
+    return ctx.<ArchiveBuildStats>getOrEmpty(ArchiveBuildMetrics.STATS_CONTEXT_KEY)
+        .map(stats -> fragmentCacheProperties.getArchiveTypes().contains(stats.getArchiveType()))
+        .orElse(false);
+  }
+
+  /**
+   * Emits the cached molecular data (newline terminated) of the analysis and sets its encoded tsv
+   * row, empty when it isn't cached
+   */
+  public Mono<byte[]> get(AnalysisDocumentRow analysisDocumentRow) {
+    return Mono.justOrEmpty(keyForAnalysisDocumentRow(analysisDocumentRow))
+        .filter(index::touch)
+        .flatMap(key -> Mono.fromCallable(() -> read(key, analysisDocumentRow)))
+        .subscribeOn(Schedulers.boundedElastic())
+        .transform(this::countHit);
+  }
+
+  /** Emits the cached compressed fragment of the analysis, empty when it isn't cached */
+  public Mono<CompressedFragment> getCompressed(AnalysisDocumentRow analysisDocumentRow) {
+    return Mono.justOrEmpty(keyForAnalysisDocumentRow(analysisDocumentRow))
+        .map(key -> key + COMPRESSED_FILE_SUFFIX)
+        .filter(index::touch)
+        .flatMap(key -> Mono.fromCallable(() -> readCompressed(key, analysisDocumentRow)))
+        .subscribeOn(Schedulers.boundedElastic())
+        .transform(this::countHit);
+  }
+
+  /** Caches the molecular data (newline terminated) and the encoded tsv row of the analysis */
+  public Mono<Void> put(AnalysisDocumentRow analysisDocumentRow, byte[] molecularData) {
+    return Mono.justOrEmpty(keyForAnalysisDocumentRow(analysisDocumentRow))
+        .doOnNext(
+            key -> {
+              FragmentWriter writer = rawFragmentWriter(key, analysisDocumentRow);
+              try {
+                writer.write(ByteBuffer.wrap(molecularData));
+                writer.commit();
+              } finally {
+                writer.close();
+              }
+            })
+        .subscribeOn(Schedulers.boundedElastic())
+        .then();
+  }
+
+  /** Caches the compressed fragment of an analysis */
+  public Mono<Void> putCompressed(CompressedFragment compressedFragment) {
+    return Mono.justOrEmpty(keyForAnalysisDocumentRow(compressedFragment.getAnalysisDocumentRow()))
+        .doOnNext(
+            key -> {
+              FragmentWriter writer = new FragmentWriter(key + COMPRESSED_FILE_SUFFIX);
+              try {
+                writer.write(
+                    ByteBuffer.allocate(
+                            3 * Integer.BYTES
+                                + compressedFragment.getTsvRowMember().length
+                                + compressedFragment.getMolecularDataMember().length)
+                        .putInt(compressedFragment.getTsvRowLength())
+                        .putInt(compressedFragment.getTsvRowMember().length)
+                        .put(compressedFragment.getTsvRowMember())
+                        .putInt(compressedFragment.getMolecularDataLength())
+                        .put(compressedFragment.getMolecularDataMember())
+                        .flip());
+                writer.commit();
+              } finally {
+                writer.close();
+              }
+            })
+        .subscribeOn(Schedulers.boundedElastic())
+        .then();
+  }
+
+  /**
+   * Writes the molecular data chunks of the analysis to the cache as they pass through, the entry
+   * is only added once the last chunk has passed
+   */
+  public Flux<MolecularDataChunk> putChunks(
+      AnalysisDocumentRow analysisDocumentRow, Flux<MolecularDataChunk> molecularDataChunkFlux) {
+    Optional<String> key = keyForAnalysisDocumentRow(analysisDocumentRow);
+
+    if (key.isEmpty()) {
+      return molecularDataChunkFlux;
+    }
+
+    return Flux.using(
+        () -> rawFragmentWriter(key.get(), analysisDocumentRow),
+        writer ->
+            molecularDataChunkFlux
+                .doOnNext(chunk -> writer.write(chunk.getData()))
+                .doOnComplete(writer::commit),
+        FragmentWriter::close);
+  }
+
+  /** Analyses without a last updated at can't be told apart from their older versions */
+  private Optional<String> keyForAnalysisDocumentRow(AnalysisDocumentRow analysisDocumentRow) {
+    String[] tsvValues = analysisDocumentRow.getTsvValues();
+    if (analysisDocumentRow.getObjectId() == null
+        || tsvValues == null
+        || tsvValues.length <= UPDATED_AT_COLUMN
+        || tsvValues[UPDATED_AT_COLUMN] == null
+        || tsvValues[UPDATED_AT_COLUMN].isEmpty()) {
+      return Optional.empty();
+    }
+
+    return Optional.of(
+        Hashing.sha256()
+            .hashString(
+                format(
+                    "%s\t%s\t%s",
+                    ArchiveManifestUtils.currentTsvFormat(),
+                    analysisDocumentRow.getObjectId(),
+                    tsvValues[UPDATED_AT_COLUMN]),
+                StandardCharsets.UTF_8)
+            .toString());
+  }
+
+  /** Files hold the tsv row length, the tsv row and then the molecular data */
+  private byte[] read(String key, AnalysisDocumentRow analysisDocumentRow) throws IOException {
+    ByteBuffer fragment = readFile(key);
+    if (fragment == null) {
+      return null;
+    }
+
+    try {
+      byte[] encodedTsvRow = new byte[fragment.getInt()];
+      fragment.get(encodedTsvRow);
+      byte[] molecularData = new byte[fragment.remaining()];
+      fragment.get(molecularData);
+
+      analysisDocumentRow.setEncodedTsvRow(encodedTsvRow);
+      return molecularData;
+    } catch (RuntimeException e) {
+      deleteCorrupt(key);
+      return null;
+    }
+  }
+
+  /**
+   * Compressed files hold the tsv row length, the tsv row member length, the tsv row member, the
+   * molecular data length and then the molecular data member
+   */
+  private CompressedFragment readCompressed(String key, AnalysisDocumentRow analysisDocumentRow)
+      throws IOException {
+    ByteBuffer fragment = readFile(key);
+    if (fragment == null) {
+      return null;
+    }
+
+    try {
+      int tsvRowLength = fragment.getInt();
+      byte[] tsvRowMember = new byte[fragment.getInt()];
+      fragment.get(tsvRowMember);
+      int molecularDataLength = fragment.getInt();
+      byte[] molecularDataMember = new byte[fragment.remaining()];
+      fragment.get(molecularDataMember);
+
+      return new CompressedFragment(
+          analysisDocumentRow,
+          molecularDataMember,
+          molecularDataLength,
+          tsvRowMember,
+          tsvRowLength);
+    } catch (RuntimeException e) {
+      deleteCorrupt(key);
+      return null;
+    }
+  }
+
+  private ByteBuffer readFile(String key) throws IOException {
+    Path file = directory.resolve(key);
+    try {
+      ByteBuffer fragment = ByteBuffer.wrap(Files.readAllBytes(file));
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+      return fragment;
+    } catch (NoSuchFileException e) {
+      // evicted since it was looked up
+      index.remove(key);
+      return null;
+    }
+  }
+
+  private void deleteCorrupt(String key) {
+    log.warn("Fragment cache file {} is corrupt and was deleted", directory.resolve(key));
+    index.remove(key);
+    delete(key);
+  }
+
+  private <T> Mono<T> countHit(Mono<T> cached) {
+    return cached.flatMap(
+        hit ->
+            Mono.deferContextual(
+                ctx -> {
+                  ctx.<ArchiveBuildStats>getOrEmpty(ArchiveBuildMetrics.STATS_CONTEXT_KEY)
+                      .ifPresent(stats -> stats.getFragmentCacheHits().increment());
+                  return Mono.just(hit);
+                }));
+  }
+
+  /**
+   * The encoded tsv row is written ahead of the molecular data and also set on the analysis so the
+   * file bundle doesn't encode it again
+   */
+  private FragmentWriter rawFragmentWriter(String key, AnalysisDocumentRow analysisDocumentRow) {
+    FragmentWriter writer = new FragmentWriter(key);
+
+    try {
+      ByteArrayOutputStream tsvRow = new ByteArrayOutputStream();
+      new TsvRowEncoder().writeRow(analysisDocumentRow, tsvRow);
+      byte[] encodedTsvRow = tsvRow.toByteArray();
+      analysisDocumentRow.setEncodedTsvRow(encodedTsvRow);
+
+      writer.write(
+          ByteBuffer.allocate(Integer.BYTES + encodedTsvRow.length)
+              .putInt(encodedTsvRow.length)
+              .put(encodedTsvRow)
+              .flip());
+    } catch (IOException e) {
+      writer.abort(e);
+    }
+
+    return writer;
+  }
+
+  private boolean deleteIfTempFile(Path file) {
+    if (file.getFileName().toString().endsWith(TEMP_FILE_SUFFIX)) {
+      delete(file);
+      return false;
+    }
+    return true;
+  }
+
+  private long lastModifiedMillis(Path file) {
+    return file.toFile().lastModified();
+  }
+
+  private void delete(String key) {
+    delete(directory.resolve(key));
+  }
+
+  private void delete(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      log.error("Fragment cache file {} could not be deleted: {}", file, e.getLocalizedMessage());
+    }
+  }
+
+  /**
+   * Writes a fragment to a temp file that is moved in place on commit, write failures are logged
+   * and only stop the fragment from being cached
+   */
+  private class FragmentWriter {
+    private final String key;
+    private final Path tempFile;
+    private FileChannel channel;
+    private boolean committed = false;
+
+    FragmentWriter(String key) {
+      this.key = key;
+      this.tempFile =
+          directory.resolve(format("%s.%s%s", key, UUID.randomUUID(), TEMP_FILE_SUFFIX));
+
+      try {
+        this.channel =
+            FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+      } catch (IOException e) {
+        abort(e);
+      }
+    }
+
+    void write(ByteBuffer data) {
+      if (channel == null) {
+        return;
+      }
+
+      try {
+        // the chunk itself is still to be written to the archive
+        ByteBuffer duplicate = data.duplicate();
+        while (duplicate.hasRemaining()) {
+          channel.write(duplicate);
+        }
+      } catch (IOException e) {
+        abort(e);
+      }
+    }
+
+    void commit() {
+      if (channel == null) {
+        return;
+      }
+
+      try {
+        long size = channel.size();
+        channel.close();
+        channel = null;
+        Files.move(
+            tempFile,
+            directory.resolve(key),
+            StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+        committed = true;
+        index.put(key, size).forEach(MolecularDataFragmentCache.this::delete);
+      } catch (IOException e) {
+        abort(e);
+      }
+    }
+
+    void close() {
+      if (!committed) {
+        abort(null);
+      }
+    }
+
+    void abort(IOException e) {
+      if (e != null) {
+        log.warn("Fragment cache write of {} failed: {}", key, e.getLocalizedMessage());
+      }
+
+      try {
+        if (channel != null) {
+          channel.close();
+        }
+      } catch (IOException closeException) {
+        log.error(closeException.getLocalizedMessage(), closeException);
+      } finally {
+        channel = null;
+        delete(tempFile);
+      }
+    }
+  }
+}
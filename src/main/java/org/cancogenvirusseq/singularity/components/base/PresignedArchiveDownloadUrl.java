@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.singularity.components.base;
+
+import static java.lang.String.format;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.time.Duration;
+import java.util.function.Function;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.cancogenvirusseq.singularity.config.s3Client.S3ClientProperties;
+import org.cancogenvirusseq.singularity.repository.model.Archive;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+
+/**
+ * Presigns a short lived GET of an archive object so a download can be redirected to the object
+ * store instead of being proxied through this service. The response headers S3 sends are set in the
+ * signed url so the download is still saved under the archive's filename.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class PresignedArchiveDownloadUrl implements Function<Archive, URI> {
+  private final S3Presigner s3Presigner;
+  private final S3ClientProperties s3ClientProperties;
+
+  @Override
+  @SneakyThrows(URISyntaxException.class)
+  public URI apply(Archive archive) {
+    return s3Presigner
+        .presignGetObject(
+            GetObjectPresignRequest.builder()
+                .signatureDuration(
+                    Duration.ofMinutes(s3ClientProperties.getPresignedDownloadExpiresMins()))
+                .getObjectRequest(
+                    GetObjectRequest.builder()
+                        .key(
+                            format("%s/%s", s3ClientProperties.getDataDir(), archive.getObjectId()))
+                        .bucket(s3ClientProperties.getBucket())
+                        .responseContentDisposition(
+                            format(
+                                "attachment; filename=%s",
+                                Archive.parseFilenameFromArchive(archive)))
+                        .responseContentType(archive.getFormat().getMediaType())
+                        .build())
+                .build())
+        .url()
+        .toURI();
+  }
+}
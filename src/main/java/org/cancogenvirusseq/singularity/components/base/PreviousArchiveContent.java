@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.base;
+
+import static java.lang.String.format;
+import static org.cancogenvirusseq.singularity.components.model.FileBundle.DOWNLOAD_DIR;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentMolecularDataPair;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentRow;
+import org.cancogenvirusseq.singularity.components.model.ArchiveManifestEntry;
+import org.cancogenvirusseq.singularity.components.model.FileBundle;
+import org.cancogenvirusseq.singularity.components.utils.TsvUtils;
+import org.cancogenvirusseq.singularity.config.s3Client.S3ClientProperties;
+import org.cancogenvirusseq.singularity.repository.model.Archive;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+
+/**
+ * Reads the rows of a previously built archive back as molecular data pairs so that they can be
+ * written to a new archive without downloading each molecular data object again. The archive is
+ * downloaded to disk once and its molecular and metadata entries are read side by side, the
+ * manifest of the archive gives the size of each row in both entries.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class PreviousArchiveContent {
+  private static final String PREVIOUS_ARCHIVE_FILE_NAME_TEMPLATE = "previous-archive-";
+
+  private final S3AsyncClient s3AsyncClient;
+  private final S3ClientProperties s3ClientProperties;
+
+  /**
+   * Pairs for the rows of the previous archive in manifest order, skipping the rows for the given
+   * objectIds
+   *
+   * @param previousArchive the completed archive to read the rows from
+   * @param archiveId the id of the archive being built, names the local copy of the previous one
+   * @param manifest the manifest of the previous archive
+   * @param excludedObjectIds objectIds of the rows not to emit (superseded rows)
+   */
+  public Flux<AnalysisDocumentMolecularDataPair> pairsExcludingObjectIds(
+      Archive previousArchive,
+      UUID archiveId,
+      List<ArchiveManifestEntry> manifest,
+      Set<String> excludedObjectIds) {
+    Path previousArchivePath =
+        Paths.get(
+            format(
+                "%s/%s%s%s",
+                DOWNLOAD_DIR,
+                PREVIOUS_ARCHIVE_FILE_NAME_TEMPLATE,
+                archiveId,
+                FileBundle.ARCHIVE_EXTENSION));
+
+    return Flux.usingWhen(
+        downloadPreviousArchive(previousArchive, previousArchivePath),
+        path ->
+            Flux.using(
+                    () -> new PreviousArchiveRows(path, manifest.iterator()),
+                    previousArchiveRows ->
+                        Flux.<AnalysisDocumentMolecularDataPair>generate(
+                            sink -> {
+                              try {
+                                AnalysisDocumentMolecularDataPair pair =
+                                    previousArchiveRows.nextPair(excludedObjectIds);
+                                if (pair == null) {
+                                  sink.complete();
+                                } else {
+                                  sink.next(pair);
+                                }
+                              } catch (IOException e) {
+                                sink.error(e);
+                              }
+                            }),
+                    PreviousArchiveRows::close)
+                .subscribeOn(Schedulers.boundedElastic()),
+        path -> deletePreviousArchive(path));
+  }
+
+  private Mono<Path> downloadPreviousArchive(Archive previousArchive, Path previousArchivePath) {
+    return Mono.fromCallable(() -> Files.deleteIfExists(previousArchivePath))
+        .then(
+            Mono.fromFuture(
+                () ->
+                    s3AsyncClient.getObject(
+                        GetObjectRequest.builder()
+                            .bucket(s3ClientProperties.getBucket())
+                            .key(
+                                format(
+                                    "%s/%s",
+                                    s3ClientProperties.getDataDir(), previousArchive.getObjectId()))
+                            .build(),
+                        AsyncResponseTransformer.toFile(previousArchivePath))))
+        .doOnNext(
+            response ->
+                log.debug(
+                    "Downloaded previous archive {} to {}",
+                    previousArchive.getId(),
+                    previousArchivePath))
+        .thenReturn(previousArchivePath);
+  }
+
+  private Mono<Void> deletePreviousArchive(Path previousArchivePath) {
+    return Mono.fromRunnable(
+        () -> {
+          try {
+            Files.deleteIfExists(previousArchivePath);
+          } catch (IOException e) {
+            log.error(e.getLocalizedMessage(), e);
+          }
+        });
+  }
+
+  /** The molecular and metadata entries of an archive, each read with its own stream */
+  private static class PreviousArchiveRows implements Closeable {
+    private final Iterator<ArchiveManifestEntry> manifestEntries;
+    private final TarArchiveInputStream molecularInputStream;
+    private final TarArchiveInputStream metadataInputStream;
+
+    private PreviousArchiveRows(Path archivePath, Iterator<ArchiveManifestEntry> manifestEntries)
+        throws IOException {
+      this.manifestEntries = manifestEntries;
+      this.molecularInputStream = openAtEntry(archivePath, FileBundle.MOLECULAR_FILE_EXTENSION);
+      this.metadataInputStream = openAtEntry(archivePath, FileBundle.METADATA_FILE_EXTENSION);
+
+      // the manifest tsv format matches the current one, so does the header
+      IOUtils.skip(metadataInputStream, TsvUtils.getHeader().length);
+    }
+
+    /** The next pair not excluded, null once all rows of the manifest have been read */
+    private AnalysisDocumentMolecularDataPair nextPair(Set<String> excludedObjectIds)
+        throws IOException {
+      while (manifestEntries.hasNext()) {
+        ArchiveManifestEntry entry = manifestEntries.next();
+
+        if (excludedObjectIds.contains(entry.getObjectId())) {
+          skipFully(molecularInputStream, entry.getMolecularDataLength());
+          skipFully(metadataInputStream, entry.getTsvRowLength());
+          continue;
+        }
+
+        byte[] molecularData = readFully(molecularInputStream, entry.getMolecularDataLength());
+        String tsvRow =
+            new String(
+                readFully(metadataInputStream, entry.getTsvRowLength()), StandardCharsets.UTF_8);
+
+        // re-encoding the split values gives back the same row bytes
+        AnalysisDocumentRow analysisDocumentRow =
+            new AnalysisDocumentRow(tsvRow.substring(0, tsvRow.length() - 1).split("\t", -1));
+        analysisDocumentRow.setObjectId(entry.getObjectId());
+
+        return new AnalysisDocumentMolecularDataPair(analysisDocumentRow, molecularData);
+      }
+      return null;
+    }
+
+    @Override
+    public void close() {
+      closeQuietly(molecularInputStream);
+      closeQuietly(metadataInputStream);
+    }
+
+    private static TarArchiveInputStream openAtEntry(Path archivePath, String entryExtension)
+        throws IOException {
+      // archives are written as multiple concatenated gzip members
+      TarArchiveInputStream tarArchiveInputStream =
+          new TarArchiveInputStream(
+              new GzipCompressorInputStream(
+                  new BufferedInputStream(Files.newInputStream(archivePath)), true));
+
+      TarArchiveEntry entry;
+      while ((entry = tarArchiveInputStream.getNextTarEntry()) != null) {
+        if (entry.getName().endsWith(entryExtension)) {
+          return tarArchiveInputStream;
+        }
+      }
+
+      tarArchiveInputStream.close();
+      throw new IOException(
+          format("Previous archive %s has no %s entry", archivePath, entryExtension));
+    }
+
+    private static byte[] readFully(InputStream inputStream, int length) throws IOException {
+      byte[] bytes = new byte[length];
+      if (IOUtils.readFully(inputStream, bytes) != length) {
+        throw new IOException("Unexpected end of previous archive entry");
+      }
+      return bytes;
+    }
+
+    private static void skipFully(InputStream inputStream, int length) throws IOException {
+      if (IOUtils.skip(inputStream, length) != length) {
+        throw new IOException("Unexpected end of previous archive entry");
+      }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        log.error(e.getLocalizedMessage(), e);
+      }
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.base;
+
+import static java.lang.String.format;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.cancogenvirusseq.singularity.components.metrics.ArchiveBuildMetrics;
+import org.cancogenvirusseq.singularity.components.metrics.ArchiveBuildStats;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentRow;
+import org.cancogenvirusseq.singularity.components.model.AwsSdkFluxResponse;
+import org.cancogenvirusseq.singularity.components.model.MolecularDataChunk;
+import org.cancogenvirusseq.singularity.components.utils.ByteBudget;
+import org.cancogenvirusseq.singularity.components.utils.FluxResponseProvider;
+import org.cancogenvirusseq.singularity.config.s3Client.S3ClientProperties;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+
+/**
+ * Streams the molecular data of each analysis as the chunks of the S3 response body instead of
+ * buffering whole objects. Up to maxConcurrency objects are downloaded at once and their chunks are
+ * emitted in the order of the analysis document rows, the analysis currently being written passes
+ * straight through while the chunks of the ones after it wait in memory. The chunks waiting in
+ * memory are bounded by a byte budget shared by all builds, once it is used up those downloads stop
+ * reading until chunks are written and released. The analysis being written always bypasses the
+ * budget so that it can never be starved by the ones waiting behind it.
+ */
+@Slf4j
+@Component
+public class StreamMolecularDataToChunks
+    implements Function<Flux<AnalysisDocumentRow>, Flux<MolecularDataChunk>> {
+
+  private static final byte[] newlineBytes = "\n".getBytes(StandardCharsets.UTF_8);
+
+  private final S3AsyncClient s3AsyncClient;
+  private final S3ClientProperties s3ClientProperties;
+  private final ArchiveBuildMetrics archiveBuildMetrics;
+  private final MolecularDataFragmentCache molecularDataFragmentCache;
+  private final ByteBudget byteBudget;
+
+  public StreamMolecularDataToChunks(
+      S3AsyncClient s3AsyncClient,
+      S3ClientProperties s3ClientProperties,
+      ArchiveBuildMetrics archiveBuildMetrics,
+      MolecularDataFragmentCache molecularDataFragmentCache) {
+    this.s3AsyncClient = s3AsyncClient;
+    this.s3ClientProperties = s3ClientProperties;
+    this.archiveBuildMetrics = archiveBuildMetrics;
+    this.molecularDataFragmentCache = molecularDataFragmentCache;
+    this.byteBudget = new ByteBudget(s3ClientProperties.getStreamingDownloadBudgetBytes());
+  }
+
+  @Override
+  public Flux<MolecularDataChunk> apply(Flux<AnalysisDocumentRow> analysisDocumentRowFlux) {
+    return Flux.defer(
+            () -> {
+              // index of the analysis being written, each subscription writes its own sequence
+              AtomicLong writingIndex = new AtomicLong(0);
+
+              return analysisDocumentRowFlux
+                  .index()
+                  .flatMapSequential(
+                      indexedRow ->
+                          streamMolecularData(
+                              indexedRow.getT2(),
+                              () -> writingIndex.get() == indexedRow.getT1(),
+                              () -> {
+                                // the next analysis may now bypass the budget
+                                writingIndex.set(indexedRow.getT1() + 1);
+                                byteBudget.wakeUp();
+                              }),
+                      s3ClientProperties.getMaxConcurrency(),
+                      // the byte budget is what bounds the chunks waiting in memory
+                      Integer.MAX_VALUE);
+            })
+        .doOnDiscard(MolecularDataChunk.class, MolecularDataChunk::release)
+        .doOnError(
+            throwable -> log.info("StreamMolecularDataToChunks" + throwable.getLocalizedMessage()));
+  }
+
+  /**
+   * A cached analysis is passed on as a single chunk read from disk, it isn't held against the
+   * budget as fragments are small and at most maxConcurrency of them are read ahead
+   */
+  private Flux<MolecularDataChunk> streamMolecularData(
+      AnalysisDocumentRow analysisDocumentRow, BooleanSupplier isWriting, Runnable onWritten) {
+    return Flux.deferContextual(
+        ctx ->
+            molecularDataFragmentCache.isEnabledFor(ctx)
+                ? molecularDataFragmentCache
+                    .get(analysisDocumentRow)
+                    .map(
+                        molecularData ->
+                            new MolecularDataChunk(
+                                ByteBuffer.wrap(molecularData), analysisDocumentRow, onWritten))
+                    .flux()
+                    .switchIfEmpty(
+                        molecularDataFragmentCache.putChunks(
+                            analysisDocumentRow,
+                            downloadMolecularData(analysisDocumentRow, isWriting, onWritten)))
+                : downloadMolecularData(analysisDocumentRow, isWriting, onWritten));
+  }
+
+  private Flux<MolecularDataChunk> downloadMolecularData(
+      AnalysisDocumentRow analysisDocumentRow, BooleanSupplier isWriting, Runnable onWritten) {
+    return timeDownload(
+            Mono.fromFuture(
+                    () ->
+                        s3AsyncClient.getObject(
+                            getObjectRequestForAnalysisDocumentRow(analysisDocumentRow),
+                            new FluxResponseProvider()))
+                .flatMapMany(AwsSdkFluxResponse::getFlux)
+                .concatMap(chunk -> acquireBudget(chunk, isWriting), 1))
+        .concatWith(
+            // the newline that separates the molecular data of each analysis carries the row
+            Mono.fromSupplier(
+                () ->
+                    new MolecularDataChunk(
+                        ByteBuffer.wrap(newlineBytes), analysisDocumentRow, onWritten)));
+  }
+
+  private Mono<MolecularDataChunk> acquireBudget(ByteBuffer chunk, BooleanSupplier isWriting) {
+    int chunkSize = chunk.remaining();
+    return byteBudget.acquire(
+        chunkSize,
+        isWriting,
+        accounted ->
+            new MolecularDataChunk(
+                chunk, null, accounted ? () -> byteBudget.release(chunkSize) : () -> {}));
+  }
+
+  /** Download metrics are recorded when running as part of an archive build */
+  private <T> Flux<T> timeDownload(Flux<T> download) {
+    return Flux.deferContextual(
+        ctx ->
+            ctx.<ArchiveBuildStats>getOrEmpty(ArchiveBuildMetrics.STATS_CONTEXT_KEY)
+                .map(stats -> archiveBuildMetrics.timeDownload(stats.getArchiveType(), download))
+                .orElse(download));
+  }
+
+  private GetObjectRequest getObjectRequestForAnalysisDocumentRow(
+      AnalysisDocumentRow analysisDocumentRow) {
+    return GetObjectRequest.builder()
+        .key(format("%s/%s", s3ClientProperties.getDataDir(), analysisDocumentRow.getObjectId()))
+        .bucket(s3ClientProperties.getBucket())
+        .build();
+  }
+}
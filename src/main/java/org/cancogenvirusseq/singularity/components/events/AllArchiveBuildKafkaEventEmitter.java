@@ -3,6 +3,7 @@ package org.cancogenvirusseq.singularity.components.events;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.cancogenvirusseq.singularity.components.model.AllArchiveBuildTriggerSource;
 import org.cancogenvirusseq.singularity.config.kafka.KafkaArchiveBuildConsumerConfig;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
@@ -17,7 +18,7 @@ import java.time.Instant;
 @Component
 @Profile("kafka")
 @RequiredArgsConstructor
-public class AllArchiveBuildKafkaEventEmitter implements EventEmitter<String>  {
+public class AllArchiveBuildKafkaEventEmitter implements AllArchiveBuildEventEmitter {
 
   private final KafkaArchiveBuildConsumerConfig kafkaArchiveBuildConsumerConfig;
 
@@ -31,6 +32,11 @@ public class AllArchiveBuildKafkaEventEmitter implements EventEmitter<String>  {
     return proxyManySink.asFlux();
   }
 
+  @Override
+  public AllArchiveBuildTriggerSource getTriggerSource() {
+    return AllArchiveBuildTriggerSource.KAFKA;
+  }
+
   @PostConstruct
   public void init() {
     // setup disposable to events to proxy sink
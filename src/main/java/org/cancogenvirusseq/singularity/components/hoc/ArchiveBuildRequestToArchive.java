@@ -18,23 +18,54 @@
 
 package org.cancogenvirusseq.singularity.components.hoc;
 
-import static org.cancogenvirusseq.singularity.components.utils.FileBundleUtils.createFileBundleFromPairsWithArchive;
+import static org.cancogenvirusseq.singularity.components.utils.FileBundleUtils.createFileBundleFromChunksWithArchive;
+import static org.cancogenvirusseq.singularity.components.utils.FileBundleUtils.createFileBundleFromCompressedFragmentsWithArchive;
 import static org.cancogenvirusseq.singularity.components.utils.FileBundleUtils.deleteFileBundleForArchive;
 
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
 import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.cancogenvirusseq.singularity.components.base.ArchiveManifestStore;
+import org.cancogenvirusseq.singularity.components.base.ArchiveOffsetIndexStore;
+import org.cancogenvirusseq.singularity.components.base.CompressMolecularDataToFragments;
+import org.cancogenvirusseq.singularity.components.base.DocumentSetObjectIds;
 import org.cancogenvirusseq.singularity.components.base.DownloadMolecularDataToPair;
 import org.cancogenvirusseq.singularity.components.base.ElasticSearchScroll;
+import org.cancogenvirusseq.singularity.components.base.FileBundleMultipartUpload;
 import org.cancogenvirusseq.singularity.components.base.FileBundleUpload;
+import org.cancogenvirusseq.singularity.components.base.PreviousArchiveContent;
+import org.cancogenvirusseq.singularity.components.base.StreamMolecularDataToChunks;
+import org.cancogenvirusseq.singularity.components.metrics.ArchiveBuildMetrics;
+import org.cancogenvirusseq.singularity.components.metrics.ArchiveBuildStats;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentRow;
 import org.cancogenvirusseq.singularity.components.model.ArchiveBuildRequest;
+import org.cancogenvirusseq.singularity.components.model.ArchiveManifestEntry;
+import org.cancogenvirusseq.singularity.components.model.CompressedFragment;
+import org.cancogenvirusseq.singularity.components.model.MolecularDataChunk;
+import org.cancogenvirusseq.singularity.components.model.MultipartArchiveUpload;
 import org.cancogenvirusseq.singularity.components.notifications.archives.ArchiveNotifier;
+import org.cancogenvirusseq.singularity.components.utils.ArchiveCompressionOutputStream;
+import org.cancogenvirusseq.singularity.components.utils.ArchiveCompressionUtils;
+import org.cancogenvirusseq.singularity.config.archive.ArchiveProperties;
+import org.cancogenvirusseq.singularity.config.s3Client.S3ClientProperties;
 import org.cancogenvirusseq.singularity.repository.ArchivesRepo;
 import org.cancogenvirusseq.singularity.repository.model.Archive;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveFormat;
 import org.cancogenvirusseq.singularity.repository.model.ArchiveStatus;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveType;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
 
 @Slf4j
 @Component
@@ -42,24 +73,40 @@ import reactor.core.publisher.Mono;
 public class ArchiveBuildRequestToArchive implements Function<ArchiveBuildRequest, Flux<Archive>> {
 
   private final ElasticSearchScroll elasticSearchScroll;
+  private final DocumentSetObjectIds documentSetObjectIds;
   private final DownloadMolecularDataToPair downloadMolecularDataToPair;
+  private final CompressMolecularDataToFragments compressMolecularDataToFragments;
+  private final StreamMolecularDataToChunks streamMolecularDataToChunks;
   private final FileBundleUpload fileBundleUpload;
+  private final FileBundleMultipartUpload fileBundleMultipartUpload;
+  private final S3ClientProperties s3ClientProperties;
+  private final ArchiveProperties archiveProperties;
   private final ArchivesRepo archivesRepo;
+  private final ArchiveCompressionUtils archiveCompressionUtils;
+  private final ArchiveBuildMetrics archiveBuildMetrics;
+  private final ArchiveManifestStore archiveManifestStore;
+  private final ArchiveOffsetIndexStore archiveOffsetIndexStore;
+  private final PreviousArchiveContent previousArchiveContent;
 
   private final ArchiveNotifier notifier;
 
   @Override
   public Flux<Archive> apply(ArchiveBuildRequest archiveBuildRequest) {
-    return elasticSearchScroll
-        .apply(archiveBuildRequest.getQueryBuilder())
-        .transform(downloadMolecularDataToPair)
-        .transform(createFileBundleFromPairsWithArchive(archiveBuildRequest.getArchive()))
+    MultipartArchiveUpload multipartArchiveUpload =
+        fileBundleMultipartUpload.createMultipartArchiveUpload(archiveBuildRequest.getArchive());
+    ArchiveBuildStats archiveBuildStats =
+        archiveBuildMetrics.startBuild(archiveBuildRequest.getArchive().getType());
+
+    return createFileBundle(archiveBuildRequest, archiveBuildStats, multipartArchiveUpload)
+        .doOnNext(fileBundlePath -> archiveBuildStats.stageFinished(ArchiveBuildStats.STAGE_BUNDLE))
         .filterWhen(fileBundlePath ->
             archivesRepo
                 .findByArchiveObject(archiveBuildRequest.getArchive())
                 .map(archive -> ArchiveStatus.BUILDING.equals(archive.getStatus()))
         )
-        .flatMap(fileBundleUpload)
+        .transform(uploadFileBundle(archiveBuildRequest.getArchive(), multipartArchiveUpload))
+        .doOnNext(uploadObjectId -> archiveBuildStats.stageFinished(ArchiveBuildStats.STAGE_UPLOAD))
+        .flatMap(uploadObjectId -> uploadArchiveIndexes(archiveBuildRequest.getArchive(), uploadObjectId))
         .flatMap(
             uploadObjectId ->
                 withArchiveBuildRequestContext(
@@ -109,10 +156,242 @@ public class ArchiveBuildRequestToArchive implements Function<ArchiveBuildReques
                         })
                 )
         )
-        .contextWrite(ctx -> ctx.put("archiveBuildRequest", archiveBuildRequest))
+        .doFinally(
+            signalType ->
+                archiveBuildMetrics.finishBuild(
+                    archiveBuildStats,
+                    SignalType.CANCEL.equals(signalType)
+                        ? ArchiveStatus.CANCELLED
+                        : archiveBuildRequest.getArchive().getStatus()))
+        .contextWrite(
+            ctx ->
+                ctx.put("archiveBuildRequest", archiveBuildRequest)
+                    .put(ArchiveBuildMetrics.STATS_CONTEXT_KEY, archiveBuildStats))
         .log("ArchiveBuildRequestToArchive");
   }
 
+  /**
+   * tar.gz archives of the types configured for compressed fragment assembly are assembled from the
+   * gzip members of each analysis (cached or compressed once), all others compress the molecular
+   * data as it is written to the archive
+   */
+  private Flux<Path> createFileBundle(
+      ArchiveBuildRequest archiveBuildRequest,
+      ArchiveBuildStats archiveBuildStats,
+      MultipartArchiveUpload multipartArchiveUpload) {
+    Archive archive = archiveBuildRequest.getArchive();
+    LongConsumer archiveBytesWrittenListener =
+        archiveBuildStats.trackBundleBytes(
+            s3ClientProperties.getMultipartUploadEnabled()
+                ? multipartArchiveUpload::archiveBytesWritten
+                : archiveBytesWritten -> {});
+
+    if (!archiveBuildRequest.isIncremental()
+        && ArchiveFormat.TAR_GZ.equals(archive.getFormat())
+        && archiveProperties.getCompressedFragmentAssemblyTypes().contains(archive.getType())) {
+      return scrollDocuments(archiveBuildRequest.getQueryBuilder(), archiveBuildStats)
+          .transform(compressMolecularData(archiveBuildStats))
+          .transform(
+              createFileBundleFromCompressedFragmentsWithArchive(
+                  archive,
+                  archiveBuildStats.trackCompressionOutputStreams(
+                      archiveCompressionUtils.gzipOutputStreamProviderForArchive(archive)),
+                  archiveBytesWrittenListener));
+    }
+
+    Function<OutputStream, ArchiveCompressionOutputStream> compressionOutputStreamProvider =
+        archiveBuildStats.trackCompressionOutputStreams(
+            archiveCompressionUtils.compressionOutputStreamProviderForArchive(archive));
+
+    return (archiveBuildRequest.isIncremental()
+            ? incrementalChunks(archiveBuildRequest, archiveBuildStats)
+            : scrollDocuments(archiveBuildRequest.getQueryBuilder(), archiveBuildStats)
+                .transform(downloadMolecularData(archiveBuildStats)))
+        .transform(
+            createFileBundleFromChunksWithArchive(
+                archive, compressionOutputStreamProvider, archiveBytesWrittenListener));
+  }
+
+  private Flux<AnalysisDocumentRow> scrollDocuments(
+      QueryBuilder queryBuilder, ArchiveBuildStats archiveBuildStats) {
+    return elasticSearchScroll
+        .apply(queryBuilder)
+        .doOnNext(analysisDocumentRow -> archiveBuildStats.getEsHits().increment())
+        .doOnComplete(() -> archiveBuildStats.stageFinished(ArchiveBuildStats.STAGE_SCROLL));
+  }
+
+  /**
+   * The updated documents of an incremental build, counted apart from the full scroll so a build
+   * falling back to a full build does not count the updated documents twice
+   */
+  private Flux<AnalysisDocumentRow> scrollUpdatedDocuments(
+      QueryBuilder queryBuilder, ArchiveBuildStats archiveBuildStats) {
+    return elasticSearchScroll
+        .apply(queryBuilder)
+        .doOnNext(analysisDocumentRow -> archiveBuildStats.getIncrementalEsHits().increment());
+  }
+
+  /**
+   * With streaming download enabled the molecular data is passed on chunk by chunk as it is
+   * downloaded, otherwise each object is downloaded whole and passed on as a single chunk
+   */
+  private Function<Flux<AnalysisDocumentRow>, Flux<MolecularDataChunk>> downloadMolecularData(
+      ArchiveBuildStats archiveBuildStats) {
+    return analysisDocumentRowFlux ->
+        (s3ClientProperties.getStreamingDownloadEnabled()
+                ? analysisDocumentRowFlux.transform(streamMolecularDataToChunks)
+                : analysisDocumentRowFlux
+                    .transform(downloadMolecularDataToPair)
+                    .map(MolecularDataChunk::fromPair))
+            .doOnNext(
+                chunk -> {
+                  if (chunk.isLast()) {
+                    archiveBuildStats.getDownloadedObjects().increment();
+                  }
+                  archiveBuildStats.getDownloadedBytes().add(chunk.getData().remaining());
+                })
+            .doOnComplete(() -> archiveBuildStats.stageFinished(ArchiveBuildStats.STAGE_DOWNLOAD));
+  }
+
+  private Function<Flux<AnalysisDocumentRow>, Flux<CompressedFragment>> compressMolecularData(
+      ArchiveBuildStats archiveBuildStats) {
+    return analysisDocumentRowFlux ->
+        analysisDocumentRowFlux
+            .transform(compressMolecularDataToFragments)
+            .doOnNext(
+                compressedFragment -> {
+                  archiveBuildStats.getDownloadedObjects().increment();
+                  archiveBuildStats
+                      .getDownloadedBytes()
+                      .add(compressedFragment.getMolecularDataLength());
+                })
+            .doOnComplete(() -> archiveBuildStats.stageFinished(ArchiveBuildStats.STAGE_DOWNLOAD));
+  }
+
+  /**
+   * Only the documents updated since the previous archive are scrolled and downloaded, all other
+   * rows are copied from the previous archive (superseded rows are dropped and replaced by the
+   * updated documents appended after them). Falls back to a full build when the previous archive
+   * has no usable manifest, when the updated documents can't be read or are too many to hold in
+   * memory (a reindex updates every document) or when the object ids of the merged rows aren't
+   * exactly the object ids the full query matches now. The updated documents are found by their
+   * source system updatedAt, so removed documents and documents indexed late with an older
+   * updatedAt are only caught by that comparison, which is why ids are compared rather than counts.
+   */
+  private Flux<MolecularDataChunk> incrementalChunks(
+      ArchiveBuildRequest archiveBuildRequest, ArchiveBuildStats archiveBuildStats) {
+    Archive archive = archiveBuildRequest.getArchive();
+    Archive previousArchive = archiveBuildRequest.getPreviousArchive();
+
+    int maxUpdatedDocuments = archiveProperties.getIncrementalMaxUpdatedDocuments();
+
+    return Mono.zip(
+            // one more than the max is enough to know the build has to fall back
+            scrollUpdatedDocuments(
+                    archiveBuildRequest.getUpdatedSinceQueryBuilder(), archiveBuildStats)
+                .take(maxUpdatedDocuments + 1L)
+                .collectList(),
+            archiveManifestStore.download(previousArchive),
+            documentSetObjectIds
+                .apply(archiveBuildRequest.getQueryBuilder())
+                .doOnNext(objectId -> archiveBuildStats.getIncrementalEsHits().increment())
+                .collect(Collectors.toSet()))
+        .flatMap(
+            updatedRowsManifestAndObjectIds -> {
+              List<AnalysisDocumentRow> updatedRows = updatedRowsManifestAndObjectIds.getT1();
+              List<ArchiveManifestEntry> manifest = updatedRowsManifestAndObjectIds.getT2();
+              Set<String> currentObjectIds = updatedRowsManifestAndObjectIds.getT3();
+
+              if (updatedRows.size() > maxUpdatedDocuments) {
+                log.info(
+                    "Archive {} can't be built incrementally, more than {} documents were updated",
+                    archive.getId(),
+                    maxUpdatedDocuments);
+                return Mono.empty();
+              }
+
+              Set<String> updatedObjectIds =
+                  updatedRows.stream()
+                      .map(AnalysisDocumentRow::getObjectId)
+                      .collect(Collectors.toSet());
+              long reusedRows =
+                  manifest.stream()
+                      .filter(entry -> !updatedObjectIds.contains(entry.getObjectId()))
+                      .count();
+
+              Set<String> mergedObjectIds =
+                  manifest.stream()
+                      .map(ArchiveManifestEntry::getObjectId)
+                      .collect(Collectors.toCollection(HashSet::new));
+              mergedObjectIds.addAll(updatedObjectIds);
+
+              if (!mergedObjectIds.equals(currentObjectIds)) {
+                log.info(
+                    "Archive {} can't be built incrementally, {} merged rows don't match the {} documents of the query",
+                    archive.getId(),
+                    mergedObjectIds.size(),
+                    currentObjectIds.size());
+                return Mono.empty();
+              }
+
+              log.info(
+                  "Archive {} reuses {} rows of archive {} and downloads {} updated rows",
+                  archive.getId(),
+                  reusedRows,
+                  previousArchive.getId(),
+                  updatedRows.size());
+
+              return Mono.just(
+                  previousArchiveContent
+                      .pairsExcludingObjectIds(
+                          previousArchive, archive.getId(), manifest, updatedObjectIds)
+                      .map(MolecularDataChunk::fromPair)
+                      .concatWith(
+                          Flux.fromIterable(updatedRows)
+                              .transform(downloadMolecularData(archiveBuildStats))));
+            })
+        .onErrorResume(
+            throwable -> {
+              log.error(
+                  "Incremental build of archive {} failed to start: {}",
+                  archive.getId(),
+                  throwable.getLocalizedMessage());
+              return Mono.empty();
+            })
+        .switchIfEmpty(
+            Mono.fromSupplier(
+                () ->
+                    scrollDocuments(archiveBuildRequest.getQueryBuilder(), archiveBuildStats)
+                        .transform(downloadMolecularData(archiveBuildStats))))
+        .flatMapMany(Function.identity());
+  }
+
+  /**
+   * Manifests and offset indexes are only kept for ALL archives, the only archives incremental
+   * builds start from and genomes are served from
+   */
+  private Mono<UUID> uploadArchiveIndexes(Archive archive, UUID uploadObjectId) {
+    return ArchiveType.ALL.equals(archive.getType())
+        ? archiveManifestStore
+            .upload(archive, uploadObjectId)
+            .flatMap(objectId -> archiveOffsetIndexStore.upload(archive, objectId))
+        : Mono.just(uploadObjectId);
+  }
+
+  /**
+   * With multipart upload enabled the archive parts are uploaded while the archive is being built,
+   * otherwise the finished archive is uploaded with a single presigned PUT
+   */
+  private Function<Flux<Path>, Flux<UUID>> uploadFileBundle(
+      Archive archive, MultipartArchiveUpload multipartArchiveUpload) {
+    return s3ClientProperties.getMultipartUploadEnabled()
+        ? fileBundleMultipartUpload.uploadFileBundleWithMultipartUpload(multipartArchiveUpload)
+        : fileBundlePathFlux ->
+            fileBundlePathFlux.flatMap(
+                fileBundlePath ->
+                    fileBundleUpload.apply(fileBundlePath, archive.getFormat().getMediaType()));
+  }
+
   private <R> Mono<R> withArchiveBuildRequestContext(Function<ArchiveBuildRequest, Mono<R>> func) {
     return Mono.deferContextual(ctx -> func.apply(ctx.get("archiveBuildRequest")));
   }
@@ -7,11 +7,15 @@ import java.util.function.Function;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.cancogenvirusseq.singularity.components.base.CountAndLastUpdatedAggregation;
+import org.cancogenvirusseq.singularity.components.model.AllArchiveHashInfo;
 import org.cancogenvirusseq.singularity.components.model.ArchiveBuildRequest;
 import org.cancogenvirusseq.singularity.components.model.CountAndLastUpdatedResult;
 import org.cancogenvirusseq.singularity.components.utils.ExistingArchiveUtils;
+import org.cancogenvirusseq.singularity.config.archive.ArchiveProperties;
 import org.cancogenvirusseq.singularity.repository.ArchivesRepo;
 import org.cancogenvirusseq.singularity.repository.model.Archive;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveFormat;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveType;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Mono;
@@ -24,6 +28,7 @@ public class InstantToArchiveBuildRequest implements Function<Instant, Mono<Arch
   private final ArchivesRepo archivesRepo;
 
   private final ExistingArchiveUtils existingArchiveUtils;
+  private final ArchiveProperties archiveProperties;
 
   @Override
   public Mono<ArchiveBuildRequest> apply(Instant instant) {
@@ -34,7 +39,7 @@ public class InstantToArchiveBuildRequest implements Function<Instant, Mono<Arch
         // why this? because R2DBC does not hydrate fields
         // (https://github.com/spring-projects/spring-data-r2dbc/issues/455)
         .flatMap(archivesRepo::findByArchiveObject)
-        .map(transformToArchiveBuildRequest(instant))
+        .flatMap(transformToArchiveBuildRequest(instant))
         .onErrorStop()
         .log("InstantToArchiveBuildRequest");
   }
@@ -50,16 +55,55 @@ public class InstantToArchiveBuildRequest implements Function<Instant, Mono<Arch
       CountAndLastUpdatedResult countAndLastUpdatedResult) {
 
     Archive archiveTemplate =
-        Archive.newAllArchiveFromCountAndLastUpdatedResult(countAndLastUpdatedResult);
+        Archive.newAllArchiveFromCountAndLastUpdatedResult(
+            countAndLastUpdatedResult, archiveProperties.formatForType(ArchiveType.ALL));
 
     return existingArchiveUtils.createNewOrResetExistingArchiveInDatabase(archiveTemplate);
   }
 
-  private Function<Archive, ArchiveBuildRequest> transformToArchiveBuildRequest(Instant instant) {
+  private Function<Archive, Mono<ArchiveBuildRequest>> transformToArchiveBuildRequest(
+      Instant instant) {
 
     return archive ->
-        // include files up to this instant (don't include things added after this starts)
-        new ArchiveBuildRequest(
-            archive, QueryBuilders.rangeQuery(LAST_UPDATED_AT_FIELD).to(instant));
+        Boolean.TRUE.equals(archiveProperties.getIncrementalAllBuilds())
+            ? archivesRepo
+                .findLatestAllArchive()
+                .filter(previousArchive -> previousArchive.getObjectId() != null)
+                // rows are only copied between tar.gz archives
+                .filter(
+                    previousArchive ->
+                        ArchiveFormat.TAR_GZ.equals(previousArchive.getFormat())
+                            && ArchiveFormat.TAR_GZ.equals(archive.getFormat()))
+                .map(
+                    previousArchive ->
+                        incrementalArchiveBuildRequest(archive, previousArchive, instant))
+                .defaultIfEmpty(fullArchiveBuildRequest(archive, instant))
+            : Mono.just(fullArchiveBuildRequest(archive, instant));
+  }
+
+  private ArchiveBuildRequest fullArchiveBuildRequest(Archive archive, Instant instant) {
+    // include files up to this instant (don't include things added after this starts)
+    return new ArchiveBuildRequest(
+        archive, QueryBuilders.rangeQuery(LAST_UPDATED_AT_FIELD).to(instant));
+  }
+
+  /**
+   * Documents updated at exactly the last updated date of the previous archive are fetched again,
+   * rows for objectIds already in the previous archive are replaced so overlap is harmless
+   */
+  private ArchiveBuildRequest incrementalArchiveBuildRequest(
+      Archive archive, Archive previousArchive, Instant instant) {
+    log.info(
+        "Building archive {} incrementally from previous archive {}",
+        archive.getId(),
+        previousArchive.getId());
+
+    return new ArchiveBuildRequest(
+        archive,
+        QueryBuilders.rangeQuery(LAST_UPDATED_AT_FIELD).to(instant),
+        previousArchive,
+        QueryBuilders.rangeQuery(LAST_UPDATED_AT_FIELD)
+            .gte(AllArchiveHashInfo.parseLastUpdatedFromHashInfo(previousArchive.getHashInfo()))
+            .to(instant));
   }
 }
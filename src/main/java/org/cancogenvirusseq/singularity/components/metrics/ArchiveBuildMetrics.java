@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveStatus;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveType;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Micrometer metrics for archive builds, exposed through the actuator metrics endpoint. Build and
+ * stage metrics are tagged with the archive type and the final archive status, the live download
+ * metrics (latency and in flight) are recorded while the final status is still unknown so they are
+ * only tagged with the archive type.
+ */
+@Slf4j
+@Component
+public class ArchiveBuildMetrics {
+  /** Reactor context key under which the stats of the running build are available */
+  public static final String STATS_CONTEXT_KEY = "archiveBuildStats";
+
+  private static final String PREFIX = "archive.build";
+  private static final String TAG_TYPE = "type";
+  private static final String TAG_STATUS = "status";
+  private static final String TAG_STAGE = "stage";
+  private static final String STAGE_COMPRESSION = "compression";
+
+  private final MeterRegistry meterRegistry;
+  private final Map<ArchiveType, AtomicInteger> inFlightDownloads;
+
+  public ArchiveBuildMetrics(MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+    this.inFlightDownloads =
+        Arrays.stream(ArchiveType.values())
+            .collect(Collectors.toMap(Function.identity(), type -> new AtomicInteger()));
+
+    inFlightDownloads.forEach(
+        (type, inFlight) ->
+            Gauge.builder(PREFIX + ".s3.downloads.inflight", inFlight, AtomicInteger::get)
+                .description("S3 object downloads currently in flight")
+                .tag(TAG_TYPE, type.name())
+                .register(meterRegistry));
+  }
+
+  public ArchiveBuildStats startBuild(ArchiveType archiveType) {
+    return new ArchiveBuildStats(archiveType);
+  }
+
+  /** Times a single S3 object download and tracks it as in flight until it terminates */
+  public <T> Mono<T> timeDownload(ArchiveType archiveType, Mono<T> download) {
+    AtomicInteger inFlight = inFlightDownloads.get(archiveType);
+    Timer timer = downloadLatencyTimer(archiveType);
+
+    return Mono.defer(
+        () -> {
+          Timer.Sample sample = Timer.start(meterRegistry);
+          inFlight.incrementAndGet();
+          return download.doFinally(
+              signalType -> {
+                inFlight.decrementAndGet();
+                sample.stop(timer);
+              });
+        });
+  }
+
+  /** Times a streamed S3 object download, from the request until the last chunk of the body */
+  public <T> Flux<T> timeDownload(ArchiveType archiveType, Flux<T> download) {
+    AtomicInteger inFlight = inFlightDownloads.get(archiveType);
+    Timer timer = downloadLatencyTimer(archiveType);
+
+    return Flux.defer(
+        () -> {
+          Timer.Sample sample = Timer.start(meterRegistry);
+          inFlight.incrementAndGet();
+          return download.doFinally(
+              signalType -> {
+                inFlight.decrementAndGet();
+                sample.stop(timer);
+              });
+        });
+  }
+
+  /** Exposes the depth of a build queue and the number of builds it is running */
+  public <T> void registerBuildQueue(
+      ArchiveType archiveType, T queue, ToDoubleFunction<T> depth, ToDoubleFunction<T> running) {
+    Gauge.builder(PREFIX + ".queue.depth", queue, depth)
+        .description("Archive builds waiting in the build queue")
+        .tag(TAG_TYPE, archiveType.name())
+        .register(meterRegistry);
+
+    Gauge.builder(PREFIX + ".queue.running", queue, running)
+        .description("Archive builds started from the build queue and still running")
+        .tag(TAG_TYPE, archiveType.name())
+        .register(meterRegistry);
+  }
+
+  public void recordQueueWait(ArchiveType archiveType, long waitNanos) {
+    Timer.builder(PREFIX + ".queue.wait")
+        .description("Time an archive build waited in the build queue before starting")
+        .tag(TAG_TYPE, archiveType.name())
+        .register(meterRegistry)
+        .record(waitNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public void incrementQueueRejected(ArchiveType archiveType) {
+    Counter.builder(PREFIX + ".queue.rejected")
+        .description("Archive builds rejected because the build queue was full")
+        .tag(TAG_TYPE, archiveType.name())
+        .register(meterRegistry)
+        .increment();
+  }
+
+  public void finishBuild(ArchiveBuildStats stats, ArchiveStatus archiveStatus) {
+    Tags tags =
+        Tags.of(
+            Tag.of(TAG_TYPE, stats.getArchiveType().name()),
+            Tag.of(TAG_STATUS, archiveStatus.name()));
+
+    Timer.builder(PREFIX + ".duration")
+        .description("Total archive build duration")
+        .tags(tags)
+        .register(meterRegistry)
+        .record(stats.elapsedNanos(), TimeUnit.NANOSECONDS);
+
+    recordStageDurations(stats, tags);
+
+    Timer.builder(PREFIX + ".stage.duration")
+        .description("Time spent in each archive build stage")
+        .tags(tags.and(TAG_STAGE, STAGE_COMPRESSION))
+        .register(meterRegistry)
+        .record(stats.getCompressionNanos(), TimeUnit.NANOSECONDS);
+
+    Counter.builder(PREFIX + ".es.hits")
+        .description("Elasticsearch hits read for archive builds")
+        .tags(tags)
+        .register(meterRegistry)
+        .increment(stats.getEsHits().sum());
+
+    Counter.builder(PREFIX + ".es.hits.incremental")
+        .description(
+            "Elasticsearch hits of updated documents and object ids read for incremental archive builds")
+        .tags(tags)
+        .register(meterRegistry)
+        .increment(stats.getIncrementalEsHits().sum());
+
+    Counter.builder(PREFIX + ".s3.download.objects")
+        .description("S3 objects downloaded for archive builds")
+        .tags(tags)
+        .register(meterRegistry)
+        .increment(stats.getDownloadedObjects().sum());
+
+    Counter.builder(PREFIX + ".s3.download.bytes")
+        .description("S3 object bytes downloaded for archive builds")
+        .baseUnit("bytes")
+        .tags(tags)
+        .register(meterRegistry)
+        .increment(stats.getDownloadedBytes().sum());
+
+    Counter.builder(PREFIX + ".fragment.cache.hits")
+        .description("Analyses read from the local fragment cache instead of S3")
+        .tags(tags)
+        .register(meterRegistry)
+        .increment(stats.getFragmentCacheHits().sum());
+
+    Counter.builder(PREFIX + ".bundle.bytes")
+        .description("Archive bytes written to disk")
+        .baseUnit("bytes")
+        .tags(tags)
+        .register(meterRegistry)
+        .increment(stats.getBundleBytes().get());
+
+    log.debug(
+        "Archive build metrics recorded for type: {} status: {} stages: {}",
+        stats.getArchiveType(),
+        archiveStatus,
+        stats.getStageFinishedNanos());
+  }
+
+  private Timer downloadLatencyTimer(ArchiveType archiveType) {
+    return Timer.builder(PREFIX + ".s3.download.latency")
+        .description("Latency of individual S3 object downloads")
+        .tag(TAG_TYPE, archiveType.name())
+        .register(meterRegistry);
+  }
+
+  /**
+   * Stages run concurrently, so scroll, download and bundle are measured from the start of the
+   * build to the end of the stage while upload is measured from the end of the bundle stage
+   */
+  private void recordStageDurations(ArchiveBuildStats stats, Tags tags) {
+    Map<String, Long> finished = stats.getStageFinishedNanos();
+    recordStage(tags, ArchiveBuildStats.STAGE_SCROLL, finished.get(ArchiveBuildStats.STAGE_SCROLL));
+    recordStage(
+        tags, ArchiveBuildStats.STAGE_DOWNLOAD, finished.get(ArchiveBuildStats.STAGE_DOWNLOAD));
+    recordStage(tags, ArchiveBuildStats.STAGE_BUNDLE, finished.get(ArchiveBuildStats.STAGE_BUNDLE));
+
+    Long bundleFinished = finished.get(ArchiveBuildStats.STAGE_BUNDLE);
+    Long uploadFinished = finished.get(ArchiveBuildStats.STAGE_UPLOAD);
+    if (bundleFinished != null && uploadFinished != null) {
+      recordStage(tags, ArchiveBuildStats.STAGE_UPLOAD, uploadFinished - bundleFinished);
+    }
+  }
+
+  private void recordStage(Tags tags, String stage, Long nanos) {
+    // stages that never finished (failed or cancelled builds) are not recorded
+    if (nanos == null) {
+      return;
+    }
+
+    Timer.builder(PREFIX + ".stage.duration")
+        .description("Time spent in each archive build stage")
+        .tags(tags.and(TAG_STAGE, stage))
+        .register(meterRegistry)
+        .record(nanos, TimeUnit.NANOSECONDS);
+  }
+}
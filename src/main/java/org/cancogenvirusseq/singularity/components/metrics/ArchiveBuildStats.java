@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.metrics;
+
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.cancogenvirusseq.singularity.components.utils.ArchiveCompressionOutputStream;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveType;
+
+/**
+ * Collects the per stage numbers of a single archive build, they are only recorded as metrics once
+ * the build has finished and its final status is known (see {@link ArchiveBuildMetrics})
+ */
+@Getter
+@RequiredArgsConstructor
+public class ArchiveBuildStats {
+  public static final String STAGE_SCROLL = "scroll";
+  public static final String STAGE_DOWNLOAD = "download";
+  public static final String STAGE_BUNDLE = "bundle";
+  public static final String STAGE_UPLOAD = "upload";
+
+  private final ArchiveType archiveType;
+  private final long startNanos = System.nanoTime();
+  private final LongAdder esHits = new LongAdder();
+  // updated documents and object ids read by incremental builds, a build falling back also counts
+  // esHits
+  private final LongAdder incrementalEsHits = new LongAdder();
+  private final LongAdder downloadedObjects = new LongAdder();
+  private final LongAdder downloadedBytes = new LongAdder();
+  // analyses read from the fragment cache instead of object storage
+  private final LongAdder fragmentCacheHits = new LongAdder();
+  private final AtomicLong bundleBytes = new AtomicLong();
+  private final List<ArchiveCompressionOutputStream> compressionOutputStreams =
+      new CopyOnWriteArrayList<>();
+  // nanos since the start of the build at which each stage finished
+  private final Map<String, Long> stageFinishedNanos = new ConcurrentHashMap<>();
+
+  public void stageFinished(String stage) {
+    stageFinishedNanos.putIfAbsent(stage, elapsedNanos());
+  }
+
+  public long elapsedNanos() {
+    return System.nanoTime() - startNanos;
+  }
+
+  /** Keeps hold of the compression streams of the archive to total their compression time */
+  public <T extends ArchiveCompressionOutputStream>
+      Function<OutputStream, T> trackCompressionOutputStreams(
+          Function<OutputStream, T> compressionOutputStreamProvider) {
+    return outputStream -> {
+      T compressionOutputStream = compressionOutputStreamProvider.apply(outputStream);
+      compressionOutputStreams.add(compressionOutputStream);
+      return compressionOutputStream;
+    };
+  }
+
+  public LongConsumer trackBundleBytes(LongConsumer archiveBytesWrittenListener) {
+    return archiveBytesWritten -> {
+      bundleBytes.set(archiveBytesWritten);
+      archiveBytesWrittenListener.accept(archiveBytesWritten);
+    };
+  }
+
+  public long getCompressionNanos() {
+    return compressionOutputStreams.stream()
+        .mapToLong(ArchiveCompressionOutputStream::getCompressionNanos)
+        .sum();
+  }
+}
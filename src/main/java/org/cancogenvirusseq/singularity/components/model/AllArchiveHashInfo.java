@@ -1,23 +1,39 @@
 package org.cancogenvirusseq.singularity.components.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveFormat;
 
 @Getter
-@RequiredArgsConstructor
 public class AllArchiveHashInfo {
   private static final ObjectMapper objectMapper = new ObjectMapper();
 
   private final Long numSamples;
   private final String lastUpdated;
 
+  // left out for tar.gz archives so their hash is the same as before formats were introduced
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private final ArchiveFormat format;
+
+  public AllArchiveHashInfo(Long numSamples, String lastUpdated, ArchiveFormat format) {
+    this.numSamples = numSamples;
+    this.lastUpdated = lastUpdated;
+    this.format = ArchiveFormat.TAR_GZ.equals(format) ? null : format;
+  }
+
   public static AllArchiveHashInfo parseFromCountAndLastUpdatedResult(
-      CountAndLastUpdatedResult countAndLastUpdatedResult) {
+      CountAndLastUpdatedResult countAndLastUpdatedResult, ArchiveFormat format) {
     return new AllArchiveHashInfo(
         countAndLastUpdatedResult.getNumDocuments().getValue(),
-        countAndLastUpdatedResult.getLastUpdatedDate().getValueAsString());
+        countAndLastUpdatedResult.getLastUpdatedDate().getValueAsString(),
+        format);
+  }
+
+  @SneakyThrows
+  public static String parseLastUpdatedFromHashInfo(String hashInfo) {
+    return AllArchiveHashInfo.objectMapper.readTree(hashInfo).path("lastUpdated").asText(null);
   }
 
   @Override
@@ -24,6 +24,6 @@ import lombok.RequiredArgsConstructor;
 @Getter
 @RequiredArgsConstructor
 public class AnalysisDocumentMolecularDataPair {
-  private final AnalysisDocument analysisDocument;
+  private final AnalysisDocumentRow analysisDocumentRow;
   private final byte[] molecularData;
 }
@@ -1,5 +1,6 @@
 package org.cancogenvirusseq.singularity.components.model;
 
+import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import org.cancogenvirusseq.singularity.repository.model.Archive;
@@ -7,7 +8,17 @@ import org.elasticsearch.index.query.QueryBuilder;
 
 @Getter
 @RequiredArgsConstructor
+@AllArgsConstructor
 public class ArchiveBuildRequest {
   private final Archive archive;
   private final QueryBuilder queryBuilder;
+
+  // only set for incremental builds, the archive to reuse rows from and the query for the
+  // documents updated since it was built
+  private Archive previousArchive;
+  private QueryBuilder updatedSinceQueryBuilder;
+
+  public boolean isIncremental() {
+    return previousArchive != null;
+  }
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.model;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Where the molecular data of an analysis sits in an archive object, along with its tsv row. The
+ * molecular data is read back by fetching the gzip members from compressedStart (inclusive) to
+ * compressedEnd (exclusive), offsets in the archive object, and decompressing them: the members
+ * start at uncompressedStart of the molecular entry and the molecular data of the analysis at
+ * molecularDataOffset. The tsv row is read from tsvRowOffset of the decompressed offset index.
+ */
+@Getter
+@RequiredArgsConstructor
+public class ArchiveOffsetIndexEntry {
+  private final String objectId;
+  private final long compressedStart;
+  private final long compressedEnd;
+  private final long uncompressedStart;
+  private final long molecularDataOffset;
+  private final int molecularDataLength;
+  // line terminator included
+  private final long tsvRowOffset;
+  private final int tsvRowLength;
+}
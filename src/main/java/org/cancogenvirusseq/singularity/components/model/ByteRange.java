@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.singularity.components.model;
+
+import static java.lang.String.format;
+
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+
+/** A single byte range of an HTTP Range header, either first-last, first- or -suffixLength */
+@Value
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public class ByteRange {
+  Long first;
+  Long last;
+  Long suffixLength;
+
+  public static ByteRange fromFirstToLast(Long first, Long last) {
+    return new ByteRange(first, last, null);
+  }
+
+  public static ByteRange fromFirst(Long first) {
+    return new ByteRange(first, null, null);
+  }
+
+  public static ByteRange suffix(Long suffixLength) {
+    return new ByteRange(null, null, suffixLength);
+  }
+
+  /** A range from the first byte is the start of a download, anything else resumes one */
+  public boolean isFromStart() {
+    return first != null && first == 0L;
+  }
+
+  public String toRangeHeaderValue() {
+    if (suffixLength != null) {
+      return format("bytes=-%d", suffixLength);
+    }
+
+    return last == null ? format("bytes=%d-", first) : format("bytes=%d-%d", first, last);
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.model;
+
+import static java.lang.String.format;
+import static org.cancogenvirusseq.singularity.components.model.FileBundle.DOWNLOAD_DIR;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.SneakyThrows;
+import org.cancogenvirusseq.singularity.components.utils.FileBundleUtils;
+import org.cancogenvirusseq.singularity.components.utils.ParallelGzipOutputStream;
+import org.cancogenvirusseq.singularity.components.utils.TsvUtils;
+
+/**
+ * A file bundle assembled from compressed fragments, it has the same layout and file names as a
+ * {@link FileBundle}. The molecular data members are copied straight into the archive and the tsv
+ * row members are spooled to disk, only the tar headers, padding and the tsv header are compressed
+ * while assembling (see {@link FileBundleUtils#assembleTarGzipArchiveAndClose}).
+ */
+@Getter
+public class CompressedFileBundle {
+  private static final String MEMBERS_FILE_EXTENSION = ".gz";
+
+  private final String archiveFilename;
+  private final String downloadDirectory;
+  private final String molecularFilename;
+  private final String metadataFilename;
+  private final String metadataMembersFilename;
+  private final Function<OutputStream, ParallelGzipOutputStream> gzipOutputStreamProvider;
+  private final FileChannel archiveFileChannel;
+  private final BufferedOutputStream archiveFileOutputStream;
+  private final BufferedOutputStream metadataMembersOutputStream;
+  private final BufferedOutputStream manifestOutputStream;
+
+  // uncompressed sizes of the tar entries
+  @Setter private long molecularDataLength = 0;
+  @Setter private long metadataLength = TsvUtils.getHeader().length;
+
+  @SneakyThrows
+  public CompressedFileBundle(
+      UUID archiveId,
+      Function<OutputStream, ParallelGzipOutputStream> gzipOutputStreamProvider,
+      LongConsumer archiveBytesWrittenListener) {
+    this.gzipOutputStreamProvider = gzipOutputStreamProvider;
+    this.archiveFilename = FileBundle.archiveFilenameFromArchiveId(archiveId);
+    this.downloadDirectory = FileBundle.downloadDirectoryFromArchiveId(archiveId);
+    this.molecularFilename = FileBundle.molecularFilenameFromArchiveId(archiveId);
+    this.metadataFilename = FileBundle.metadataFilenameFromArchiveId(archiveId);
+    this.metadataMembersFilename = metadataFilename + MEMBERS_FILE_EXTENSION;
+
+    FileBundle.prepareDownloadDirectory(archiveId);
+
+    this.archiveFileChannel =
+        FileBundle.openArchiveFileChannel(
+            this.archiveFilename, FileBundleUtils.ARCHIVE_HEADER_RESERVED_BYTES);
+    this.archiveFileOutputStream =
+        FileBundle.archiveFileOutputStream(
+            this.archiveFileChannel,
+            FileBundleUtils.ARCHIVE_HEADER_RESERVED_BYTES,
+            archiveBytesWrittenListener);
+
+    // the tsv header is only compressed once the metadata tar entry header is known
+    this.metadataMembersOutputStream =
+        new BufferedOutputStream(
+            new FileOutputStream(
+                format("%s/%s", this.downloadDirectory, this.metadataMembersFilename)));
+
+    this.manifestOutputStream =
+        FileBundle.openManifestOutputStream(
+            FileBundle.archiveManifestFilenameFromArchiveId(archiveId));
+  }
+
+  public String getMetadataMembersPath() {
+    return format("%s/%s", downloadDirectory, metadataMembersFilename);
+  }
+
+  public String getArchivePath() {
+    return format("%s/%s", DOWNLOAD_DIR, archiveFilename);
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.model;
+
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import lombok.Value;
+import lombok.val;
+import org.cancogenvirusseq.singularity.components.utils.HttpHeaderUtils;
+
+@Value
+public class ContributorsSnapshot {
+  SortedSet<String> contributors;
+  String etag;
+  Long timestamp;
+
+  public static ContributorsSnapshot fromContributors(Collection<String> contributors) {
+    val sorted = Collections.unmodifiableSortedSet(new TreeSet<>(contributors));
+    return new ContributorsSnapshot(
+        sorted, etagForContributors(sorted), System.currentTimeMillis());
+  }
+
+  /** Strong entity tag of the sorted contributors, equal lists always have the same tag */
+  public static String etagForContributors(SortedSet<String> contributors) {
+    return String.format(
+        "\"%s\"",
+        Hashing.sha256()
+            .hashString(String.join("\n", contributors), StandardCharsets.UTF_8)
+            .toString());
+  }
+
+  public boolean matchesIfNoneMatch(String ifNoneMatch) {
+    return HttpHeaderUtils.etagMatches(ifNoneMatch, etag);
+  }
+}
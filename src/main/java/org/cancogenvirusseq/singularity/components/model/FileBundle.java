@@ -22,18 +22,45 @@ import static java.lang.String.format;
 
 import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPOutputStream;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.utils.CountingOutputStream;
+import org.cancogenvirusseq.singularity.components.utils.ArchiveCompressionOutputStream;
+import org.cancogenvirusseq.singularity.components.utils.ArchiveManifestUtils;
+import org.cancogenvirusseq.singularity.components.utils.ArchiveOffsetIndexUtils;
+import org.cancogenvirusseq.singularity.components.utils.FastaIndexingOutputStream;
+import org.cancogenvirusseq.singularity.components.utils.FileBundleUtils;
+import org.cancogenvirusseq.singularity.components.utils.ParallelGzipOutputStream;
+import org.cancogenvirusseq.singularity.components.utils.TsvRowEncoder;
 import org.cancogenvirusseq.singularity.components.utils.TsvUtils;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveFormat;
 import org.springframework.util.FileSystemUtils;
 
+/**
+ * A FileBundle streams the molecular data straight into the final tar.gz archive as it arrives,
+ * only the (much smaller) metadata tsv is spooled to disk until the molecular entry is complete.
+ * The start of the archive file is reserved for the molecular tar entry header which is written
+ * last, once the size of the molecular data is known (see {@link
+ * FileBundleUtils#tarGzipArchiveAndClose})
+ *
+ * <p>Archives in the {@link ArchiveFormat#BGZF_FASTA} format are an uncompressed tar, the molecular
+ * data is written bgzip compressed into its entry while its .fai index is spooled to disk, the
+ * metadata tsv is spooled bgzip compressed.
+ */
 @Slf4j
 @Getter
 public class FileBundle {
@@ -44,54 +71,204 @@ public class FileBundle {
   public static final String MOLECULAR_FILE_EXTENSION = ".fasta";
   public static final String METADATA_FILE_EXTENSION = ".tsv";
   public static final String ARCHIVE_EXTENSION = ".tar.gz";
+  public static final String BGZF_FILE_EXTENSION = ".gz";
+  public static final String FASTA_INDEX_EXTENSION = ".fai";
+  public static final String GZIP_INDEX_EXTENSION = ".gzi";
 
   private final String archiveFilename;
   private final String downloadDirectory;
   private final String molecularFilename;
   private final String metadataFilename;
+  private final ArchiveFormat format;
+  private final Function<OutputStream, ? extends ArchiveCompressionOutputStream>
+      compressionOutputStreamProvider;
+  private final FileChannel archiveFileChannel;
   private final BufferedOutputStream archiveFileOutputStream;
-  private final BufferedOutputStream molecularFileOutputStream;
+  private final ArchiveCompressionOutputStream molecularCompressionOutputStream;
+  // only for BGZF_FASTA archives, null otherwise
+  private final FastaIndexingOutputStream molecularIndexingOutputStream;
+  private final CountingOutputStream molecularOutputStream;
   private final BufferedOutputStream metadataFileOutputStream;
+  private final String manifestFilename;
+  private final BufferedOutputStream manifestOutputStream;
+  private final String offsetIndexFilename;
+  private final TsvRowEncoder tsvRowEncoder = new TsvRowEncoder();
 
-  @Setter private GzipCompressorOutputStream archiveGzipOutputStream;
+  // bytes written so far for the molecular data of the analysis being written
+  @Setter private long analysisMolecularDataLength = 0;
+  @Setter private ArchiveCompressionOutputStream archiveCompressionOutputStream;
   @Setter private TarArchiveOutputStream archiveTarOutputStream;
 
   @SneakyThrows
-  public FileBundle(UUID archiveId) {
-    // record archive name and create FileOutputStream (buffered)
+  public FileBundle(
+      UUID archiveId,
+      ArchiveFormat archiveFormat,
+      Function<OutputStream, ? extends ArchiveCompressionOutputStream>
+          compressionOutputStreamProvider,
+      LongConsumer archiveBytesWrittenListener) {
+    // files in an uncompressed tar are bgzip compressed themselves
+    String fileExtension = archiveFormat.isCompressedTar() ? "" : BGZF_FILE_EXTENSION;
+
+    this.format = archiveFormat;
+    this.compressionOutputStreamProvider = compressionOutputStreamProvider;
     this.archiveFilename = archiveFilenameFromArchiveId(archiveId);
-    this.archiveFileOutputStream =
-        new BufferedOutputStream(
-            new FileOutputStream(format("%s/%s", DOWNLOAD_DIR, this.archiveFilename)));
+    this.downloadDirectory = downloadDirectoryFromArchiveId(archiveId);
+    this.manifestFilename = archiveManifestFilenameFromArchiveId(archiveId);
+    this.offsetIndexFilename = archiveOffsetIndexFilenameFromArchiveId(archiveId);
+    this.molecularFilename = molecularFilenameFromArchiveId(archiveId) + fileExtension;
+    this.metadataFilename = metadataFilenameFromArchiveId(archiveId) + fileExtension;
 
-    // create download directory for file downloads
-    this.downloadDirectory = format("%s/%s%s", DOWNLOAD_DIR, FILE_NAME_TEMPLATE, archiveId);
+    prepareDownloadDirectory(archiveId);
 
-    FileSystemUtils.deleteRecursively(Paths.get(this.downloadDirectory));
-    Files.deleteIfExists(Paths.get(this.archiveFilenameFromArchiveId(archiveId)));
-    log.info("Cleaning up Download Directory({}) and compressed file({}).", this.downloadDirectory, this.archiveFilenameFromArchiveId(archiveId));
-    
-    Files.createDirectory(Paths.get(this.downloadDirectory));
+    int archiveHeaderReservedBytes = FileBundleUtils.archiveHeaderReservedBytes(archiveFormat);
+    this.archiveFileChannel =
+        openArchiveFileChannel(this.archiveFilename, archiveHeaderReservedBytes);
+    this.archiveFileOutputStream =
+        archiveFileOutputStream(
+            this.archiveFileChannel, archiveHeaderReservedBytes, archiveBytesWrittenListener);
 
-    // record molecular filename and create FileOutputStream (buffered)
-    this.molecularFilename =
-        format("%s%s%s%s", MOLECULAR_PREFIX_FILE_NAME,  FILE_NAME_TEMPLATE, archiveId, MOLECULAR_FILE_EXTENSION);
-    this.molecularFileOutputStream =
-        new BufferedOutputStream(
-            new FileOutputStream(format("%s/%s", this.downloadDirectory, this.molecularFilename)));
+    // molecular data is compressed directly into the archive
+    this.molecularCompressionOutputStream =
+        compressionOutputStreamProvider.apply(this.archiveFileOutputStream);
+    if (archiveFormat.isCompressedTar()) {
+      this.molecularIndexingOutputStream = null;
+      this.molecularOutputStream = new CountingOutputStream(this.molecularCompressionOutputStream);
+    } else {
+      this.molecularIndexingOutputStream =
+          new FastaIndexingOutputStream(
+              this.molecularCompressionOutputStream,
+              new BufferedOutputStream(
+                  new FileOutputStream(
+                      format(
+                          "%s/%s",
+                          this.downloadDirectory,
+                          this.molecularFilename + FASTA_INDEX_EXTENSION))));
+      this.molecularOutputStream = new CountingOutputStream(this.molecularIndexingOutputStream);
+    }
 
-    // record metadata filename and create FileOutputStream (buffered)
-    this.metadataFilename =
-        format("%s%s%s%s", METADATA_PREFIX_FILE_NAME, FILE_NAME_TEMPLATE, archiveId, METADATA_FILE_EXTENSION);
+    // create the metadata spool FileOutputStream (buffered)
+    OutputStream metadataSpoolOutputStream =
+        new FileOutputStream(format("%s/%s", this.downloadDirectory, this.metadataFilename));
     this.metadataFileOutputStream =
         new BufferedOutputStream(
-            new FileOutputStream(format("%s/%s", this.downloadDirectory, this.metadataFilename)));
+            archiveFormat.isCompressedTar()
+                ? metadataSpoolOutputStream
+                : compressionOutputStreamProvider.apply(metadataSpoolOutputStream));
 
     // write the tsv header
     this.metadataFileOutputStream.write(TsvUtils.getHeader());
+
+    this.manifestOutputStream = openManifestOutputStream(this.manifestFilename);
+  }
+
+  public static String downloadDirectoryFromArchiveId(UUID archiveId) {
+    return format("%s/%s%s", DOWNLOAD_DIR, FILE_NAME_TEMPLATE, archiveId);
+  }
+
+  public static String molecularFilenameFromArchiveId(UUID archiveId) {
+    return format(
+        "%s%s%s%s",
+        MOLECULAR_PREFIX_FILE_NAME, FILE_NAME_TEMPLATE, archiveId, MOLECULAR_FILE_EXTENSION);
+  }
+
+  public static String metadataFilenameFromArchiveId(UUID archiveId) {
+    return format(
+        "%s%s%s%s",
+        METADATA_PREFIX_FILE_NAME, FILE_NAME_TEMPLATE, archiveId, METADATA_FILE_EXTENSION);
+  }
+
+  /**
+   * Removes whatever a previous build of the archive left behind and creates the download directory
+   * for the metadata spool file
+   */
+  public static void prepareDownloadDirectory(UUID archiveId) throws IOException {
+    String downloadDirectory = downloadDirectoryFromArchiveId(archiveId);
+    String archiveFilename = archiveFilenameFromArchiveId(archiveId);
+
+    FileSystemUtils.deleteRecursively(Paths.get(downloadDirectory));
+    Files.deleteIfExists(Paths.get(format("%s/%s", DOWNLOAD_DIR, archiveFilename)));
+    Files.deleteIfExists(
+        Paths.get(format("%s/%s", DOWNLOAD_DIR, archiveManifestFilenameFromArchiveId(archiveId))));
+    Files.deleteIfExists(
+        Paths.get(
+            format("%s/%s", DOWNLOAD_DIR, archiveOffsetIndexFilenameFromArchiveId(archiveId))));
+    log.info(
+        "Cleaning up Download Directory({}) and compressed file({}).",
+        downloadDirectory,
+        archiveFilename);
+
+    Files.createDirectory(Paths.get(downloadDirectory));
+  }
+
+  /** Opens the archive file and skips over the space reserved for the molecular entry header */
+  public static FileChannel openArchiveFileChannel(
+      String archiveFilename, int archiveHeaderReservedBytes) throws IOException {
+    FileChannel archiveFileChannel =
+        FileChannel.open(
+            Paths.get(format("%s/%s", DOWNLOAD_DIR, archiveFilename)),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    archiveFileChannel.position(archiveHeaderReservedBytes);
+    return archiveFileChannel;
+  }
+
+  /** The listener is told how much of the archive has reached the file (below the buffer) */
+  public static BufferedOutputStream archiveFileOutputStream(
+      FileChannel archiveFileChannel,
+      int archiveHeaderReservedBytes,
+      LongConsumer archiveBytesWrittenListener) {
+    return new BufferedOutputStream(
+        new CountingOutputStream(Channels.newOutputStream(archiveFileChannel)) {
+          @Override
+          protected void count(long written) {
+            super.count(written);
+            archiveBytesWrittenListener.accept(archiveHeaderReservedBytes + getBytesWritten());
+          }
+        });
+  }
+
+  /**
+   * Size of the molecular tar entry, the uncompressed size in compressed tars and the size of the
+   * bgzip compressed data in BGZF_FASTA archives
+   */
+  public long getMolecularEntrySize() {
+    return format.isCompressedTar()
+        ? molecularOutputStream.getBytesWritten()
+        : bgzfMolecularOutputStream().getCompressedBytesWritten();
+  }
+
+  /** The .gzi index of the bgzip compressed molecular data of a BGZF_FASTA archive */
+  public byte[] getMolecularGziIndex() {
+    return bgzfMolecularOutputStream().getGziIndex();
+  }
+
+  private ParallelGzipOutputStream bgzfMolecularOutputStream() {
+    // the compression streams of BGZF_FASTA archives are always bgzf streams
+    return (ParallelGzipOutputStream) molecularCompressionOutputStream;
+  }
+
+  /** The manifest is kept next to the archive as it is uploaded once the archive is */
+  public static BufferedOutputStream openManifestOutputStream(String manifestFilename)
+      throws IOException {
+    BufferedOutputStream manifestOutputStream =
+        new BufferedOutputStream(
+            new GZIPOutputStream(
+                new FileOutputStream(format("%s/%s", DOWNLOAD_DIR, manifestFilename))));
+    ArchiveManifestUtils.writeManifestHeader(manifestOutputStream);
+    return manifestOutputStream;
   }
 
   public static String archiveFilenameFromArchiveId(UUID archiveId) {
     return format("%s%s%s", FILE_NAME_TEMPLATE, archiveId, ARCHIVE_EXTENSION);
   }
+
+  public static String archiveManifestFilenameFromArchiveId(UUID archiveId) {
+    return format("%s%s%s", FILE_NAME_TEMPLATE, archiveId, ArchiveManifestUtils.MANIFEST_EXTENSION);
+  }
+
+  public static String archiveOffsetIndexFilenameFromArchiveId(UUID archiveId) {
+    return format(
+        "%s%s%s", FILE_NAME_TEMPLATE, archiveId, ArchiveOffsetIndexUtils.OFFSET_INDEX_EXTENSION);
+  }
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.model;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * A piece of the molecular data of an analysis on its way to the file bundle, the chunks of an
+ * analysis arrive in order and the last one carries the analysis document row. Each chunk is
+ * released once it has been written (or discarded) so that whatever holds it in memory can be
+ * accounted for.
+ */
+@Getter
+@RequiredArgsConstructor
+public class MolecularDataChunk {
+  private final ByteBuffer data;
+  // only set on the last chunk of an analysis' molecular data
+  private final AnalysisDocumentRow analysisDocumentRow;
+
+  @Getter(AccessLevel.NONE)
+  private final Runnable onRelease;
+
+  @Getter(AccessLevel.NONE)
+  private final AtomicBoolean released = new AtomicBoolean(false);
+
+  public static MolecularDataChunk fromPair(AnalysisDocumentMolecularDataPair pair) {
+    return new MolecularDataChunk(
+        ByteBuffer.wrap(pair.getMolecularData()), pair.getAnalysisDocumentRow(), () -> {});
+  }
+
+  public boolean isLast() {
+    return analysisDocumentRow != null;
+  }
+
+  /** Runs the release action, only the first call has any effect */
+  public void release() {
+    if (released.compareAndSet(false, true)) {
+      onRelease.run();
+    }
+  }
+}
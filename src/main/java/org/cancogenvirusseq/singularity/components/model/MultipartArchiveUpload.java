@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.model;
+
+import java.nio.file.Path;
+import java.util.UUID;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import reactor.core.publisher.Sinks;
+
+/**
+ * Tracks the state of an archive's multipart upload while the archive is being written. Parts are
+ * emitted as ready once the archive file has grown past their end so they can be uploaded while the
+ * rest of the archive is still being built. Part 1 is never emitted as it contains the space
+ * reserved for the molecular tar entry header which is only written once the archive is finished.
+ */
+@Getter
+@RequiredArgsConstructor
+public class MultipartArchiveUpload {
+  private final UUID objectId = UUID.randomUUID();
+  private final Path archivePath;
+  private final String contentType;
+  private final Long partSize;
+  private final Sinks.Many<Integer> readyPartNumbers =
+      Sinks.many().unicast().onBackpressureBuffer();
+
+  @Setter private String uploadId;
+
+  private int nextReadyPartNumber = 2;
+
+  /** Called with the number of bytes written to the archive file so far */
+  public void archiveBytesWritten(long archiveBytesWritten) {
+    while (archiveBytesWritten >= nextReadyPartNumber * partSize) {
+      readyPartNumbers.tryEmitNext(nextReadyPartNumber++);
+    }
+  }
+
+  /** Called once nothing more will be written to the archive file */
+  public void archiveFinished() {
+    readyPartNumbers.tryEmitComplete();
+  }
+
+  public int partCountForArchiveSize(long archiveSize) {
+    return (int) Math.max(1, (archiveSize + partSize - 1) / partSize);
+  }
+}
@@ -1,13 +1,14 @@
 package org.cancogenvirusseq.singularity.components.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.util.Map;
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveFormat;
 
 @Getter
-@RequiredArgsConstructor
 public class SetQueryArchiveHashInfo {
   private static final ObjectMapper objectMapper = new ObjectMapper();
 
@@ -15,6 +16,24 @@ public class SetQueryArchiveHashInfo {
   private final Long numSamples;
   private final String lastUpdated;
 
+  // left out for tar.gz archives so their hash is the same as before formats were introduced
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private final ArchiveFormat format;
+
+  public SetQueryArchiveHashInfo(
+      Map<String, Object> sqon, Long numSamples, String lastUpdated, ArchiveFormat format) {
+    this.sqon = sqon;
+    this.numSamples = numSamples;
+    this.lastUpdated = lastUpdated;
+    this.format = ArchiveFormat.TAR_GZ.equals(format) ? null : format;
+  }
+
+  /** The format of the archive, null is only used in the hash info */
+  @JsonIgnore
+  public ArchiveFormat getArchiveFormat() {
+    return format == null ? ArchiveFormat.TAR_GZ : format;
+  }
+
   @Override
   @SneakyThrows
   public String toString() {
@@ -0,0 +1,12 @@
+package org.cancogenvirusseq.singularity.components.model;
+
+import lombok.Value;
+
+/** Totals over all the rows of total_count_file */
+@Value
+public class TotalCountsAggregate {
+  Long files;
+  Long samples;
+  Integer studies;
+  Long fileSizeBytes;
+}
@@ -0,0 +1,18 @@
+package org.cancogenvirusseq.singularity.components.model;
+
+import lombok.Builder;
+import lombok.Value;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.relational.core.mapping.Table;
+
+/** What a single analysis file contributes to the total counts */
+@Value
+@Builder
+@Table("total_count_file")
+public class TotalCountsFile {
+  @Id String objectId;
+  String studyId;
+  Long fileSizeBytes;
+  String[] submitterDonorIds;
+  Long seenAt;
+}
@@ -18,57 +18,156 @@
 
 package org.cancogenvirusseq.singularity.components.pipelines;
 
+import io.r2dbc.postgresql.api.PostgresqlConnection;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.PostConstruct;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.cancogenvirusseq.singularity.components.events.EventEmitter;
+import org.cancogenvirusseq.singularity.components.base.AllArchiveBuildLock;
+import org.cancogenvirusseq.singularity.components.events.AllArchiveBuildEventEmitter;
 import org.cancogenvirusseq.singularity.components.hoc.ArchiveBuildRequestToArchive;
 import org.cancogenvirusseq.singularity.components.hoc.InstantToArchiveBuildRequest;
+import org.cancogenvirusseq.singularity.components.model.AllArchiveBuildTriggerPolicy;
+import org.cancogenvirusseq.singularity.config.archive.ArchiveProperties;
 import org.springframework.stereotype.Component;
 import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
 
+/**
+ * Builds the ALL archive on events. Only the replica holding the {@link AllArchiveBuildLock} builds,
+ * an event received while another replica is building is kept pending and retried every
+ * archive.allBuildLockRetrySeconds until the lock is free (the build then reuses or skips an
+ * archive the other replica already built for the same data). A build whose lock session ends is
+ * cancelled, since another replica can then take the lock and start its own build.
+ *
+ * <p>What an event does to a build already running on this replica depends on the policy
+ * configured for the event's source in archive.allBuildTriggerPolicies, RESTART kills the running
+ * build while COALESCE lets it finish and keeps only the latest of the events received meanwhile as
+ * the follow-up build.
+ */
 @Slf4j
 @Component
 @RequiredArgsConstructor
 public class AllArchiveBuild {
-  private final EventEmitter<String> eventEmitter;
+  private final AllArchiveBuildEventEmitter eventEmitter;
   private final InstantToArchiveBuildRequest instantToArchiveBuildRequest;
   private final ArchiveBuildRequestToArchive archiveBuildRequestToArchive;
+  private final AllArchiveBuildLock allArchiveBuildLock;
+  private final ArchiveProperties archiveProperties;
+
+  private final AtomicReference<Instant> pendingBuild = new AtomicReference<>();
+  private final AtomicBoolean building = new AtomicBoolean(false);
 
   @Getter private Disposable allArchiveDisposable;
   @Getter private Disposable buildAllArchiveDisposable;
 
+  private AllArchiveBuildTriggerPolicy triggerPolicy;
+
   @PostConstruct
   public void init() {
+    triggerPolicy =
+        archiveProperties
+            .getAllBuildTriggerPolicies()
+            .getOrDefault(eventEmitter.getTriggerSource(), AllArchiveBuildTriggerPolicy.COALESCE);
+    log.info(
+        "ALL archive builds triggered by {} use the {} policy",
+        eventEmitter.getTriggerSource(),
+        triggerPolicy);
+
     // start file bundle update disposable
     allArchiveDisposable = createAllArchiveDisposable();
   }
 
   private Disposable createAllArchiveDisposable() {
-    return eventEmitter
-        .receive()
-        .doOnNext(
-            instant -> {
-              log.info("createAllArchiveDisposable received instant: {}", instant);
-
-              if (buildAllArchiveDisposable != null && !buildAllArchiveDisposable.isDisposed()) {
-                log.info("Killing existing archive build!");
-                this.buildAllArchiveDisposable.dispose();
-              }
+    return Flux.merge(
+            eventEmitter
+                .receive()
+                .doOnNext(
+                    instant -> {
+                      log.info("createAllArchiveDisposable received instant: {}", instant);
 
-              log.info("Spawning new archive build...");
-              this.buildAllArchiveDisposable = createBuildAllArchiveDisposable(Instant.now());
-            })
-        .log("Files::createAllArchiveDisposable")
+                      if (AllArchiveBuildTriggerPolicy.RESTART.equals(triggerPolicy)
+                          && buildAllArchiveDisposable != null
+                          && !buildAllArchiveDisposable.isDisposed()) {
+                        log.info("Killing existing archive build!");
+                        this.buildAllArchiveDisposable.dispose();
+                      } else if (building.get()) {
+                        log.info("Archive build is running, follow-up build is pending");
+                      }
+
+                      // replaces any pending build, so triggers coalesce into a single build
+                      pendingBuild.set(Instant.now());
+                    })
+                .log("Files::createAllArchiveDisposable"),
+            Flux.interval(Duration.ofSeconds(archiveProperties.getAllBuildLockRetrySeconds())))
+        .doOnNext(trigger -> startPendingBuild())
         .subscribe();
   }
 
+  private synchronized void startPendingBuild() {
+    if (building.get() || pendingBuild.get() == null) {
+      return;
+    }
+
+    Instant instant = pendingBuild.getAndSet(null);
+    building.set(true);
+
+    log.info("Spawning new archive build...");
+    this.buildAllArchiveDisposable = createBuildAllArchiveDisposable(instant);
+  }
+
   private Disposable createBuildAllArchiveDisposable(Instant instant) {
-    return instantToArchiveBuildRequest
-        .apply(instant)
-        .flatMapMany(archiveBuildRequestToArchive)
-        .subscribe();
+    AtomicBoolean lockAcquired = new AtomicBoolean(false);
+
+    return Mono.usingWhen(
+            allArchiveBuildLock.tryAcquire().doOnNext(lockConnection -> lockAcquired.set(true)),
+            // the build is cancelled if the lock is lost, another replica may have taken it
+            lockConnection ->
+                Mono.firstWithSignal(
+                    instantToArchiveBuildRequest
+                        .apply(instant)
+                        .flatMapMany(archiveBuildRequestToArchive)
+                        .then(Mono.just(true)),
+                    allArchiveBuildLock
+                        .lost(
+                            lockConnection,
+                            Duration.ofSeconds(archiveProperties.getAllBuildLockHeartbeatSeconds()))
+                        .then(Mono.just(false))),
+            this::releaseLock,
+            (lockConnection, throwable) -> releaseLock(lockConnection),
+            this::releaseLock)
+        .switchIfEmpty(
+            Mono.fromRunnable(
+                () -> {
+                  log.info("ALL archive build lock is held by another replica, build is pending");
+                  // a newer event may have arrived in the meantime, keep that one
+                  pendingBuild.compareAndSet(null, instant);
+                }))
+        .doFinally(
+            signalType -> {
+              building.set(false);
+
+              // start the follow-up build coalesced while this one ran, a build that did not get
+              // the lock waits for the retry interval instead
+              if (lockAcquired.get() && !SignalType.CANCEL.equals(signalType)) {
+                startPendingBuild();
+              }
+            })
+        .subscribe(
+            built -> {},
+            throwable ->
+                log.error("ALL archive build failed: {}", throwable.getLocalizedMessage()));
+  }
+
+  private Mono<Void> releaseLock(PostgresqlConnection lockConnection) {
+    // a killed build releases the lock after the next build was spawned, which then found the lock
+    // still held, so the pending build is retried as soon as the lock is released
+    return allArchiveBuildLock.release(lockConnection).doFinally(signalType -> startPendingBuild());
   }
 }
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.pipelines;
+
+import static org.cancogenvirusseq.singularity.components.utils.ArchiveOffsetIndexUtils.coalesceEntries;
+import static org.cancogenvirusseq.singularity.components.utils.ArchiveOffsetIndexUtils.groupByteRange;
+import static org.cancogenvirusseq.singularity.components.utils.ArchiveOffsetIndexUtils.readTsvRow;
+import static org.cancogenvirusseq.singularity.components.utils.ArchiveOffsetIndexUtils.sliceMolecularData;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.cancogenvirusseq.singularity.components.base.ArchiveOffsetIndexStore;
+import org.cancogenvirusseq.singularity.components.base.DownloadObjectById;
+import org.cancogenvirusseq.singularity.components.model.ArchiveOffsetIndex;
+import org.cancogenvirusseq.singularity.components.model.ArchiveOffsetIndexEntry;
+import org.cancogenvirusseq.singularity.config.archive.ArchiveProperties;
+import org.cancogenvirusseq.singularity.exceptions.http.GenomesRequestTooLargeHttpException;
+import org.cancogenvirusseq.singularity.repository.ArchivesRepo;
+import org.cancogenvirusseq.singularity.repository.model.Archive;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SynchronousSink;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuple3;
+import reactor.util.function.Tuples;
+
+/**
+ * Serves a few genomes of the latest ALL archive without a download of the whole archive. The
+ * offset index of the archive locates the gzip members holding the requested genomes, these are
+ * fetched with ranged reads of the archive object (members close to each other in a single read),
+ * decompressed and the genomes sliced out of them. Tsv rows are read by offset from the local copy
+ * of the offset index.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ArchiveGenomes {
+  private final ArchivesRepo archivesRepo;
+  private final ArchiveOffsetIndexStore archiveOffsetIndexStore;
+  private final DownloadObjectById downloadObjectById;
+  private final ArchiveProperties archiveProperties;
+
+  /**
+   * The molecular data of the requested genomes found in the latest ALL archive, in archive order.
+   * Empty when there is no ALL archive or it has no offset index.
+   */
+  public Mono<Flux<ByteBuffer>> molecularData(Collection<String> objectIds) {
+    return latestAllArchiveOffsetIndex(objectIds)
+        .map(
+            archiveAndOffsetIndex ->
+                Flux.fromIterable(
+                        coalesceEntries(
+                            archiveAndOffsetIndex.getT3(),
+                            archiveProperties.getGenomesRangeMaxGapBytes(),
+                            archiveProperties.getGenomesRangeMaxBytes()))
+                    .flatMapSequential(
+                        group -> readMolecularData(archiveAndOffsetIndex.getT1(), group),
+                        archiveProperties.getGenomesRangeReadConcurrency())
+                    .flatMapIterable(Function.identity()));
+  }
+
+  /**
+   * The tsv header and the tsv rows of the requested genomes found in the latest ALL archive, in
+   * archive order. Empty when there is no ALL archive or it has no offset index.
+   */
+  public Mono<Flux<ByteBuffer>> tsvRows(Collection<String> objectIds) {
+    return latestAllArchiveOffsetIndex(objectIds)
+        .map(
+            archiveAndOffsetIndex ->
+                Flux.just(ByteBuffer.wrap(archiveAndOffsetIndex.getT2().getTsvHeader()))
+                    .concatWith(
+                        readTsvRows(
+                            archiveAndOffsetIndex.getT2().getPath(),
+                            archiveAndOffsetIndex.getT3())));
+  }
+
+  private Mono<Tuple3<Archive, ArchiveOffsetIndex, List<ArchiveOffsetIndexEntry>>>
+      latestAllArchiveOffsetIndex(Collection<String> objectIds) {
+    if (objectIds.size() > archiveProperties.getGenomesMaxPerRequest()) {
+      return Mono.error(
+          new GenomesRequestTooLargeHttpException(archiveProperties.getGenomesMaxPerRequest()));
+    }
+
+    Set<String> requestedObjectIds = Set.copyOf(objectIds);
+    return archivesRepo
+        .findLatestAllArchive()
+        .flatMap(
+            archive ->
+                archiveOffsetIndexStore
+                    .localOffsetIndex(archive)
+                    .map(
+                        offsetIndex ->
+                            Tuples.of(
+                                archive, offsetIndex, offsetIndex.entriesOf(requestedObjectIds)))
+                    .doOnNext(
+                        archiveAndOffsetIndex ->
+                            log.info(
+                                "Serving {} of {} requested genomes from archive {}",
+                                archiveAndOffsetIndex.getT3().size(),
+                                requestedObjectIds.size(),
+                                archive.getId())));
+  }
+
+  private Flux<ByteBuffer> readTsvRows(
+      Path offsetIndexPath, List<ArchiveOffsetIndexEntry> entries) {
+    return Flux.using(
+            () -> FileChannel.open(offsetIndexPath, StandardOpenOption.READ),
+            channel ->
+                Flux.fromIterable(entries)
+                    .handle(
+                        (ArchiveOffsetIndexEntry entry, SynchronousSink<ByteBuffer> sink) -> {
+                          try {
+                            sink.next(readTsvRow(channel, entry));
+                          } catch (IOException e) {
+                            sink.error(e);
+                          }
+                        }),
+            channel -> {
+              try {
+                channel.close();
+              } catch (IOException e) {
+                log.error(e.getLocalizedMessage(), e);
+              }
+            })
+        .subscribeOn(Schedulers.boundedElastic());
+  }
+
+  private Mono<List<ByteBuffer>> readMolecularData(
+      Archive archive, List<ArchiveOffsetIndexEntry> group) {
+    return downloadObjectById
+        .apply(archive.getObjectId(), groupByteRange(group))
+        .flatMap(
+            download ->
+                download
+                    .getFlux()
+                    .reduceWith(
+                        ByteArrayOutputStream::new,
+                        (members, buffer) -> {
+                          byte[] bytes = new byte[buffer.remaining()];
+                          buffer.get(bytes);
+                          members.writeBytes(bytes);
+                          return members;
+                        }))
+        .flatMap(
+            members -> Mono.fromCallable(() -> sliceMolecularData(group, members.toByteArray())));
+  }
+}
@@ -18,11 +18,18 @@
 
 package org.cancogenvirusseq.singularity.components.pipelines;
 
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import javax.annotation.PostConstruct;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.cancogenvirusseq.singularity.components.events.EventEmitter;
+import org.cancogenvirusseq.singularity.components.model.ContributorsSnapshot;
 import org.cancogenvirusseq.singularity.config.elasticsearch.ElasticsearchProperties;
 import org.cancogenvirusseq.singularity.config.elasticsearch.ReactiveElasticSearchClientConfig;
 import org.elasticsearch.action.search.SearchRequest;
@@ -31,15 +38,18 @@ import org.elasticsearch.search.aggregations.bucket.terms.ParsedStringTerms;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+@Slf4j
 @Component
 @RequiredArgsConstructor
 @ConfigurationProperties("contributors")
 public class Contributors {
   private final ElasticsearchProperties elasticsearchProperties;
   private final ReactiveElasticSearchClientConfig reactiveElasticSearchClientConfig;
+  private final EventEmitter<Instant> eventEmitter;
 
   // Config values
   @Setter private String[] filterList = new String[] {};
@@ -47,7 +57,49 @@ public class Contributors {
 
   private static final Integer MAX_AGGREGATE_BUCKETS = 1000;
 
-  public Mono<Set<String>> getContributors() {
+  private final AtomicReference<ContributorsSnapshot> snapshot = new AtomicReference<>();
+
+  @Getter private Disposable refreshDisposable;
+
+  @PostConstruct
+  public void init() {
+    // refreshed on start up and then on the same events that trigger total counts
+    refreshDisposable =
+        eventEmitter
+            .receive()
+            .startWith(Instant.now())
+            .onBackpressureLatest()
+            .concatMap(
+                instant ->
+                    refreshSnapshot()
+                        .onErrorResume(
+                            throwable -> {
+                              log.error(
+                                  "Contributors refresh failed: {}",
+                                  throwable.getLocalizedMessage());
+                              return Mono.empty();
+                            }))
+            .subscribe(
+                refreshed ->
+                    log.info(
+                        "Contributors snapshot refreshed - {} contributors, etag {}",
+                        refreshed.getContributors().size(),
+                        refreshed.getEtag()));
+  }
+
+  /**
+   * Contributors are served from the in memory snapshot, only if no snapshot has been taken yet
+   * (first refresh in progress or failed) is Elasticsearch queried for the request.
+   */
+  public Mono<ContributorsSnapshot> getContributors() {
+    return Mono.justOrEmpty(snapshot.get()).switchIfEmpty(Mono.defer(this::refreshSnapshot));
+  }
+
+  private Mono<ContributorsSnapshot> refreshSnapshot() {
+    return fetchContributors().map(ContributorsSnapshot::fromContributors).doOnNext(snapshot::set);
+  }
+
+  private Mono<Set<String>> fetchContributors() {
     return Mono.just(
             new SearchSourceBuilder()
                 .aggregation(
@@ -80,6 +132,6 @@ public class Contributors {
                 Arrays.stream(filterList).noneMatch(filter -> filter.equals(contributor)))
         .concatWith(Flux.fromStream(Arrays.stream(appendList)))
         .collect(Collectors.toSet())
-        .log("Contributors::getContributors");
+        .log("Contributors::fetchContributors");
   }
 }
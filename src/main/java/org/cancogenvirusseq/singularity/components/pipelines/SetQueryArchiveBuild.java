@@ -1,29 +1,193 @@
 package org.cancogenvirusseq.singularity.components.pipelines;
 
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.PostConstruct;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.cancogenvirusseq.singularity.components.events.ArchiveBuildRequestEmitter;
 import org.cancogenvirusseq.singularity.components.hoc.ArchiveBuildRequestToArchive;
+import org.cancogenvirusseq.singularity.components.metrics.ArchiveBuildMetrics;
+import org.cancogenvirusseq.singularity.components.model.ArchiveBuildRequest;
+import org.cancogenvirusseq.singularity.components.utils.QueryBuilderUtils;
+import org.cancogenvirusseq.singularity.config.archive.ArchiveProperties;
+import org.cancogenvirusseq.singularity.repository.ArchiveBuildQueueRepo;
+import org.cancogenvirusseq.singularity.repository.ArchivesRepo;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveBuildQueueEntry;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveStatus;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveType;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
 import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 
+/**
+ * Runs SET_QUERY archive builds from the archive_build_queue table. Each replica claims at most
+ * archive.setQueryMaxConcurrentBuilds entries at a time (fewest samples first, then by arrival)
+ * with SKIP LOCKED so replicas never claim the same entry, and heart beats its claims while it
+ * builds. Claims whose heartbeat is older than archive.setQueryQueueClaimStaleSeconds (the replica
+ * crashed or restarted) are queued again, so builds in flight during a restart resume on their own.
+ * A build submitted when archive.setQueryMaxQueuedBuilds are already waiting is rejected.
+ */
 @Slf4j
 @Component
 @RequiredArgsConstructor
 public class SetQueryArchiveBuild {
-  private final ArchiveBuildRequestEmitter archiveBuildRequestEmitter;
   private final ArchiveBuildRequestToArchive archiveBuildRequestToArchive;
+  private final ArchiveBuildQueueRepo archiveBuildQueueRepo;
+  private final ArchivesRepo archivesRepo;
+  private final ArchiveProperties archiveProperties;
+  private final ArchiveBuildMetrics archiveBuildMetrics;
+
+  // arbitrary key shared by all replicas, distinct from the ALL archive build lock
+  private static final long ENQUEUE_LOCK_KEY = 0x7365747175657565L;
+
+  private final String workerId = UUID.randomUUID().toString();
+  private final AtomicInteger running = new AtomicInteger();
+  private final AtomicLong queued = new AtomicLong();
+  private final Sinks.Many<Long> wakeUps = Sinks.many().unicast().onBackpressureBuffer();
 
   @Getter private Disposable setQueryArchiveBuildDisposable;
 
   @PostConstruct
   public void init() {
+    archiveBuildMetrics.registerBuildQueue(
+        ArchiveType.SET_QUERY,
+        this,
+        scheduler -> scheduler.queued.get(),
+        scheduler -> scheduler.running.get());
+
     setQueryArchiveBuildDisposable = createSetQueryArchiveBuildDisposable();
   }
 
+  /**
+   * Queues the build, emits false without queueing it when the queue is full. The check and the
+   * insert are one statement run under a transaction level advisory lock, so concurrent submits of
+   * any replica can't all see room in the queue and overrun it.
+   */
+  @Transactional
+  public Mono<Boolean> submit(ArchiveBuildRequest archiveBuildRequest) {
+    return archiveBuildQueueRepo
+        .lockEnqueue(ENQUEUE_LOCK_KEY)
+        .then(
+            archiveBuildQueueRepo.enqueueIfNotFull(
+                archiveBuildRequest.getArchive().getId(),
+                QueryBuilderUtils.queryBuilderToJson(archiveBuildRequest.getQueryBuilder()),
+                archiveBuildRequest.getArchive().getNumOfSamples(),
+                System.currentTimeMillis(),
+                archiveProperties.getSetQueryMaxQueuedBuilds()))
+        .map(
+            enqueued -> {
+              if (enqueued == 0) {
+                archiveBuildMetrics.incrementQueueRejected(ArchiveType.SET_QUERY);
+                log.warn(
+                    "SET_QUERY build queue is full, rejected archive: {}",
+                    archiveBuildRequest.getArchive().getId());
+                return false;
+              }
+
+              wakeUp();
+              return true;
+            });
+  }
+
   private Disposable createSetQueryArchiveBuildDisposable() {
-    return archiveBuildRequestEmitter.receive().flatMap(archiveBuildRequestToArchive).subscribe();
+    return Flux.merge(
+            Flux.interval(
+                Duration.ZERO,
+                Duration.ofSeconds(archiveProperties.getSetQueryQueuePollIntervalSeconds())),
+            wakeUps.asFlux())
+        .onBackpressureDrop()
+        .concatMap(tick -> pollQueue(), 1)
+        .subscribe();
+  }
+
+  private void wakeUp() {
+    wakeUps.tryEmitNext(System.currentTimeMillis());
+  }
+
+  private Mono<Void> pollQueue() {
+    long now = System.currentTimeMillis();
+
+    return archiveBuildQueueRepo
+        .requeueStaleClaims(
+            now - TimeUnit.SECONDS.toMillis(archiveProperties.getSetQueryQueueClaimStaleSeconds()))
+        .doOnNext(
+            requeued -> {
+              if (requeued > 0) {
+                log.info("Requeued {} stale SET_QUERY build claims", requeued);
+              }
+            })
+        .then(archiveBuildQueueRepo.heartbeat(workerId, now))
+        .then(Mono.defer(() -> claimBuilds(now)))
+        .then(archiveBuildQueueRepo.countQueued())
+        .doOnNext(queued::set)
+        .onErrorResume(
+            throwable -> {
+              log.error("SET_QUERY build queue poll failed: {}", throwable.getLocalizedMessage());
+              return Mono.empty();
+            })
+        .then();
+  }
+
+  private Mono<Void> claimBuilds(long now) {
+    int available = archiveProperties.getSetQueryMaxConcurrentBuilds() - running.get();
+
+    if (available <= 0) {
+      return Mono.empty();
+    }
+
+    return archiveBuildQueueRepo
+        .claim(workerId, now, available)
+        .sort(
+            Comparator.comparing(ArchiveBuildQueueEntry::getNumOfSamples)
+                .thenComparing(ArchiveBuildQueueEntry::getQueuedAt))
+        .doOnNext(this::startBuild)
+        .then();
+  }
+
+  private void startBuild(ArchiveBuildQueueEntry entry) {
+    running.incrementAndGet();
+    archiveBuildMetrics.recordQueueWait(
+        ArchiveType.SET_QUERY,
+        TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - entry.getQueuedAt()));
+
+    archivesRepo
+        .findById(entry.getArchiveId())
+        // the archive may have been cancelled while it was queued
+        .filter(archive -> ArchiveStatus.BUILDING.equals(archive.getStatus()))
+        .flatMapMany(
+            archive ->
+                archiveBuildRequestToArchive.apply(
+                    new ArchiveBuildRequest(
+                        archive, QueryBuilderUtils.queryBuilderFromJson(entry.getQuery()))))
+        .onErrorResume(
+            throwable -> {
+              log.error(
+                  "SET_QUERY build for archive {} failed: {}",
+                  entry.getArchiveId(),
+                  throwable.getLocalizedMessage());
+              return Mono.empty();
+            })
+        // a failed build is queued again by the next request for the same set
+        .then(archiveBuildQueueRepo.deleteById(entry.getArchiveId()))
+        .doFinally(
+            signalType -> {
+              running.decrementAndGet();
+              wakeUp();
+            })
+        .subscribe(
+            unused -> {},
+            throwable ->
+                log.error(
+                    "Failed to remove archive {} from the SET_QUERY build queue: {}",
+                    entry.getArchiveId(),
+                    throwable.getLocalizedMessage()));
   }
 }
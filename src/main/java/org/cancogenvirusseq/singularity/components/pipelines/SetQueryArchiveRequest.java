@@ -1,14 +1,13 @@
 package org.cancogenvirusseq.singularity.components.pipelines;
 
 import java.util.UUID;
-import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.cancogenvirusseq.singularity.components.base.CountAndLastUpdatedAggregation;
+import org.cancogenvirusseq.singularity.components.base.DocumentSetContentHash;
 import org.cancogenvirusseq.singularity.components.base.GetArrangerSetDocument;
-import org.cancogenvirusseq.singularity.components.events.ArchiveBuildRequestEmitter;
 import org.cancogenvirusseq.singularity.components.model.ArchiveBuildRequest;
 import org.cancogenvirusseq.singularity.components.model.ArrangerSetDocument;
 import org.cancogenvirusseq.singularity.components.model.CountAndLastUpdatedResult;
@@ -16,11 +15,14 @@ import org.cancogenvirusseq.singularity.components.model.SetQueryArchiveHashInfo
 import org.cancogenvirusseq.singularity.components.utils.ExistingArchiveUtils;
 import org.cancogenvirusseq.singularity.config.archive.ArchiveProperties;
 import org.cancogenvirusseq.singularity.config.elasticsearch.ElasticsearchProperties;
+import org.cancogenvirusseq.singularity.exceptions.http.ArchiveBuildQueueFullHttpException;
 import org.cancogenvirusseq.singularity.exceptions.runtime.ExistingArchiveRestartException;
 import org.cancogenvirusseq.singularity.exceptions.runtime.InconsistentSetQueryException;
 import org.cancogenvirusseq.singularity.repository.ArchivesRepo;
 import org.cancogenvirusseq.singularity.repository.model.Archive;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveFormat;
 import org.cancogenvirusseq.singularity.repository.model.ArchiveStatus;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveType;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.indices.TermsLookup;
@@ -31,7 +33,7 @@ import reactor.core.publisher.Mono;
 @Component
 @RequiredArgsConstructor
 public class SetQueryArchiveRequest implements Function<UUID, Mono<Archive>> {
-  private final ArchiveBuildRequestEmitter archiveBuildRequestEmitter;
+  private final SetQueryArchiveBuild setQueryArchiveBuild;
 
   private final ElasticsearchProperties elasticsearchProperties;
   private final ArchivesRepo archivesRepo;
@@ -40,6 +42,7 @@ public class SetQueryArchiveRequest implements Function<UUID, Mono<Archive>> {
 
   private final GetArrangerSetDocument getArrangerSetDocument;
   private final CountAndLastUpdatedAggregation countAndLastUpdatedAggregation;
+  private final DocumentSetContentHash documentSetContentHash;
 
   private final ExistingArchiveUtils existingArchiveUtils;
 
@@ -49,15 +52,64 @@ public class SetQueryArchiveRequest implements Function<UUID, Mono<Archive>> {
 
   @Override
   public Mono<Archive> apply(UUID setId) {
+    return apply(setId, archiveProperties.formatForType(ArchiveType.SET_QUERY));
+  }
+
+  /** The same set built in another format is a different archive, with its own hash */
+  public Mono<Archive> apply(UUID setId, ArchiveFormat format) {
     return getArrangerSetDocument
         .apply(setId)
-        .flatMap(arrangerSetDocumentToSetQueryHashInfoFunctionForSetId(setId))
+        .flatMap(arrangerSetDocumentToSetQueryHashInfoFunctionForSetId(setId, format))
         .map(Archive::newFromSetQueryArchiveHashInfo)
-        .flatMap(saveAndTriggerBuildOrGetArchiveFunctionForSetId(setId));
+        .flatMap(
+            archiveProperties.getSetQueryContentDedupEnabled()
+                ? existingArchiveWithSameContentOrBuildFunctionForSetId(setId)
+                : saveAndTriggerBuildOrGetArchiveFunctionForSetId(setId));
+  }
+
+  /**
+   * Sets built from different sqons can hold exactly the same documents, in which case the COMPLETE
+   * archive of those documents is returned and no build is started. New archives record their
+   * content hash so they can be found for later sets. The content hash scrolls every id of the set
+   * so it is only computed when no COMPLETE or BUILDING archive has the same hash info.
+   */
+  private Function<Archive, Mono<Archive>> existingArchiveWithSameContentOrBuildFunctionForSetId(
+      UUID setId) {
+    return archive ->
+        archivesRepo
+            .findArchiveByHashInfoEquals(archive.getHashInfo())
+            .filter(
+                existingArchive ->
+                    ArchiveStatus.COMPLETE.equals(existingArchive.getStatus())
+                        || ArchiveStatus.BUILDING.equals(existingArchive.getStatus()))
+            .switchIfEmpty(
+                Mono.defer(() -> existingArchiveWithSameContentOrBuild(setId, archive)));
+  }
+
+  private Mono<Archive> existingArchiveWithSameContentOrBuild(UUID setId, Archive archive) {
+    return documentSetContentHash
+        .apply(arrangerSetTermsQuery(setId))
+        .flatMap(
+            contentHash ->
+                archivesRepo
+                    .findCompletedArchiveByContentHash(contentHash, archive.getFormat())
+                    .doOnNext(
+                        existingArchive ->
+                            log.info(
+                                "Set {} has the same documents as archive {}, reusing it",
+                                setId,
+                                existingArchive.getId()))
+                    .switchIfEmpty(
+                        Mono.defer(
+                            () -> {
+                              archive.setContentHash(contentHash);
+                              return saveAndTriggerBuildOrGetArchiveFunctionForSetId(setId)
+                                  .apply(archive);
+                            })));
   }
 
   private Function<ArrangerSetDocument, Mono<SetQueryArchiveHashInfo>>
-      arrangerSetDocumentToSetQueryHashInfoFunctionForSetId(UUID setId) {
+      arrangerSetDocumentToSetQueryHashInfoFunctionForSetId(UUID setId, ArchiveFormat format) {
     return arrangerSetDocument ->
         Mono.just(arrangerSetTermsQuery(setId))
             .flatMap(countAndLastUpdatedAggregation)
@@ -67,7 +119,8 @@ public class SetQueryArchiveRequest implements Function<UUID, Mono<Archive>> {
                     new SetQueryArchiveHashInfo(
                         arrangerSetDocument.getSqon(),
                         arrangerSetDocument.getSize(),
-                        countAndLastUpdatedResult.getLastUpdatedDate().getValueAsString()))
+                        countAndLastUpdatedResult.getLastUpdatedDate().getValueAsString(),
+                        format))
             .onErrorStop();
   }
 
@@ -100,10 +153,9 @@ public class SetQueryArchiveRequest implements Function<UUID, Mono<Archive>> {
             // why this? because R2DBC does not hydrate fields
             // (https://github.com/spring-projects/spring-data-r2dbc/issues/455)
             .flatMap(archivesRepo::findByArchiveObject)
-            // this onSuccess will only execute when the archive is created and will not be
-            // triggered by
+            // this will only execute when the archive is created and will not be triggered by
             // the onErrorResume
-            .doOnSuccess(triggerBuildArchive(setId))
+            .flatMap(queueBuildArchive(setId))
             // in the event of an already built archive, return the existing archive
             .onErrorResume(ExistingArchiveRestartException.class,
                 dataViolation ->
@@ -115,10 +167,24 @@ public class SetQueryArchiveRequest implements Function<UUID, Mono<Archive>> {
                         .switchIfEmpty(Mono.error(dataViolation)));
   }
 
-  private Consumer<Archive> triggerBuildArchive(UUID setId) {
+  private Function<Archive, Mono<Archive>> queueBuildArchive(UUID setId) {
     return createdArchive ->
-        archiveBuildRequestEmitter
-            .getSink()
-            .tryEmitNext(new ArchiveBuildRequest(createdArchive, arrangerSetTermsQuery(setId)));
+        setQueryArchiveBuild
+            .submit(new ArchiveBuildRequest(createdArchive, arrangerSetTermsQuery(setId)))
+            .flatMap(
+                queued -> {
+                  if (queued) {
+                    return Mono.just(createdArchive);
+                  }
+
+                  // failed archives are restarted by the next request for the same set
+                  createdArchive.setStatus(ArchiveStatus.FAILED);
+                  return archivesRepo
+                      .save(createdArchive)
+                      .then(
+                          Mono.error(
+                              new ArchiveBuildQueueFullHttpException(
+                                  archiveProperties.getSetQueryMaxQueuedBuilds())));
+                });
   }
 }
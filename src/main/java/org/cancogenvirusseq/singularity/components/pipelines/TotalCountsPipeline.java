@@ -3,9 +3,12 @@ package org.cancogenvirusseq.singularity.components.pipelines;
 import static org.cancogenvirusseq.singularity.components.model.AnalysisDocument.LAST_UPDATED_AT_FIELD;
 import static org.cancogenvirusseq.singularity.components.utils.ConverterUtils.convertBytesToHumanReadable;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.PostConstruct;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
@@ -13,7 +16,11 @@ import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.cancogenvirusseq.singularity.components.events.EventEmitter;
 import org.cancogenvirusseq.singularity.components.model.TotalCounts;
+import org.cancogenvirusseq.singularity.components.model.TotalCountsFile;
+import org.cancogenvirusseq.singularity.components.utils.HyperLogLog;
 import org.cancogenvirusseq.singularity.config.elasticsearch.ElasticsearchProperties;
+import org.cancogenvirusseq.singularity.config.totalCounts.TotalCountsProperties;
+import org.cancogenvirusseq.singularity.repository.TotalCountsFileRepo;
 import org.cancogenvirusseq.singularity.repository.TotalCountsRepo;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.core.TimeValue;
@@ -21,7 +28,9 @@ import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.aggregations.Aggregation;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.nested.ParsedNested;
 import org.elasticsearch.search.aggregations.bucket.terms.ParsedStringTerms;
+import org.elasticsearch.search.aggregations.metrics.ParsedCardinality;
 import org.elasticsearch.search.aggregations.metrics.ParsedStats;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.springframework.data.elasticsearch.client.reactive.ReactiveElasticsearchClient;
@@ -43,14 +52,23 @@ public class TotalCountsPipeline {
   private static final String FIELD_STUDY_ID = "study_id";
   private static final String FIELD_FILE_SIZE = "file.size";
 
-  private static final String[] ES_INCLUDE = {
+  private static final String SAMPLES_PATH = FIELD_ANALYSIS + "." + FIELD_SAMPLES;
+
+  private static final String SUBMITTER_DONOR_ID_PATH =
       FIELD_ANALYSIS +
           "." +
           FIELD_SAMPLES +
           "." +
           FIELD_DONOR +
           "." +
-          FIELD_SUBMITTER_DONOR_ID
+          FIELD_SUBMITTER_DONOR_ID;
+
+  private static final String[] ES_INCLUDE = { SUBMITTER_DONOR_ID_PATH };
+  private static final String FIELD_OBJECT_ID = "object_id";
+  private static final String FIELD_FILE = "file";
+  private static final String FIELD_SIZE = "size";
+  private static final String[] SYNC_ES_INCLUDE = {
+      FIELD_OBJECT_ID, FIELD_STUDY_ID, FIELD_FILE_SIZE, SUBMITTER_DONOR_ID_PATH
   };
 
   private final ElasticsearchProperties properties;
@@ -58,12 +76,24 @@ public class TotalCountsPipeline {
   private final EventEmitter<Instant> eventEmitter;
 
   private final TotalCountsRepo totalCountsRepo;
+  private final TotalCountsFileRepo totalCountsFileRepo;
+  private final TotalCountsProperties totalCountsProperties;
 
   @Getter private Disposable pipelineDisposable;
   private Disposable calculatorDisposable;
 
+  // analyses updated since this instant (less the overlap) are synced by the next incremental sync
+  private final AtomicReference<Instant> lastSyncedInstant = new AtomicReference<>();
+  // a full sync tick coalesced into an event trigger still runs as a full sync
+  private final AtomicBoolean fullSyncPending = new AtomicBoolean(false);
+
   @PostConstruct
   public void init() {
+    if (totalCountsProperties.getIncremental()) {
+      pipelineDisposable = createIncrementalTotalCountsPipelineDisposable();
+      return;
+    }
+
     log.info("CachedTotalCounts is empty - Calculating");
 
     // create calculator disposable on start up to fetch and count things
@@ -87,6 +117,121 @@ public class TotalCountsPipeline {
         .build());
   }
 
+  /**
+   * Total counts are computed from the total_count_file table which holds what each analysis
+   * contributes. Events only sync the analyses updated since the last sync, a full sync runs on
+   * start up (unless the table already has rows, then it is an incremental sync from the last
+   * total count) and on a slower interval to drop analyses removed from the index. Syncs run one at
+   * a time so a sync is never disposed part way through by the next event, triggers arriving during
+   * a sync are coalesced into a single follow up sync.
+   */
+  private Disposable createIncrementalTotalCountsPipelineDisposable() {
+    return Flux.concat(
+            Mono.defer(this::startUpSync).flux(),
+            Flux.merge(
+                eventEmitter
+                    .receive()
+                    .doOnNext(instant -> log.info("incremental total counts received instant: {}", instant))
+                    .map(instant -> false),
+                Flux.interval(
+                        Duration.ofSeconds(totalCountsProperties.getFullRecomputeIntervalSeconds()))
+                    .doOnNext(tick -> fullSyncPending.set(true))
+                    .map(tick -> true)))
+        .onBackpressureLatest()
+        .concatMap(
+            fullSync ->
+                syncTotalCounts(Instant.now(), fullSyncPending.getAndSet(false) || fullSync)
+                    .onErrorResume(
+                        throwable -> {
+                          log.error("Total counts sync failed: {}", throwable.getLocalizedMessage());
+                          return Mono.empty();
+                        }))
+        .subscribe(tc -> log.info("CachedTotalCounts synced - " + tc.toString()));
+  }
+
+  private Mono<Boolean> startUpSync() {
+    return totalCountsFileRepo
+        .count()
+        .filter(rows -> rows > 0)
+        .flatMap(rows -> totalCountsRepo.findTopByOrderByTimestampDesc())
+        .doOnNext(tc -> lastSyncedInstant.set(Instant.ofEpochMilli(tc.getTimestamp())))
+        .map(tc -> false)
+        .defaultIfEmpty(true);
+  }
+
+  private Mono<TotalCounts> syncTotalCounts(Instant instant, Boolean fullSync) {
+    val seenAt = instant.toEpochMilli();
+    val lastSynced = lastSyncedInstant.get();
+    val incremental = !fullSync && lastSynced != null;
+
+    val query =
+        incremental
+            ? QueryBuilders.rangeQuery(LAST_UPDATED_AT_FIELD)
+                .gte(
+                    lastSynced
+                        .minusSeconds(totalCountsProperties.getIncrementalOverlapSeconds())
+                        .toEpochMilli())
+            : QueryBuilders.matchAllQuery();
+
+    log.info("Starting {} total counts sync", incremental ? "incremental" : "full");
+
+    return client
+        .scroll(
+            new SearchRequest()
+                .indices(properties.getFileCentricIndex())
+                .source(
+                    new SearchSourceBuilder()
+                        .query(query)
+                        .size(SIZE)
+                        .fetchSource(SYNC_ES_INCLUDE, null))
+                .scroll(new TimeValue(properties.getScrollTimeoutMinutes(), TimeUnit.MINUTES)))
+        .flatMap(hit -> searchHitToTotalCountsFile(hit, seenAt))
+        // one multi row upsert per scroll page
+        .buffer(SIZE)
+        .flatMap(totalCountsFileRepo::upsertAll, totalCountsProperties.getUpsertConcurrency())
+        .reduce(0L, (rows, upserted) -> rows + upserted)
+        .doOnNext(rows -> log.info("Total counts sync upserted {} analyses", rows))
+        // only a full sync has seen every analysis still in the index
+        .then(incremental ? Mono.empty() : totalCountsFileRepo.deleteBySeenAtLessThan(seenAt))
+        .then(totalCountsFileRepo.aggregate())
+        .map(
+            aggregate ->
+                TotalCounts.builder()
+                    .files(aggregate.getFiles())
+                    .samples(aggregate.getSamples())
+                    .studies(aggregate.getStudies())
+                    .fileSizeBytes(aggregate.getFileSizeBytes())
+                    .fileSizeHumanReadable(convertBytesToHumanReadable(aggregate.getFileSizeBytes()))
+                    .timestamp(seenAt)
+                    .build())
+        .flatMap(this::updateTotalCount)
+        .doOnSuccess(tc -> lastSyncedInstant.set(instant));
+  }
+
+  private Mono<TotalCountsFile> searchHitToTotalCountsFile(SearchHit searchHit, Long seenAt) {
+    Map<String, Object> source = searchHit.getSourceAsMap();
+
+    Object file = source.get(FIELD_FILE);
+    Object size = file instanceof Map ? ((Map<?, ?>) file).get(FIELD_SIZE) : null;
+    Object studyId = source.get(FIELD_STUDY_ID);
+
+    return extractSubmitterDonorIdsFromSearchHit(searchHit)
+        .distinct()
+        .collectList()
+        .map(
+            submitterDonorIds ->
+                TotalCountsFile.builder()
+                    .objectId(
+                        Optional.ofNullable(source.get(FIELD_OBJECT_ID))
+                            .map(Object::toString)
+                            .orElse(searchHit.getId()))
+                    .studyId(studyId == null ? null : studyId.toString())
+                    .fileSizeBytes(size instanceof Number ? ((Number) size).longValue() : null)
+                    .submitterDonorIds(submitterDonorIds.toArray(String[]::new))
+                    .seenAt(seenAt)
+                    .build());
+  }
+
   private Disposable createTotalCountsPipelineDisposable() {
     return eventEmitter
         .receive()
@@ -110,7 +255,7 @@ public class TotalCountsPipeline {
     return createBuilderWithStudiesAndFilesCount()
         .flatMap(
             totalCountsBuilder ->
-                countUniqueGenomes().map(count -> totalCountsBuilder.samples(count.longValue())))
+                countUniqueGenomes().map(totalCountsBuilder::samples))
         .map(totalCountsBuilder -> totalCountsBuilder.timestamp(instant.toEpochMilli()))
         .map(TotalCounts.TotalCountsBuilder::build)
         .flatMap(this::updateTotalCount)
@@ -152,7 +297,69 @@ public class TotalCountsPipeline {
             });
   }
 
-  private Mono<Integer> countUniqueGenomes() {
+  private Mono<Long> countUniqueGenomes() {
+    switch (properties.getUniqueGenomesCountMode()) {
+      case CARDINALITY:
+        return countUniqueGenomesWithCardinalityAggregation();
+      case HYPERLOGLOG:
+        return scrollSubmitterDonorIds()
+            .reduce(
+                HyperLogLog.withRelativeError(properties.getUniqueGenomesRelativeError()),
+                (hyperLogLog, id) -> {
+                  hyperLogLog.add(id);
+                  return hyperLogLog;
+                })
+            .map(HyperLogLog::cardinality);
+      default:
+        return countUniqueGenomesExactly();
+    }
+  }
+
+  private Mono<Long> countUniqueGenomesExactly() {
+    return scrollSubmitterDonorIds()
+        // genomes are currently in 100,000s range and Integer max is ~2billion;
+        .reduce(
+            new HashSet<String>(),
+            (hashSet, id) -> {
+              hashSet.add(id);
+              return hashSet;
+            })
+        .map(hashSet -> (long) hashSet.size());
+  }
+
+  /**
+   * The samples are nested documents of the analysis, so the cardinality of the donor ids is a sub
+   * aggregation of a nested aggregation on the samples
+   */
+  private Mono<Long> countUniqueGenomesWithCardinalityAggregation() {
+    val SAMPLES_AGG_NAME = "samples";
+    val UNIQUE_GENOMES_AGG_NAME = "uniqueGenomes";
+    val source =
+        new SearchSourceBuilder()
+            .query(QueryBuilders.rangeQuery(LAST_UPDATED_AT_FIELD).to(Instant.now()))
+            .aggregation(
+                AggregationBuilders.nested(SAMPLES_AGG_NAME, SAMPLES_PATH)
+                    .subAggregation(
+                        AggregationBuilders.cardinality(UNIQUE_GENOMES_AGG_NAME)
+                            .field(SUBMITTER_DONOR_ID_PATH)
+                            .precisionThreshold(properties.getUniqueGenomesPrecisionThreshold())))
+            .size(0)
+            .fetchSource(false);
+
+    return client
+        .aggregate(new SearchRequest().indices(properties.getFileCentricIndex()).source(source))
+        .filter(aggregation -> SAMPLES_AGG_NAME.equals(aggregation.getName()))
+        .next()
+        .map(
+            aggregation ->
+                ((ParsedCardinality)
+                        ((ParsedNested) aggregation)
+                            .getAggregations()
+                            .get(UNIQUE_GENOMES_AGG_NAME))
+                    .getValue());
+  }
+
+  private Flux<String> scrollSubmitterDonorIds() {
     return client
         .scroll(
             new SearchRequest()
@@ -163,15 +370,7 @@ public class TotalCountsPipeline {
                         .size(SIZE)
                         .fetchSource(ES_INCLUDE, null))
                 .scroll(new TimeValue(properties.getScrollTimeoutMinutes(), TimeUnit.MINUTES)))
-        .flatMap(this::extractSubmitterDonorIdsFromSearchHit)
-        // genomes are currently in 100,000s range and Integer max is ~2billion;
-        .reduce(
-            new HashSet<String>(),
-            (hashSet, id) -> {
-              hashSet.add(id);
-              return hashSet;
-            })
-        .map(HashSet::size);
+        .flatMap(this::extractSubmitterDonorIdsFromSearchHit);
   }
 
   private Flux<String> extractSubmitterDonorIdsFromSearchHit(SearchHit searchHit) {
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import org.apache.lucene.util.BytesRef;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentRow;
+import org.elasticsearch.common.bytes.BytesReference;
+
+/**
+ * Decodes an analysis document straight from a streaming parser into an {@link
+ * AnalysisDocumentRow}, only the fields needed for the tsv and the object id are read, everything
+ * else is skipped without being materialized. Values are rendered exactly as {@link
+ * TsvUtils#analysisDocumentToTsvRowBytes} renders the equivalent JsonNode.
+ */
+public class AnalysisDocumentRowDecoder {
+  private static final String OBJECT_ID_FIELD = "object_id";
+
+  private static final FieldNode root = fieldTreeFromPaths(TsvUtils.getColumnSourcePaths());
+
+  /** Decodes the source in place, without copying it when it is backed by a single array */
+  public static AnalysisDocumentRow decodeSource(JsonFactory jsonFactory, BytesReference source)
+      throws IOException {
+    BytesRef sourceBytes = source.toBytesRef();
+    try (JsonParser parser =
+        jsonFactory.createParser(sourceBytes.bytes, sourceBytes.offset, sourceBytes.length)) {
+      return decode(parser);
+    }
+  }
+
+  public static AnalysisDocumentRow decode(JsonParser parser) throws IOException {
+    String[] tsvValues = new String[TsvUtils.getColumnSourcePaths().size()];
+    Arrays.fill(tsvValues, "");
+    AnalysisDocumentRow analysisDocumentRow = new AnalysisDocumentRow(tsvValues);
+
+    if (parser.nextToken() != JsonToken.START_OBJECT) {
+      throw new IOException("Analysis document source is not a json object");
+    }
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String fieldName = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+
+      if (OBJECT_ID_FIELD.equals(fieldName) && token == JsonToken.VALUE_STRING) {
+        analysisDocumentRow.setObjectId(parser.getText());
+      } else {
+        readField(parser, token, root.children.get(fieldName), tsvValues);
+      }
+    }
+
+    if (analysisDocumentRow.getObjectId() == null) {
+      throw new IOException("Analysis document source is missing object_id");
+    }
+
+    return analysisDocumentRow;
+  }
+
+  private static void readObject(JsonParser parser, FieldNode fieldNode, String[] tsvValues)
+      throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      FieldNode child = fieldNode.children.get(parser.getCurrentName());
+      readField(parser, parser.nextToken(), child, tsvValues);
+    }
+  }
+
+  private static void readField(
+      JsonParser parser, JsonToken token, FieldNode fieldNode, String[] tsvValues)
+      throws IOException {
+    if (fieldNode == null) {
+      parser.skipChildren();
+    } else if (fieldNode.columnIndex >= 0) {
+      tsvValues[fieldNode.columnIndex] = renderValue(parser, token);
+    } else if (token == JsonToken.START_OBJECT) {
+      readObject(parser, fieldNode, tsvValues);
+    } else if (token == JsonToken.START_ARRAY) {
+      // only the first element of an array of objects is used (ie. samples[0])
+      JsonToken elementToken = parser.nextToken();
+      if (elementToken == JsonToken.START_OBJECT) {
+        readObject(parser, fieldNode, tsvValues);
+      } else {
+        parser.skipChildren();
+      }
+      while (elementToken != JsonToken.END_ARRAY
+          && (elementToken = parser.nextToken()) != JsonToken.END_ARRAY) {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  /** null values are empty and arrays are joined with the list separator, as in TsvUtils */
+  private static String renderValue(JsonParser parser, JsonToken token) throws IOException {
+    switch (token) {
+      case VALUE_NULL:
+        return "";
+      case START_ARRAY:
+        StringJoiner joiner = new StringJoiner(TsvUtils.getListSeparator());
+        for (JsonToken element = parser.nextToken();
+            element != JsonToken.END_ARRAY;
+            element = parser.nextToken()) {
+          joiner.add(element == JsonToken.VALUE_NULL ? "null" : renderScalar(parser, element));
+        }
+        return joiner.toString();
+      default:
+        return renderScalar(parser, token);
+    }
+  }
+
+  /** Equivalent of JsonNode.asText() for the node the token would have been read into */
+  private static String renderScalar(JsonParser parser, JsonToken token) throws IOException {
+    switch (token) {
+      case VALUE_STRING:
+      case VALUE_NUMBER_INT:
+        return parser.getText();
+      case VALUE_NUMBER_FLOAT:
+        return Double.toString(parser.getDoubleValue());
+      case VALUE_TRUE:
+        return "true";
+      case VALUE_FALSE:
+        return "false";
+      default:
+        // objects and nested arrays have no text value
+        parser.skipChildren();
+        return "";
+    }
+  }
+
+  private static FieldNode fieldTreeFromPaths(List<String> paths) {
+    FieldNode fieldTree = new FieldNode();
+    for (int columnIndex = 0; columnIndex < paths.size(); columnIndex++) {
+      FieldNode fieldNode = fieldTree;
+      for (String fieldName : paths.get(columnIndex).split("\\.")) {
+        fieldNode = fieldNode.children.computeIfAbsent(fieldName, name -> new FieldNode());
+      }
+      fieldNode.columnIndex = columnIndex;
+    }
+    return fieldTree;
+  }
+
+  private static class FieldNode {
+    private final Map<String, FieldNode> children = new HashMap<>();
+    private int columnIndex = -1;
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A stream compressing (part of) an archive into the archive file. Finishing ends the compressed
+ * data without closing the archive file so that further members or frames can be appended after it,
+ * see {@link FileBundleUtils#tarGzipArchiveAndClose}
+ */
+public abstract class ArchiveCompressionOutputStream extends OutputStream {
+
+  /** Compresses the remaining input and writes it out without closing the underlying stream */
+  public abstract void finish() throws IOException;
+
+  /** Total time spent compressing, summed across the worker threads */
+  public abstract long getCompressionNanos();
+
+  /** Writes straight through, for the parts of an archive that are not compressed as a whole */
+  public static ArchiveCompressionOutputStream uncompressed(OutputStream out) {
+    return new ArchiveCompressionOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+      }
+
+      @Override
+      public void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+      }
+
+      @Override
+      public void flush() throws IOException {
+        out.flush();
+      }
+
+      @Override
+      public void finish() throws IOException {
+        out.flush();
+      }
+
+      @Override
+      public long getCompressionNanos() {
+        return 0;
+      }
+
+      @Override
+      public void close() throws IOException {
+        out.close();
+      }
+    };
+  }
+}
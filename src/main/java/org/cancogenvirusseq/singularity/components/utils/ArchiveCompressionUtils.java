@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.singularity.components.utils;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import org.cancogenvirusseq.singularity.config.archive.ArchiveProperties;
+import org.cancogenvirusseq.singularity.repository.model.Archive;
+import org.springframework.stereotype.Component;
+
+@Component
+@RequiredArgsConstructor
+public class ArchiveCompressionUtils {
+  // blocks compressed on the calling thread, used for types not configured for parallel compression
+  private static final ExecutorService directExecutorService =
+      MoreExecutors.newDirectExecutorService();
+
+  private final ArchiveProperties archiveProperties;
+  private final ExecutorService archiveCompressionExecutorService;
+
+  /** Provides the compression streams used to build an archive in the archive's format */
+  public Function<OutputStream, ArchiveCompressionOutputStream>
+      compressionOutputStreamProviderForArchive(Archive archive) {
+    switch (archive.getFormat()) {
+      case TAR_ZST:
+        return outputStream -> zstdOutputStream(outputStream, archive);
+      case BGZF_FASTA:
+        return outputStream ->
+            ParallelGzipOutputStream.bgzf(
+                outputStream,
+                archiveProperties.getCompressionLevel(),
+                executorServiceForArchive(archive),
+                // bgzf blocks are small, queue more of them to keep the workers busy
+                archiveProperties.getCompressionWorkers() * 8);
+      default:
+        return gzipOutputStreamProviderForArchive(archive)::apply;
+    }
+  }
+
+  /**
+   * Provides the gzip streams used to build an archive, compression happens on the shared worker
+   * pool when the archive type is configured for parallel compression
+   */
+  public Function<OutputStream, ParallelGzipOutputStream> gzipOutputStreamProviderForArchive(
+      Archive archive) {
+    ExecutorService executorService = executorServiceForArchive(archive);
+
+    return outputStream ->
+        new ParallelGzipOutputStream(
+            outputStream,
+            archiveProperties.getCompressionLevel(),
+            archiveProperties.getCompressionBlockSizeBytes(),
+            executorService,
+            // enough blocks queued to keep every worker busy while the oldest is written out
+            archiveProperties.getCompressionWorkers() * 2);
+  }
+
+  private ExecutorService executorServiceForArchive(Archive archive) {
+    return archiveProperties.getParallelCompressionTypes().contains(archive.getType())
+        ? archiveCompressionExecutorService
+        : directExecutorService;
+  }
+
+  /**
+   * Zstd compresses on its own native worker threads (as many as the shared pool has) when the
+   * archive type is configured for parallel compression, with none it compresses on the calling
+   * thread
+   */
+  @SneakyThrows
+  private ZstdArchiveOutputStream zstdOutputStream(OutputStream outputStream, Archive archive) {
+    return new ZstdArchiveOutputStream(
+        outputStream,
+        archiveProperties.getZstdCompressionLevel(),
+        archiveProperties.getParallelCompressionTypes().contains(archive.getType())
+            ? archiveProperties.getCompressionWorkers()
+            : 0);
+  }
+}
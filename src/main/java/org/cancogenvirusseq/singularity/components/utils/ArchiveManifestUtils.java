@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.utils;
+
+import static java.lang.String.format;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import lombok.extern.slf4j.Slf4j;
+import org.cancogenvirusseq.singularity.components.model.ArchiveManifestEntry;
+
+/**
+ * An archive manifest is a gzipped text file uploaded next to an archive, listing the rows of the
+ * archive in the order they were written. The first line describes the tsv format the rows were
+ * rendered with, rows from an archive with a different format can not be reused.
+ */
+@Slf4j
+public class ArchiveManifestUtils {
+  public static final String MANIFEST_EXTENSION = ".manifest.gz";
+
+  private static final String TSV_FORMAT_PREFIX = "tsv-format";
+
+  public static String currentTsvFormat() {
+    return format(
+        "%s\t%s\t%s",
+        TSV_FORMAT_PREFIX,
+        TsvUtils.getListSeparator(),
+        new String(TsvUtils.getHeader(), StandardCharsets.UTF_8).trim());
+  }
+
+  public static String manifestKeyForArchiveObjectId(String dataDir, UUID archiveObjectId) {
+    return format("%s/%s%s", dataDir, archiveObjectId, MANIFEST_EXTENSION);
+  }
+
+  public static void writeManifestHeader(OutputStream outputStream) throws IOException {
+    outputStream.write(format("%s\n", currentTsvFormat()).getBytes(StandardCharsets.UTF_8));
+  }
+
+  public static void writeManifestEntry(
+      OutputStream outputStream, String objectId, int molecularDataLength, int tsvRowLength)
+      throws IOException {
+    outputStream.write(
+        format("%s\t%d\t%d\n", objectId, molecularDataLength, tsvRowLength)
+            .getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Reads a gzipped manifest, empty if the rows of the archive were rendered with a different tsv
+   * format than the current one
+   */
+  public static Optional<List<ArchiveManifestEntry>> readManifest(byte[] gzippedManifest)
+      throws IOException {
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(gzippedManifest)),
+                StandardCharsets.UTF_8))) {
+      String tsvFormat = reader.readLine();
+      if (!currentTsvFormat().equals(tsvFormat)) {
+        log.info("Archive manifest tsv format does not match the current tsv format");
+        return Optional.empty();
+      }
+
+      List<ArchiveManifestEntry> entries = new ArrayList<>();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t");
+        entries.add(
+            new ArchiveManifestEntry(
+                fields[0], Integer.parseInt(fields[1]), Integer.parseInt(fields[2])));
+      }
+      return Optional.of(entries);
+    }
+  }
+}
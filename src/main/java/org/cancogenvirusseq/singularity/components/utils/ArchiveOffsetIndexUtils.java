@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.utils;
+
+import static java.lang.String.format;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import lombok.Getter;
+import org.apache.commons.compress.utils.IOUtils;
+import org.cancogenvirusseq.singularity.components.model.ArchiveOffsetIndex;
+import org.cancogenvirusseq.singularity.components.model.ArchiveOffsetIndexEntry;
+import org.cancogenvirusseq.singularity.components.model.ByteRange;
+
+/**
+ * An archive offset index is a gzipped file uploaded next to an ALL archive which locates the
+ * molecular data of every analysis in the archive object, so that a few genomes can be served with
+ * ranged reads of the archive instead of a download of the whole archive. The first line is the tsv
+ * header of the archive, every other line the offsets of an analysis (see {@link
+ * ArchiveOffsetIndexEntry}) followed by its tsv row.
+ *
+ * <p>Only molecular data written as gzip members holding a fixed size of input each (TAR_GZ and
+ * BGZF_FASTA archives) can be indexed, a zstd frame can't be decompressed from the middle.
+ */
+public class ArchiveOffsetIndexUtils {
+  public static final String OFFSET_INDEX_EXTENSION = ".offsets.gz";
+
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  public static String offsetIndexKeyForArchiveObjectId(String dataDir, UUID archiveObjectId) {
+    return format("%s/%s%s", dataDir, archiveObjectId, OFFSET_INDEX_EXTENSION);
+  }
+
+  /**
+   * Writes the offset index of an archive from its manifest and its tsv (header and rows), both in
+   * archive order, and the gzip members of its molecular data which start at molecularEntryOffset
+   * of the archive. Rows are copied by the length given in the manifest, byte for byte.
+   */
+  public static void writeOffsetIndex(
+      BufferedReader manifestReader,
+      InputStream tsvInputStream,
+      ParallelGzipOutputStream molecularGzipOutputStream,
+      long molecularEntryOffset,
+      OutputStream outputStream)
+      throws IOException {
+    long[] memberOffsets = molecularGzipOutputStream.getMemberOffsets();
+    int blockSize = molecularGzipOutputStream.getBlockSize();
+    long compressedEnd = molecularGzipOutputStream.getCompressedBytesWritten();
+
+    // the manifest starts with the tsv format it was written with, the tsv with its header
+    manifestReader.readLine();
+    outputStream.write(readUntil(tsvInputStream, '\n'));
+    outputStream.write('\n');
+
+    long molecularDataOffset = 0;
+    String manifestLine;
+    while ((manifestLine = manifestReader.readLine()) != null) {
+      String[] fields = manifestLine.split("\t");
+      int molecularDataLength = Integer.parseInt(fields[1]);
+      int tsvRowLength = Integer.parseInt(fields[2]);
+
+      int firstMember = (int) Math.min(molecularDataOffset / blockSize, memberOffsets.length - 1);
+      int lastMember =
+          (int) Math.max(firstMember, (molecularDataOffset + molecularDataLength - 1) / blockSize);
+
+      outputStream.write(
+          format(
+                  "%s\t%d\t%d\t%d\t%d\t%d\t%d\t",
+                  fields[0],
+                  molecularEntryOffset + memberOffsets[firstMember],
+                  molecularEntryOffset
+                      + (lastMember + 1 < memberOffsets.length
+                          ? memberOffsets[lastMember + 1]
+                          : compressedEnd),
+                  (long) firstMember * blockSize,
+                  molecularDataOffset,
+                  molecularDataLength,
+                  tsvRowLength)
+              .getBytes(StandardCharsets.UTF_8));
+      outputStream.write(readFully(tsvInputStream, tsvRowLength));
+
+      molecularDataOffset += molecularDataLength;
+    }
+  }
+
+  /** Decompresses a downloaded offset index so its tsv rows can be read by offset */
+  public static void decompressOffsetIndex(Path gzippedOffsetIndex, Path offsetIndex)
+      throws IOException {
+    try (InputStream inputStream =
+        new GZIPInputStream(Files.newInputStream(gzippedOffsetIndex), READ_BUFFER_SIZE)) {
+      Files.copy(inputStream, offsetIndex, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Loads the entries of a decompressed offset index by objectId, the tsv rows are left on disk and
+   * read with {@link #readTsvRow}
+   */
+  public static ArchiveOffsetIndex loadOffsetIndex(Path offsetIndex) throws IOException {
+    try (InputStream inputStream =
+        new BufferedInputStream(Files.newInputStream(offsetIndex), READ_BUFFER_SIZE)) {
+      OffsetIndexReader reader = new OffsetIndexReader(inputStream);
+      byte[] tsvHeader = reader.readTsvHeader();
+
+      Map<String, ArchiveOffsetIndexEntry> entries = new HashMap<>();
+      String objectId;
+      while ((objectId = reader.readObjectId()) != null) {
+        long compressedStart = reader.readOffset();
+        long compressedEnd = reader.readOffset();
+        long uncompressedStart = reader.readOffset();
+        long molecularDataOffset = reader.readOffset();
+        int molecularDataLength = (int) reader.readOffset();
+        int tsvRowLength = (int) reader.readOffset();
+
+        entries.put(
+            objectId,
+            new ArchiveOffsetIndexEntry(
+                objectId,
+                compressedStart,
+                compressedEnd,
+                uncompressedStart,
+                molecularDataOffset,
+                molecularDataLength,
+                reader.getPosition(),
+                tsvRowLength));
+        reader.skip(tsvRowLength);
+      }
+
+      return new ArchiveOffsetIndex(tsvHeader, entries, offsetIndex);
+    }
+  }
+
+  /** Reads the tsv row of an entry from the channel of its decompressed offset index */
+  public static ByteBuffer readTsvRow(FileChannel offsetIndexChannel, ArchiveOffsetIndexEntry entry)
+      throws IOException {
+    ByteBuffer tsvRow = ByteBuffer.allocate(entry.getTsvRowLength());
+    while (tsvRow.hasRemaining()) {
+      if (offsetIndexChannel.read(tsvRow, entry.getTsvRowOffset() + tsvRow.position()) == -1) {
+        throw new EOFException(
+            format("Offset index ends in the tsv row of %s", entry.getObjectId()));
+      }
+    }
+    return tsvRow.flip();
+  }
+
+  /**
+   * Groups entries (in archive order) into the ranged reads to fetch them with, entries at most
+   * maxGapBytes apart are read together unless that makes the read larger than maxRangeBytes
+   */
+  public static List<List<ArchiveOffsetIndexEntry>> coalesceEntries(
+      List<ArchiveOffsetIndexEntry> entries, long maxGapBytes, long maxRangeBytes) {
+    List<List<ArchiveOffsetIndexEntry>> groups = new ArrayList<>();
+    List<ArchiveOffsetIndexEntry> group = null;
+    long groupStart = 0;
+    long groupEnd = 0;
+
+    for (ArchiveOffsetIndexEntry entry : entries) {
+      if (group == null
+          || entry.getCompressedStart() - groupEnd > maxGapBytes
+          || Math.max(groupEnd, entry.getCompressedEnd()) - groupStart > maxRangeBytes) {
+        group = new ArrayList<>();
+        groups.add(group);
+        groupStart = entry.getCompressedStart();
+        groupEnd = entry.getCompressedEnd();
+      }
+
+      group.add(entry);
+      groupEnd = Math.max(groupEnd, entry.getCompressedEnd());
+    }
+
+    return groups;
+  }
+
+  /** Byte range of the archive object holding the members of a group of entries */
+  public static ByteRange groupByteRange(List<ArchiveOffsetIndexEntry> group) {
+    return ByteRange.fromFirstToLast(
+        group.get(0).getCompressedStart(),
+        group.stream().mapToLong(ArchiveOffsetIndexEntry::getCompressedEnd).max().orElseThrow()
+            - 1);
+  }
+
+  /**
+   * Decompresses the members fetched for a group of entries (see {@link #groupByteRange}) and
+   * slices out the molecular data of each entry, in the order of the group
+   */
+  public static List<ByteBuffer> sliceMolecularData(
+      List<ArchiveOffsetIndexEntry> group, byte[] members) throws IOException {
+    long uncompressedStart = group.get(0).getUncompressedStart();
+    long uncompressedEnd =
+        group.stream()
+            .mapToLong(entry -> entry.getMolecularDataOffset() + entry.getMolecularDataLength())
+            .max()
+            .orElseThrow();
+
+    byte[] molecularData;
+    try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(members))) {
+      molecularData = readFully(inputStream, (int) (uncompressedEnd - uncompressedStart));
+    }
+
+    return group.stream()
+        .map(
+            entry ->
+                ByteBuffer.wrap(
+                    molecularData,
+                    (int) (entry.getMolecularDataOffset() - uncompressedStart),
+                    entry.getMolecularDataLength()))
+        .collect(Collectors.toList());
+  }
+
+  /** The bytes up to (not including) the delimiter, null at the end of the stream */
+  private static byte[] readUntil(InputStream inputStream, char delimiter) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    int b;
+    while ((b = inputStream.read()) != delimiter) {
+      if (b == -1) {
+        if (bytes.size() == 0) {
+          return null;
+        }
+        throw new EOFException("Offset index ends in the middle of a line");
+      }
+      bytes.write(b);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] readFully(InputStream inputStream, int length) throws IOException {
+    byte[] bytes = inputStream.readNBytes(length);
+    if (bytes.length < length) {
+      throw new EOFException(
+          format("Expected %d bytes but only %d were left", length, bytes.length));
+    }
+    return bytes;
+  }
+  /** Reads the lines of an offset index without copying each field, tracking its position */
+  private static class OffsetIndexReader {
+    private final InputStream inputStream;
+    private byte[] field = new byte[64];
+    @Getter private long position = 0;
+
+    private OffsetIndexReader(InputStream inputStream) {
+      this.inputStream = inputStream;
+    }
+
+    /** Encoded, line terminator included */
+    private byte[] readTsvHeader() throws IOException {
+      byte[] tsvHeader = readUntil(inputStream, '\n');
+      if (tsvHeader == null) {
+        throw new EOFException("Offset index is empty");
+      }
+      position += tsvHeader.length + 1;
+      return ByteBuffer.allocate(tsvHeader.length + 1).put(tsvHeader).put((byte) '\n').array();
+    }
+
+    /** Null at the end of the index */
+    private String readObjectId() throws IOException {
+      int length = 0;
+      int b;
+      while ((b = inputStream.read()) != '\t') {
+        if (b == -1) {
+          if (length == 0) {
+            return null;
+          }
+          throw new EOFException("Offset index ends in the middle of a line");
+        }
+        if (length == field.length) {
+          field = Arrays.copyOf(field, length * 2);
+        }
+        field[length++] = (byte) b;
+      }
+      position += length + 1;
+      return new String(field, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private long readOffset() throws IOException {
+      long offset = 0;
+      int b;
+      while ((b = inputStream.read()) != '\t') {
+        if (b == -1) {
+          throw new EOFException("Offset index ends in the middle of a line");
+        }
+        if (b < '0' || b > '9') {
+          throw new IOException(format("Offset index has a malformed offset at %d", position));
+        }
+        offset = offset * 10 + (b - '0');
+        position++;
+      }
+      position++;
+      return offset;
+    }
+
+    private void skip(int length) throws IOException {
+      if (IOUtils.skip(inputStream, length) < length) {
+        throw new EOFException("Offset index ends in the middle of a tsv row");
+      }
+      position += length;
+    }
+  }
+}
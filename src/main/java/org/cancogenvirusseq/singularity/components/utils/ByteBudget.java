@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import reactor.core.publisher.Mono;
+
+/**
+ * A budget of bytes shared by concurrent consumers. An acquisition waits until the budget has room
+ * for it unless its bypass condition holds, in which case it is granted without taking anything
+ * from the budget. Bypassing lets the one consumer everybody else is waiting on keep going once the
+ * budget is used up. Waiters are re-checked whenever bytes are released or on {@link #wakeUp()}.
+ */
+public class ByteBudget {
+  @Getter private final long capacity;
+
+  private final List<Waiter> waiters = new LinkedList<>();
+  private long available;
+
+  public ByteBudget(long capacity) {
+    this.capacity = capacity;
+    this.available = capacity;
+  }
+
+  /**
+   * Waits for the bytes to be available (or bypass to hold) and emits the result of onGranted,
+   * which is told whether the bytes were taken from the budget and are to be released later
+   */
+  public <T> Mono<T> acquire(long bytes, BooleanSupplier bypass, Function<Boolean, T> onGranted) {
+    return Mono.create(
+        sink -> {
+          Waiter waiter =
+              new Waiter(bytes, bypass, accounted -> sink.success(onGranted.apply(accounted)));
+          synchronized (this) {
+            waiters.add(waiter);
+          }
+          sink.onCancel(() -> removeWaiter(waiter));
+          wakeUp();
+        });
+  }
+
+  public void release(long bytes) {
+    synchronized (this) {
+      available += bytes;
+    }
+    wakeUp();
+  }
+
+  public synchronized long getAvailable() {
+    return available;
+  }
+
+  /** Grants every waiter that fits in the budget or may bypass it */
+  public void wakeUp() {
+    List<Runnable> granted = new ArrayList<>();
+
+    synchronized (this) {
+      Iterator<Waiter> iterator = waiters.iterator();
+      while (iterator.hasNext()) {
+        Waiter waiter = iterator.next();
+        if (waiter.getBypass().getAsBoolean()) {
+          iterator.remove();
+          granted.add(() -> waiter.getOnGranted().accept(false));
+        } else if (waiter.getBytes() <= available) {
+          available -= waiter.getBytes();
+          iterator.remove();
+          granted.add(() -> waiter.getOnGranted().accept(true));
+        }
+      }
+    }
+
+    // granting may run the consumer synchronously so it is done outside the lock
+    granted.forEach(Runnable::run);
+  }
+
+  private synchronized void removeWaiter(Waiter waiter) {
+    waiters.remove(waiter);
+  }
+
+  @Getter
+  @RequiredArgsConstructor
+  private static class Waiter {
+    private final long bytes;
+    private final BooleanSupplier bypass;
+    private final Consumer<Boolean> onGranted;
+  }
+}
@@ -58,6 +58,13 @@ public class ExistingArchiveUtils {
                             archivesRepo
                                 .findArchiveByHashInfoEquals(archive.getHashInfo())
                                 .flatMap(this.canBeRestarted())
+                                .doOnNext(
+                                    existingArchive -> {
+                                      // archives from before content hashes were recorded
+                                      if (archive.getContentHash() != null) {
+                                        existingArchive.setContentHash(archive.getContentHash());
+                                      }
+                                    })
                                 .flatMap(this.resetArchiveForRestart()))
                     .orElseThrow(() -> dataViolation)
                     .log());
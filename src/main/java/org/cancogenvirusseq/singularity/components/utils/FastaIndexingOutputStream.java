@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.utils;
+
+import static java.lang.String.format;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Passes fasta through unchanged while writing its samtools .fai index to faiOutputStream: one line
+ * per sequence with its name, length, offset of its first base and its bases and bytes per line.
+ * Offsets are of the uncompressed fasta, readers of a bgzip compressed fasta map them with the
+ * .gzi.
+ *
+ * <p>A sequence can only be indexed when all its lines but the last have the same length, sequences
+ * with irregular lines are left out of the index (and counted) so the rest of the fasta can still
+ * be read at random.
+ */
+@Slf4j
+public class FastaIndexingOutputStream extends FilterOutputStream {
+  private final OutputStream faiOutputStream;
+
+  private final ByteArrayOutputStream name = new ByteArrayOutputStream();
+  private long position = 0;
+  private boolean atLineStart = true;
+  private boolean inHeader = false;
+  private boolean inSequence = false;
+  private boolean nameComplete = false;
+  private boolean finished = false;
+
+  // state of the sequence being indexed
+  private long sequenceOffset;
+  private long sequenceLength;
+  private int lineBases;
+  private int lineWidth;
+  private int currentLineBases;
+  private int currentLineWidth;
+  private boolean lastLineSeen;
+  private boolean indexable;
+
+  @Getter private long indexedSequences = 0;
+  @Getter private long skippedSequences = 0;
+
+  public FastaIndexingOutputStream(OutputStream out, OutputStream faiOutputStream) {
+    super(out);
+    this.faiOutputStream = faiOutputStream;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    out.write(b);
+    index((byte) b);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    out.write(bytes, offset, length);
+    for (int i = offset; i < offset + length; i++) {
+      index(bytes[i]);
+    }
+  }
+
+  /** Indexes the last sequence and closes the index stream, the fasta stream is left open */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+
+    if (inSequence) {
+      // the last line may not end with a new line, it is indexed as if it did
+      if (currentLineWidth > 0) {
+        currentLineWidth++;
+      }
+      endLine();
+      writeIndexLine();
+    }
+    faiOutputStream.close();
+    finished = true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    finish();
+    super.close();
+  }
+
+  private void index(byte b) throws IOException {
+    position++;
+
+    if (inHeader) {
+      if (b == '\n') {
+        startSequence();
+      } else if (!nameComplete && (b == ' ' || b == '\t' || b == '\r')) {
+        nameComplete = true;
+      } else if (!nameComplete) {
+        name.write(b);
+      }
+      return;
+    }
+
+    if (atLineStart && b == '>') {
+      if (inSequence) {
+        writeIndexLine();
+      }
+      name.reset();
+      nameComplete = false;
+      inSequence = false;
+      inHeader = true;
+      return;
+    }
+
+    atLineStart = b == '\n';
+    if (!inSequence) {
+      // anything before the first header can't be indexed
+      return;
+    }
+
+    currentLineWidth++;
+    if (b == '\n') {
+      endLine();
+    } else if (b != '\r') {
+      currentLineBases++;
+    }
+  }
+
+  private void startSequence() {
+    inHeader = false;
+    inSequence = true;
+    atLineStart = true;
+    sequenceOffset = position;
+    sequenceLength = 0;
+    lineBases = -1;
+    lineWidth = -1;
+    currentLineBases = 0;
+    currentLineWidth = 0;
+    lastLineSeen = false;
+    indexable = true;
+  }
+
+  private void endLine() {
+    if (currentLineWidth == 0) {
+      return;
+    }
+
+    if (lineBases < 0) {
+      lineBases = currentLineBases;
+      lineWidth = currentLineWidth;
+    } else if (lastLineSeen
+        || currentLineBases > lineBases
+        || (currentLineBases == lineBases && currentLineWidth != lineWidth)) {
+      // only the last line of a sequence may be shorter
+      indexable = false;
+    } else if (currentLineBases < lineBases) {
+      lastLineSeen = true;
+    }
+
+    sequenceLength += currentLineBases;
+    currentLineBases = 0;
+    currentLineWidth = 0;
+  }
+
+  private void writeIndexLine() throws IOException {
+    String sequenceName = name.toString(StandardCharsets.UTF_8);
+    if (!indexable || sequenceName.isEmpty()) {
+      log.debug("Sequence '{}' has irregular lines or no name, it is not indexed", sequenceName);
+      skippedSequences++;
+      return;
+    }
+
+    faiOutputStream.write(
+        format(
+                "%s\t%d\t%d\t%d\t%d\n",
+                sequenceName,
+                sequenceLength,
+                sequenceOffset,
+                Math.max(lineBases, 0),
+                Math.max(lineWidth, 0))
+            .getBytes(StandardCharsets.UTF_8));
+    indexedSequences++;
+  }
+}
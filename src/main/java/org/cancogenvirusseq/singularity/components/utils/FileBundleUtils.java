@@ -21,36 +21,129 @@ package org.cancogenvirusseq.singularity.components.utils;
 import static java.lang.String.format;
 import static org.cancogenvirusseq.singularity.components.model.FileBundle.DOWNLOAD_DIR;
 import static org.cancogenvirusseq.singularity.components.model.FileBundle.archiveFilenameFromArchiveId;
+import static org.cancogenvirusseq.singularity.components.model.FileBundle.archiveManifestFilenameFromArchiveId;
+import static org.cancogenvirusseq.singularity.components.model.FileBundle.archiveOffsetIndexFilenameFromArchiveId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Date;
+import java.util.List;
 import java.util.function.*;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.zip.ZipEncodingHelper;
 import org.apache.commons.compress.utils.IOUtils;
 import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentMolecularDataPair;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentRow;
+import org.cancogenvirusseq.singularity.components.model.CompressedFileBundle;
+import org.cancogenvirusseq.singularity.components.model.CompressedFragment;
 import org.cancogenvirusseq.singularity.components.model.FileBundle;
+import org.cancogenvirusseq.singularity.components.model.MolecularDataChunk;
 import org.cancogenvirusseq.singularity.repository.model.Archive;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveFormat;
 import org.springframework.util.FileSystemUtils;
 import reactor.core.publisher.Flux;
 
 @Slf4j
 public class FileBundleUtils {
+  // gzip member header (10 bytes) + stored deflate block header (5 bytes) + gzip trailer (8 bytes)
+  private static final int STORED_GZIP_MEMBER_OVERHEAD = 23;
+  // zstd magic (4 bytes) + frame header (3 bytes) + raw block header (3 bytes)
+  private static final int RAW_ZSTD_FRAME_OVERHEAD = 10;
+
+  /**
+   * The molecular tar entry header is written as an uncompressed (stored) gzip member at the very
+   * start of the archive, its size is constant so we can reserve the space before streaming the
+   * molecular data
+   */
+  public static final int ARCHIVE_HEADER_RESERVED_BYTES =
+      TarConstants.DEFAULT_RCDSIZE + STORED_GZIP_MEMBER_OVERHEAD;
+
+  /**
+   * Space reserved for the molecular tar entry header of an archive in the given format: a stored
+   * gzip member, a raw (uncompressed) zstd frame or just the header in uncompressed tars
+   */
+  public static int archiveHeaderReservedBytes(ArchiveFormat format) {
+    switch (format) {
+      case TAR_ZST:
+        return TarConstants.DEFAULT_RCDSIZE + RAW_ZSTD_FRAME_OVERHEAD;
+      case BGZF_FASTA:
+        return TarConstants.DEFAULT_RCDSIZE;
+      default:
+        return ARCHIVE_HEADER_RESERVED_BYTES;
+    }
+  }
 
   public static Function<Flux<AnalysisDocumentMolecularDataPair>, Flux<Path>>
-      createFileBundleFromPairsWithArchive(Archive archive) {
+      createFileBundleFromPairsWithArchive(
+          Archive archive,
+          Function<OutputStream, ? extends ArchiveCompressionOutputStream>
+              compressionOutputStreamProvider,
+          LongConsumer archiveBytesWrittenListener) {
     return dataPairFlux ->
         dataPairFlux
-            .reduce(new FileBundle(archive.getId()), addDownloadPairToFileBundle)
+            .map(MolecularDataChunk::fromPair)
+            .transform(
+                createFileBundleFromChunksWithArchive(
+                    archive, compressionOutputStreamProvider, archiveBytesWrittenListener));
+  }
+
+  /**
+   * Writes the molecular data chunks to the archive as they arrive, the chunks of each analysis are
+   * contiguous and its metadata row is written with its last chunk
+   */
+  public static Function<Flux<MolecularDataChunk>, Flux<Path>>
+      createFileBundleFromChunksWithArchive(
+          Archive archive,
+          Function<OutputStream, ? extends ArchiveCompressionOutputStream>
+              compressionOutputStreamProvider,
+          LongConsumer archiveBytesWrittenListener) {
+    return molecularDataChunkFlux ->
+        molecularDataChunkFlux
+            .reduce(
+                new FileBundle(
+                    archive.getId(),
+                    archive.getFormat(),
+                    compressionOutputStreamProvider,
+                    archiveBytesWrittenListener),
+                addChunkToFileBundle)
             .map(tarGzipArchiveAndClose)
             .flux()
             .log("Download::downloadAndArchiveFunctionWithInstant");
   }
 
-  private static final BiConsumer<BufferedOutputStream, byte[]> writeToFileStream =
+  /**
+   * Assembles the archive by copying the gzip members of the compressed fragments instead of
+   * compressing the molecular data and tsv rows again, see {@link #assembleTarGzipArchiveAndClose}
+   */
+  public static Function<Flux<CompressedFragment>, Flux<Path>>
+      createFileBundleFromCompressedFragmentsWithArchive(
+          Archive archive,
+          Function<OutputStream, ParallelGzipOutputStream> gzipOutputStreamProvider,
+          LongConsumer archiveBytesWrittenListener) {
+    return compressedFragmentFlux ->
+        compressedFragmentFlux
+            .reduce(
+                new CompressedFileBundle(
+                    archive.getId(), gzipOutputStreamProvider, archiveBytesWrittenListener),
+                addFragmentToFileBundle)
+            .map(assembleTarGzipArchiveAndClose)
+            .flux()
+            .log("Download::assembleArchiveFromCompressedFragments");
+  }
+
+  private static final BiConsumer<OutputStream, byte[]> writeToStream =
       (stream, bytes) -> {
         try {
           stream.write(bytes);
@@ -59,42 +152,185 @@ public class FileBundleUtils {
         }
       };
 
-  private static final BiFunction<FileBundle, AnalysisDocumentMolecularDataPair, FileBundle>
-      addDownloadPairToFileBundle =
-          (fileBundle, downloadPair) -> {
-            writeToFileStream.accept(
-                fileBundle.getMolecularFileOutputStream(), downloadPair.getMolecularData());
-            writeToFileStream.accept(
-                fileBundle.getMetadataFileOutputStream(),
-                TsvUtils.analysisDocumentToTsvRowBytes(downloadPair.getAnalysisDocument()));
+  private static final BiConsumer<OutputStream, ByteBuffer> writeBufferToStream =
+      (stream, buffer) -> {
+        try {
+          if (buffer.hasArray()) {
+            stream.write(
+                buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+          } else {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            stream.write(bytes);
+          }
+        } catch (IOException e) {
+          log.error(e.getLocalizedMessage(), e);
+        }
+      };
+
+  private static final BiFunction<FileBundle, MolecularDataChunk, FileBundle> addChunkToFileBundle =
+      (fileBundle, chunk) -> {
+        try {
+          fileBundle.setAnalysisMolecularDataLength(
+              fileBundle.getAnalysisMolecularDataLength() + chunk.getData().remaining());
+          writeBufferToStream.accept(fileBundle.getMolecularOutputStream(), chunk.getData());
+
+          if (chunk.isLast()) {
+            int tsvRowLength = writeTsvRow(fileBundle, chunk.getAnalysisDocumentRow());
+            ArchiveManifestUtils.writeManifestEntry(
+                fileBundle.getManifestOutputStream(),
+                chunk.getAnalysisDocumentRow().getObjectId(),
+                (int) fileBundle.getAnalysisMolecularDataLength(),
+                tsvRowLength);
+            fileBundle.setAnalysisMolecularDataLength(0);
+          }
+        } catch (IOException e) {
+          log.error(e.getLocalizedMessage(), e);
+        } finally {
+          chunk.release();
+        }
+        return fileBundle;
+      };
+
+  /** Rows from the fragment cache are already encoded, all others are encoded here */
+  private static int writeTsvRow(FileBundle fileBundle, AnalysisDocumentRow analysisDocumentRow)
+      throws IOException {
+    if (analysisDocumentRow.getEncodedTsvRow() != null) {
+      fileBundle.getMetadataFileOutputStream().write(analysisDocumentRow.getEncodedTsvRow());
+      return analysisDocumentRow.getEncodedTsvRow().length;
+    }
+
+    return fileBundle
+        .getTsvRowEncoder()
+        .writeRow(analysisDocumentRow, fileBundle.getMetadataFileOutputStream());
+  }
+
+  private static final BiFunction<CompressedFileBundle, CompressedFragment, CompressedFileBundle>
+      addFragmentToFileBundle =
+          (fileBundle, fragment) -> {
+            try {
+              fileBundle.getArchiveFileOutputStream().write(fragment.getMolecularDataMember());
+              fileBundle.getMetadataMembersOutputStream().write(fragment.getTsvRowMember());
+              fileBundle.setMolecularDataLength(
+                  fileBundle.getMolecularDataLength() + fragment.getMolecularDataLength());
+              fileBundle.setMetadataLength(
+                  fileBundle.getMetadataLength() + fragment.getTsvRowLength());
+              ArchiveManifestUtils.writeManifestEntry(
+                  fileBundle.getManifestOutputStream(),
+                  fragment.getAnalysisDocumentRow().getObjectId(),
+                  fragment.getMolecularDataLength(),
+                  fragment.getTsvRowLength());
+            } catch (IOException e) {
+              log.error(e.getLocalizedMessage(), e);
+            }
             return fileBundle;
           };
 
   private static final UnaryOperator<FileBundle> closeMolecularAndMetadataFileStreams =
       fileBundle -> {
         try {
-          fileBundle.getMolecularFileOutputStream().close();
+          // finish (not close) the molecular compression as the archive file is still being written
+          if (fileBundle.getMolecularIndexingOutputStream() != null) {
+            fileBundle.getMolecularIndexingOutputStream().finish();
+          }
+          fileBundle.getMolecularCompressionOutputStream().finish();
           fileBundle.getMetadataFileOutputStream().close();
+          fileBundle.getManifestOutputStream().close();
         } catch (IOException e) {
           log.error(e.getLocalizedMessage(), e);
         }
         return fileBundle;
       };
 
-  private static final UnaryOperator<FileBundle> createGzipOutputStream =
+  private static final UnaryOperator<FileBundle> writeArchiveOffsetIndex =
       fileBundle -> {
-        try {
-          fileBundle.setArchiveGzipOutputStream(
-              new GzipCompressorOutputStream(fileBundle.getArchiveFileOutputStream()));
+        // kept next to the archive like the manifest, only gzip members can be read at random
+        if (!(fileBundle.getMolecularCompressionOutputStream()
+            instanceof ParallelGzipOutputStream)) {
+          return fileBundle;
+        }
+
+        Path metadataPath =
+            Paths.get(fileBundle.getDownloadDirectory(), fileBundle.getMetadataFilename());
+        try (BufferedReader manifestReader =
+                new BufferedReader(
+                    new InputStreamReader(
+                        new GZIPInputStream(
+                            Files.newInputStream(
+                                Paths.get(DOWNLOAD_DIR, fileBundle.getManifestFilename()))),
+                        StandardCharsets.UTF_8));
+            InputStream tsvInputStream =
+                new BufferedInputStream(
+                    fileBundle.getFormat().isCompressedTar()
+                        ? Files.newInputStream(metadataPath)
+                        : new GZIPInputStream(Files.newInputStream(metadataPath)));
+            OutputStream offsetIndexOutputStream =
+                new BufferedOutputStream(
+                    new GZIPOutputStream(
+                        Files.newOutputStream(
+                            Paths.get(DOWNLOAD_DIR, fileBundle.getOffsetIndexFilename()))))) {
+          ArchiveOffsetIndexUtils.writeOffsetIndex(
+              manifestReader,
+              tsvInputStream,
+              (ParallelGzipOutputStream) fileBundle.getMolecularCompressionOutputStream(),
+              archiveHeaderReservedBytes(fileBundle.getFormat()),
+              offsetIndexOutputStream);
         } catch (IOException e) {
           log.error(e.getLocalizedMessage(), e);
         }
         return fileBundle;
       };
 
+  private static final UnaryOperator<FileBundle> writeMolecularGziIndex =
+      fileBundle -> {
+        // the .fai is spooled as the molecular data is written, the .gzi is known once it's
+        // finished
+        if (!fileBundle.getFormat().isCompressedTar()) {
+          try {
+            Files.write(
+                Paths.get(
+                    fileBundle.getDownloadDirectory(),
+                    fileBundle.getMolecularFilename() + FileBundle.GZIP_INDEX_EXTENSION),
+                fileBundle.getMolecularGziIndex());
+          } catch (IOException e) {
+            log.error(e.getLocalizedMessage(), e);
+          }
+
+          log.info(
+              "Indexed {} sequences of {}, {} sequences with irregular lines are not indexed",
+              fileBundle.getMolecularIndexingOutputStream().getIndexedSequences(),
+              fileBundle.getMolecularFilename(),
+              fileBundle.getMolecularIndexingOutputStream().getSkippedSequences());
+        }
+        return fileBundle;
+      };
+
+  private static final UnaryOperator<FileBundle> createArchiveCompressionOutputStream =
+      fileBundle -> {
+        // the remainder of the archive is appended as new gzip member(s) or zstd frame, in
+        // uncompressed tars it is written as is
+        fileBundle.setArchiveCompressionOutputStream(
+            fileBundle.getFormat().isCompressedTar()
+                ? fileBundle
+                    .getCompressionOutputStreamProvider()
+                    .apply(fileBundle.getArchiveFileOutputStream())
+                : ArchiveCompressionOutputStream.uncompressed(
+                    fileBundle.getArchiveFileOutputStream()));
+        return fileBundle;
+      };
+
+  private static final UnaryOperator<FileBundle> padMolecularEntry =
+      fileBundle -> {
+        writeToStream.accept(
+            fileBundle.getArchiveCompressionOutputStream(),
+            new byte[tarEntryPaddingLength(fileBundle.getMolecularEntrySize())]);
+        return fileBundle;
+      };
+
   private static final UnaryOperator<FileBundle> createTarOutputStream =
       fileBundle -> {
-        TarArchiveOutputStream tarArchiveOutputStream = new TarArchiveOutputStream(fileBundle.getArchiveGzipOutputStream());
+        TarArchiveOutputStream tarArchiveOutputStream =
+            new TarArchiveOutputStream(fileBundle.getArchiveCompressionOutputStream());
         tarArchiveOutputStream.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
         fileBundle.setArchiveTarOutputStream(tarArchiveOutputStream);
         return fileBundle;
@@ -102,25 +338,32 @@ public class FileBundleUtils {
 
   private static final BiConsumer<TarArchiveOutputStream, File> archiveFile =
       (tarArchiveOutputStream, file) -> {
-        try {
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
           tarArchiveOutputStream.putArchiveEntry(new TarArchiveEntry(file, file.getName()));
-          IOUtils.copy(new BufferedInputStream(new FileInputStream(file)), tarArchiveOutputStream);
+          IOUtils.copy(inputStream, tarArchiveOutputStream);
           tarArchiveOutputStream.closeArchiveEntry();
         } catch (IOException e) {
           log.error(e.getLocalizedMessage(), e);
         }
       };
 
-  private static final UnaryOperator<FileBundle> putBundleFilesInArchive =
+  private static final UnaryOperator<FileBundle> putMetadataFileInArchive =
       fileBundle -> {
+        // the molecular entry is already in the archive, bgzip compressed molecular data is
+        // followed by its indexes
+        if (!fileBundle.getFormat().isCompressedTar()) {
+          for (String indexExtension :
+              List.of(FileBundle.FASTA_INDEX_EXTENSION, FileBundle.GZIP_INDEX_EXTENSION)) {
+            archiveFile.accept(
+                fileBundle.getArchiveTarOutputStream(),
+                Paths.get(
+                        fileBundle.getDownloadDirectory(),
+                        fileBundle.getMolecularFilename() + indexExtension)
+                    .toFile());
+          }
+        }
 
-        // put both bundle files in the archive
-        archiveFile.accept(
-            fileBundle.getArchiveTarOutputStream(),
-            new File(
-                format(
-                    "%s/%s",
-                    fileBundle.getDownloadDirectory(), fileBundle.getMolecularFilename())));
+        // followed by the spooled metadata file
         archiveFile.accept(
             fileBundle.getArchiveTarOutputStream(),
             new File(
@@ -131,11 +374,40 @@ public class FileBundleUtils {
         return fileBundle;
       };
 
+  private static final UnaryOperator<FileBundle> finishArchiveStreams =
+      fileBundle -> {
+        // writes the tar end of archive records and the gzip trailer without closing the file
+        try {
+          fileBundle.getArchiveTarOutputStream().finish();
+          fileBundle.getArchiveCompressionOutputStream().finish();
+          fileBundle.getArchiveFileOutputStream().flush();
+        } catch (IOException e) {
+          log.error(e.getLocalizedMessage(), e);
+        }
+        return fileBundle;
+      };
+
+  private static final UnaryOperator<FileBundle> writeMolecularEntryHeader =
+      fileBundle -> {
+        // now that the molecular size is known, fill in the space reserved at the archive start
+        try {
+          writeReservedMolecularEntryHeader(
+              fileBundle.getArchiveFileChannel(),
+              fileBundle.getFormat(),
+              fileBundle.getMolecularFilename(),
+              fileBundle.getMolecularEntrySize());
+        } catch (IOException e) {
+          // without the header the archive is corrupt, fail the build instead of uploading it
+          closeArchiveFileChannel(fileBundle.getArchiveFileChannel());
+          throw new UncheckedIOException(e);
+        }
+        return fileBundle;
+      };
+
   private static final UnaryOperator<FileBundle> closeAllStreams =
       fileBundle -> {
-        // closing the ArchiveTarOutputStream cascades and closes the underlying gzip and buffered
-        // file
-        // input streams
+        // closing the ArchiveTarOutputStream cascades and closes the underlying compression and
+        // buffered file output streams, the molecular compression stream has already been finished
         try {
           fileBundle.getArchiveTarOutputStream().close();
         } catch (IOException e) {
@@ -160,6 +432,16 @@ public class FileBundleUtils {
           FileSystemUtils.deleteRecursively(
               Paths.get(
                   format("%s/%s", DOWNLOAD_DIR, archiveFilenameFromArchiveId(archive.getId()))));
+          FileSystemUtils.deleteRecursively(
+              Paths.get(
+                  format(
+                      "%s/%s",
+                      DOWNLOAD_DIR, archiveManifestFilenameFromArchiveId(archive.getId()))));
+          FileSystemUtils.deleteRecursively(
+              Paths.get(
+                  format(
+                      "%s/%s",
+                      DOWNLOAD_DIR, archiveOffsetIndexFilenameFromArchiveId(archive.getId()))));
           log.debug(
               "File archive '{}/{}' deleted from disk",
               DOWNLOAD_DIR,
@@ -170,14 +452,176 @@ public class FileBundleUtils {
       };
 
   /**
-   * Function that takes a fileBundle, closes it's files, generates the tar.gz, deletes the download
-   * directory and returns the full path to the archive
+   * Function that takes a fileBundle, closes it's files, writes the archive offset index, appends
+   * the metadata file (and the indexes of bgzip compressed molecular data) to the tar, writes the
+   * molecular entry header, deletes the download directory and returns the full path to the archive
    */
   public static final Function<FileBundle, Path> tarGzipArchiveAndClose =
       closeMolecularAndMetadataFileStreams
-          .andThen(createGzipOutputStream)
+          .andThen(writeArchiveOffsetIndex)
+          .andThen(writeMolecularGziIndex)
+          .andThen(createArchiveCompressionOutputStream)
+          .andThen(padMolecularEntry)
           .andThen(createTarOutputStream)
-          .andThen(putBundleFilesInArchive)
+          .andThen(putMetadataFileInArchive)
+          .andThen(finishArchiveStreams)
+          .andThen(writeMolecularEntryHeader)
           .andThen(closeAllStreams)
           .andThen(finalize);
+
+  /**
+   * Function that takes a compressed fragment file bundle and completes its archive: after the
+   * copied molecular data members it compresses the molecular entry padding, the metadata entry
+   * header and the tsv header, then copies the spooled tsv row members and compresses the metadata
+   * entry padding and the end of archive records. Every member carries its own CRC and size, so the
+   * concatenation is a standard gzip stream holding a standard tar. Finally the molecular entry
+   * header is written, the download directory deleted and the full path to the archive returned.
+   */
+  public static final Function<CompressedFileBundle, Path> assembleTarGzipArchiveAndClose =
+      fileBundle -> {
+        try {
+          fileBundle.getMetadataMembersOutputStream().close();
+          fileBundle.getManifestOutputStream().close();
+
+          ParallelGzipOutputStream metadataHeaderGzipOutputStream =
+              fileBundle
+                  .getGzipOutputStreamProvider()
+                  .apply(fileBundle.getArchiveFileOutputStream());
+          metadataHeaderGzipOutputStream.write(
+              new byte[tarEntryPaddingLength(fileBundle.getMolecularDataLength())]);
+          metadataHeaderGzipOutputStream.write(
+              tarEntryHeader(fileBundle.getMetadataFilename(), fileBundle.getMetadataLength()));
+          metadataHeaderGzipOutputStream.write(TsvUtils.getHeader());
+          metadataHeaderGzipOutputStream.finish();
+
+          Files.copy(
+              Paths.get(fileBundle.getMetadataMembersPath()),
+              fileBundle.getArchiveFileOutputStream());
+
+          // tar archives end with two zero filled records
+          int trailerLength =
+              tarEntryPaddingLength(fileBundle.getMetadataLength())
+                  + 2 * TarConstants.DEFAULT_RCDSIZE;
+          ParallelGzipOutputStream trailerGzipOutputStream =
+              fileBundle
+                  .getGzipOutputStreamProvider()
+                  .apply(fileBundle.getArchiveFileOutputStream());
+          trailerGzipOutputStream.write(new byte[trailerLength]);
+          trailerGzipOutputStream.finish();
+          fileBundle.getArchiveFileOutputStream().flush();
+        } catch (IOException e) {
+          log.error(e.getLocalizedMessage(), e);
+        }
+
+        try {
+          writeReservedMolecularEntryHeader(
+              fileBundle.getArchiveFileChannel(),
+              ArchiveFormat.TAR_GZ,
+              fileBundle.getMolecularFilename(),
+              fileBundle.getMolecularDataLength());
+        } catch (IOException e) {
+          // without the header the archive is corrupt, fail the build instead of uploading it
+          closeArchiveFileChannel(fileBundle.getArchiveFileChannel());
+          throw new UncheckedIOException(e);
+        }
+
+        try {
+          // closes the archive file channel as well
+          fileBundle.getArchiveFileOutputStream().close();
+        } catch (IOException e) {
+          log.error(e.getLocalizedMessage(), e);
+        }
+
+        try {
+          FileSystemUtils.deleteRecursively(Paths.get(fileBundle.getDownloadDirectory()));
+        } catch (IOException e) {
+          log.error(e.getLocalizedMessage(), e);
+        }
+        return Paths.get(fileBundle.getArchivePath());
+      };
+
+  private static void writeReservedMolecularEntryHeader(
+      FileChannel archiveFileChannel,
+      ArchiveFormat format,
+      String molecularFilename,
+      long molecularSize)
+      throws IOException {
+    byte[] header = tarEntryHeader(molecularFilename, molecularSize);
+    switch (format) {
+      case TAR_ZST:
+        archiveFileChannel.write(ByteBuffer.wrap(rawZstdFrame(header)), 0);
+        break;
+      case BGZF_FASTA:
+        archiveFileChannel.write(ByteBuffer.wrap(header), 0);
+        break;
+      default:
+        archiveFileChannel.write(ByteBuffer.wrap(storedGzipMember(header)), 0);
+    }
+  }
+
+  private static void closeArchiveFileChannel(FileChannel archiveFileChannel) {
+    try {
+      archiveFileChannel.close();
+    } catch (IOException e) {
+      log.error(e.getLocalizedMessage(), e);
+    }
+  }
+
+  private static int tarEntryPaddingLength(long entrySize) {
+    return (int)
+        ((TarConstants.DEFAULT_RCDSIZE - entrySize % TarConstants.DEFAULT_RCDSIZE)
+            % TarConstants.DEFAULT_RCDSIZE);
+  }
+
+  /**
+   * Single record tar header, star mode is used so that sizes larger than 8GiB are written in the
+   * binary format instead of requiring an additional PAX header record
+   */
+  private static byte[] tarEntryHeader(String filename, long size) throws IOException {
+    TarArchiveEntry tarArchiveEntry = new TarArchiveEntry(filename);
+    tarArchiveEntry.setSize(size);
+    tarArchiveEntry.setModTime(new Date());
+
+    byte[] header = new byte[TarConstants.DEFAULT_RCDSIZE];
+    tarArchiveEntry.writeEntryHeader(
+        header, ZipEncodingHelper.getZipEncoding(StandardCharsets.UTF_8.name()), true);
+    return header;
+  }
+
+  /** Wraps data in a gzip member containing a single stored (uncompressed) deflate block */
+  private static byte[] storedGzipMember(byte[] data) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(data);
+
+    return ByteBuffer.allocate(data.length + STORED_GZIP_MEMBER_OVERHEAD)
+        .order(ByteOrder.LITTLE_ENDIAN)
+        .put(ParallelGzipOutputStream.GZIP_MEMBER_HEADER)
+        // final block, stored, LEN and NLEN
+        .put((byte) 1)
+        .putShort((short) data.length)
+        .putShort((short) ~data.length)
+        .put(data)
+        .putInt((int) crc32.getValue())
+        .putInt(data.length)
+        .array();
+  }
+
+  /**
+   * Wraps the tar header record in a zstd frame holding a single raw (uncompressed) block, the
+   * frame header gives the content size (2 byte field, stored minus 256) and no window descriptor
+   * as the frame is a single segment
+   */
+  private static byte[] rawZstdFrame(byte[] data) {
+    return ByteBuffer.allocate(data.length + RAW_ZSTD_FRAME_OVERHEAD)
+        .order(ByteOrder.LITTLE_ENDIAN)
+        .putInt(0xFD2FB528)
+        // frame header descriptor: 2 byte content size, single segment, no checksum, no dictionary
+        .put((byte) 0x60)
+        .putShort((short) (data.length - 256))
+        // block header (3 bytes): last block, raw, block size
+        .putShort((short) (1 | data.length << 3))
+        .put((byte) (data.length << 3 >>> 16))
+        .put(data)
+        .array();
+  }
 }
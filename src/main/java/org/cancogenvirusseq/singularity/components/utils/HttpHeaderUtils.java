@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.singularity.components.utils;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.experimental.UtilityClass;
+import org.cancogenvirusseq.singularity.components.model.ByteRange;
+
+@UtilityClass
+public class HttpHeaderUtils {
+  private static final Pattern SINGLE_BYTE_RANGE = Pattern.compile("^(\\d*)-(\\d*)$");
+  private static final String BYTES_UNIT = "bytes=";
+  private static final String UNSATISFIED_CONTENT_RANGE_TEMPLATE = "bytes */%d";
+
+  /**
+   * Parses a Range header holding a single byte range. Multiple ranges and anything that is not a
+   * valid byte range are ignored (empty), the whole representation is then sent as a 200 which is
+   * what RFC 7233 allows for a Range the server does not support.
+   */
+  public static Optional<ByteRange> parseSingleByteRange(String rangeHeader) {
+    if (rangeHeader == null
+        || !rangeHeader.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+      return Optional.empty();
+    }
+
+    Matcher matcher = SINGLE_BYTE_RANGE.matcher(rangeHeader.substring(BYTES_UNIT.length()).trim());
+
+    if (!matcher.matches()) {
+      return Optional.empty();
+    }
+
+    try {
+      String first = matcher.group(1);
+      String last = matcher.group(2);
+
+      if (first.isEmpty() && last.isEmpty()) {
+        return Optional.empty();
+      } else if (first.isEmpty()) {
+        long suffixLength = Long.parseLong(last);
+        return suffixLength > 0 ? Optional.of(ByteRange.suffix(suffixLength)) : Optional.empty();
+      } else if (last.isEmpty()) {
+        return Optional.of(ByteRange.fromFirst(Long.parseLong(first)));
+      }
+
+      long firstPos = Long.parseLong(first);
+      long lastPos = Long.parseLong(last);
+      return firstPos <= lastPos
+          ? Optional.of(ByteRange.fromFirstToLast(firstPos, lastPos))
+          : Optional.empty();
+    } catch (NumberFormatException e) {
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Content-Range of a 416 response, tells a client resuming a download the current length of the
+   * representation (RFC 7233 4.4)
+   */
+  public static String unsatisfiedContentRange(long completeLength) {
+    return String.format(UNSATISFIED_CONTENT_RANGE_TEMPLATE, completeLength);
+  }
+
+  /**
+   * Weak comparison of an If-None-Match header value against an entity tag, a W/ prefix added by a
+   * proxy still matches, as does *
+   */
+  public static boolean etagMatches(String headerValue, String etag) {
+    return headerValue != null
+        && Arrays.stream(headerValue.split(","))
+            .map(String::trim)
+            .anyMatch(tag -> tag.equals("*") || tag.replaceFirst("^W/", "").equals(etag));
+  }
+}
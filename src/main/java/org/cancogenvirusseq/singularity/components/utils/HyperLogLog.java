@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.utils;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HyperLogLog cardinality sketch, estimates the number of distinct values added with a fixed amount
+ * of memory (one byte per register) instead of keeping the values themselves. The standard error of
+ * the estimate is about 1.04 / sqrt(number of registers).
+ */
+public class HyperLogLog {
+  private static final HashFunction hashFunction = Hashing.murmur3_128();
+  private static final int MIN_PRECISION = 4;
+  private static final int MAX_PRECISION = 18;
+
+  private final int precision;
+  private final byte[] registers;
+
+  public HyperLogLog(int precision) {
+    if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+      throw new IllegalArgumentException(
+          String.format(
+              "HyperLogLog precision must be between %d and %d", MIN_PRECISION, MAX_PRECISION));
+    }
+    this.precision = precision;
+    this.registers = new byte[1 << precision];
+  }
+
+  /** Smallest sketch whose standard error is at most the given relative error */
+  public static HyperLogLog withRelativeError(double relativeError) {
+    int precision = (int) Math.ceil(2 * Math.log(1.04 / relativeError) / Math.log(2));
+    return new HyperLogLog(Math.max(MIN_PRECISION, Math.min(MAX_PRECISION, precision)));
+  }
+
+  public void add(String value) {
+    long hash = hashFunction.hashString(value, StandardCharsets.UTF_8).asLong();
+
+    // the first bits select the register, the rank is the position of the first one bit after them
+    int index = (int) (hash >>> (Long.SIZE - precision));
+    byte rank =
+        (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+
+    if (rank > registers[index]) {
+      registers[index] = rank;
+    }
+  }
+
+  public long cardinality() {
+    int registerCount = registers.length;
+    double sum = 0;
+    int zeroRegisters = 0;
+    for (byte register : registers) {
+      sum += 1.0 / (1L << register);
+      if (register == 0) {
+        zeroRegisters++;
+      }
+    }
+
+    double estimate = alpha(registerCount) * registerCount * registerCount / sum;
+
+    // small cardinalities are estimated better by linear counting of the empty registers, with a
+    // 64 bit hash no large range correction is needed
+    if (estimate <= 2.5 * registerCount && zeroRegisters > 0) {
+      estimate = registerCount * Math.log((double) registerCount / zeroRegisters);
+    }
+
+    return Math.round(estimate);
+  }
+
+  private static double alpha(int registerCount) {
+    switch (registerCount) {
+      case 16:
+        return 0.673;
+      case 32:
+        return 0.697;
+      case 64:
+        return 0.709;
+      default:
+        return 0.7213 / (1 + 1.079 / registerCount);
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Getter;
+
+/**
+ * Sizes of cached entries in least recently used order. Adding an entry evicts the least recently
+ * used ones until the total size is back under the capacity and returns their keys so that the
+ * caller can delete whatever they refer to. An entry larger than the whole capacity is evicted
+ * straight away.
+ */
+public class LruSizeIndex {
+  @Getter private final long capacity;
+
+  private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalSize = 0;
+
+  public LruSizeIndex(long capacity) {
+    this.capacity = capacity;
+  }
+
+  /** Marks the entry as the most recently used, returns false when it isn't in the index */
+  public synchronized boolean touch(String key) {
+    return sizes.get(key) != null;
+  }
+
+  /** Adds (or replaces) the entry as the most recently used and returns the evicted keys */
+  public synchronized List<String> put(String key, long size) {
+    Long previousSize = sizes.put(key, size);
+    totalSize += size - (previousSize == null ? 0 : previousSize);
+
+    List<String> evicted = new ArrayList<>();
+    Iterator<Map.Entry<String, Long>> iterator = sizes.entrySet().iterator();
+    while (totalSize > capacity && iterator.hasNext()) {
+      Map.Entry<String, Long> eldest = iterator.next();
+      totalSize -= eldest.getValue();
+      evicted.add(eldest.getKey());
+      iterator.remove();
+    }
+    return evicted;
+  }
+
+  public synchronized void remove(String key) {
+    Long size = sizes.remove(key);
+    if (size != null) {
+      totalSize -= size;
+    }
+  }
+
+  public synchronized long getTotalSize() {
+    return totalSize;
+  }
+
+  public synchronized int size() {
+    return sizes.size();
+  }
+}
@@ -0,0 +1,341 @@
+package org.cancogenvirusseq.singularity.components.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Pigz style gzip output stream, input is split into fixed size blocks that are compressed
+ * concurrently on the provided executor as independent gzip members and written to the underlying
+ * stream in order. Concatenated members are a standard gzip stream (RFC 1952) so the output can be
+ * read by gzip, tar -xz, GZIPInputStream etc.
+ *
+ * <p>The number of blocks held in memory is bounded by maxBlocksInFlight, writes block when that
+ * limit is reached until the oldest block has been compressed and written out.
+ *
+ * <p>Created with {@link #bgzf} the members are BGZF blocks as written by bgzip (SAM/BAM
+ * specification 4.1), the output can then be indexed by the block offsets (see {@link
+ * #getGziIndex}) and read at random by samtools faidx, htsjdk etc.
+ *
+ * <p>As all members but the last hold exactly blockSize bytes of input, any range of the input can
+ * be read back by decompressing only the members covering it (see {@link #getMemberOffsets}).
+ */
+public class ParallelGzipOutputStream extends ArchiveCompressionOutputStream {
+  /** magic, deflate method, no flags, no mtime, no extra flags, unknown OS */
+  public static final byte[] GZIP_MEMBER_HEADER =
+      new byte[] {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+  /** BGZF blocks hold at most 64KiB of input, bgzip uses a little less so they always fit */
+  public static final int BGZF_BLOCK_SIZE = 0xff00;
+
+  /** an empty BGZF block marks the end of the file, the same bytes as given by the specification */
+  public static final byte[] BGZF_EOF_BLOCK =
+      compressBgzfBlock(new byte[0], 0, Deflater.DEFAULT_COMPRESSION);
+
+  private static final int GZIP_MEMBER_TRAILER_SIZE = 8;
+  private static final int DEFLATE_BUFFER_SIZE = 64 * 1024;
+  // gzip member header with the BC extra subfield holding the block size
+  private static final int BGZF_HEADER_SIZE = 18;
+  private static final int BGZF_MAX_BLOCK_SIZE = 64 * 1024;
+
+  private final OutputStream out;
+  private final int compressionLevel;
+  private final int blockSize;
+  private final ExecutorService executorService;
+  private final int maxBlocksInFlight;
+  private final boolean bgzf;
+
+  private final Deque<Future<byte[]>> blocksInFlight = new ArrayDeque<>();
+  private final LongAdder compressionNanos = new LongAdder();
+  private byte[] block;
+  // compressed offset of every member written, member i holds the input from i * blockSize
+  private long[] memberOffsets = new long[64];
+  private int blockLength = 0;
+  private long membersWritten = 0;
+  private long compressedBytesWritten = 0;
+  private boolean finished = false;
+  private boolean closed = false;
+
+  public ParallelGzipOutputStream(
+      OutputStream out,
+      int compressionLevel,
+      int blockSize,
+      ExecutorService executorService,
+      int maxBlocksInFlight) {
+    this(out, compressionLevel, blockSize, executorService, maxBlocksInFlight, false);
+  }
+
+  private ParallelGzipOutputStream(
+      OutputStream out,
+      int compressionLevel,
+      int blockSize,
+      ExecutorService executorService,
+      int maxBlocksInFlight,
+      boolean bgzf) {
+    this.out = out;
+    this.compressionLevel = compressionLevel;
+    this.blockSize = blockSize;
+    this.executorService = executorService;
+    this.maxBlocksInFlight = Math.max(1, maxBlocksInFlight);
+    this.bgzf = bgzf;
+    this.block = new byte[blockSize];
+  }
+
+  /** Block gzip (bgzip compatible) stream, ends with the BGZF end of file block when finished */
+  public static ParallelGzipOutputStream bgzf(
+      OutputStream out,
+      int compressionLevel,
+      ExecutorService executorService,
+      int maxBlocksInFlight) {
+    return new ParallelGzipOutputStream(
+        out, compressionLevel, BGZF_BLOCK_SIZE, executorService, maxBlocksInFlight, true);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    if (finished) {
+      throw new IOException("ParallelGzipOutputStream has already been finished");
+    }
+
+    while (length > 0) {
+      int copyLength = Math.min(length, blockSize - blockLength);
+      System.arraycopy(bytes, offset, block, blockLength, copyLength);
+      blockLength += copyLength;
+      offset += copyLength;
+      length -= copyLength;
+
+      if (blockLength == blockSize) {
+        submitBlock();
+      }
+    }
+  }
+
+  /** Writes out any members that have already been compressed, does not end the current block */
+  @Override
+  public void flush() throws IOException {
+    while (!blocksInFlight.isEmpty() && blocksInFlight.peek().isDone()) {
+      writeNextMember();
+    }
+    out.flush();
+  }
+
+  /**
+   * Compresses the remaining input and writes all members to the underlying stream without closing
+   * it, nothing can be written after finishing
+   */
+  @Override
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+
+    // an empty input still needs one (empty) member to be a valid gzip stream, bgzf streams
+    // always end with the (empty) end of file block
+    if (blockLength > 0 || (!bgzf && membersWritten + blocksInFlight.size() == 0)) {
+      submitBlock();
+    }
+
+    while (!blocksInFlight.isEmpty()) {
+      writeNextMember();
+    }
+
+    if (bgzf) {
+      out.write(BGZF_EOF_BLOCK);
+      compressedBytesWritten += BGZF_EOF_BLOCK.length;
+    }
+
+    out.flush();
+    finished = true;
+  }
+
+  /** Total time spent compressing blocks, summed across the worker threads */
+  @Override
+  public long getCompressionNanos() {
+    return compressionNanos.sum();
+  }
+
+  /** Bytes of compressed output written to the underlying stream so far */
+  public long getCompressedBytesWritten() {
+    return compressedBytesWritten;
+  }
+
+  /** Bytes of input held by every member but the last */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /** Compressed offsets of the members written so far, the bgzf end of file block excluded */
+  public long[] getMemberOffsets() {
+    return Arrays.copyOf(memberOffsets, (int) membersWritten);
+  }
+
+  /**
+   * The bgzip .gzi index of the blocks written so far: the number of entries followed by the
+   * compressed and uncompressed offset of each block after the first, as little endian uint64
+   */
+  public byte[] getGziIndex() {
+    if (!bgzf) {
+      throw new IllegalStateException("Only bgzf streams can be indexed");
+    }
+
+    int entries = (int) Math.max(0, membersWritten - 1);
+    ByteBuffer gziIndex =
+        ByteBuffer.allocate(Long.BYTES + entries * 2 * Long.BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN)
+            .putLong(entries);
+    for (int member = 1; member <= entries; member++) {
+      gziIndex.putLong(memberOffsets[member]).putLong((long) member * blockSize);
+    }
+    return gziIndex.array();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    try {
+      finish();
+    } finally {
+      blocksInFlight.forEach(future -> future.cancel(true));
+      blocksInFlight.clear();
+      out.close();
+      closed = true;
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    final byte[] data = block;
+    final int length = blockLength;
+    final int level = compressionLevel;
+    final boolean bgzfBlock = bgzf;
+
+    blocksInFlight.add(
+        executorService.submit(
+            () -> {
+              long start = System.nanoTime();
+              byte[] member =
+                  bgzfBlock
+                      ? compressBgzfBlock(data, length, level)
+                      : compressMember(data, length, level);
+              compressionNanos.add(System.nanoTime() - start);
+              return member;
+            }));
+
+    block = new byte[blockSize];
+    blockLength = 0;
+
+    while (blocksInFlight.size() > maxBlocksInFlight) {
+      writeNextMember();
+    }
+  }
+
+  private void writeNextMember() throws IOException {
+    try {
+      byte[] member = blocksInFlight.remove().get();
+      if (membersWritten == memberOffsets.length) {
+        memberOffsets = Arrays.copyOf(memberOffsets, memberOffsets.length * 2);
+      }
+      // every block but the last is full so the uncompressed offset follows from the count
+      memberOffsets[(int) membersWritten] = compressedBytesWritten;
+      out.write(member);
+      membersWritten++;
+      compressedBytesWritten += member.length;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for gzip block compression");
+    } catch (ExecutionException e) {
+      throw new IOException("Gzip block compression failed", e.getCause());
+    }
+  }
+
+  /** Compresses the data as a single standalone gzip member */
+  public static byte[] compressMember(byte[] data, int length, int level) {
+    ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + DEFLATE_BUFFER_SIZE);
+    member.writeBytes(GZIP_MEMBER_HEADER);
+    member.writeBytes(rawDeflate(data, length, level));
+    member.writeBytes(gzipMemberTrailer(data, length));
+    return member.toByteArray();
+  }
+
+  /**
+   * Compresses the data (at most {@link #BGZF_BLOCK_SIZE} bytes) as a single BGZF block, data that
+   * doesn't compress below the 64KiB block limit is stored uncompressed instead
+   */
+  public static byte[] compressBgzfBlock(byte[] data, int length, int level) {
+    byte[] deflated = rawDeflate(data, length, level);
+    if (BGZF_HEADER_SIZE + deflated.length + GZIP_MEMBER_TRAILER_SIZE > BGZF_MAX_BLOCK_SIZE) {
+      // final block, stored, LEN and NLEN followed by the data
+      deflated =
+          ByteBuffer.allocate(5 + length)
+              .order(ByteOrder.LITTLE_ENDIAN)
+              .put((byte) 1)
+              .putShort((short) length)
+              .putShort((short) ~length)
+              .put(data, 0, length)
+              .array();
+    }
+
+    int bgzfBlockSize = BGZF_HEADER_SIZE + deflated.length + GZIP_MEMBER_TRAILER_SIZE;
+    return ByteBuffer.allocate(bgzfBlockSize)
+        .order(ByteOrder.LITTLE_ENDIAN)
+        // magic, deflate method, extra field flag, no mtime, no extra flags, unknown OS
+        .put(new byte[] {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff})
+        // extra field length, BC subfield of 2 bytes holding the block size minus one
+        .putShort((short) 6)
+        .put((byte) 'B')
+        .put((byte) 'C')
+        .putShort((short) 2)
+        .putShort((short) (bgzfBlockSize - 1))
+        .put(deflated)
+        .put(gzipMemberTrailer(data, length))
+        .array();
+  }
+
+  // raw deflate (nowrap) as the gzip header and trailer are written separately
+  private static byte[] rawDeflate(byte[] data, int length, int level) {
+    ByteArrayOutputStream deflated = new ByteArrayOutputStream(length / 2 + DEFLATE_BUFFER_SIZE);
+    Deflater deflater = new Deflater(level, true);
+    try {
+      deflater.setInput(data, 0, length);
+      deflater.finish();
+
+      byte[] buffer = new byte[DEFLATE_BUFFER_SIZE];
+      while (!deflater.finished()) {
+        deflated.write(buffer, 0, deflater.deflate(buffer));
+      }
+    } finally {
+      deflater.end();
+    }
+    return deflated.toByteArray();
+  }
+
+  private static byte[] gzipMemberTrailer(byte[] data, int length) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(data, 0, length);
+
+    return ByteBuffer.allocate(GZIP_MEMBER_TRAILER_SIZE)
+        .order(ByteOrder.LITTLE_ENDIAN)
+        .putInt((int) crc32.getValue())
+        .putInt(length)
+        .array();
+  }
+}
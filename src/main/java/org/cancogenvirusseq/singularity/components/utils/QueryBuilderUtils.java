@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.singularity.components.utils;
+
+import java.io.IOException;
+import java.util.Collections;
+import lombok.SneakyThrows;
+import lombok.experimental.UtilityClass;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchModule;
+
+/** Serializes elasticsearch queries to json and back so they can be stored with a queued build */
+@UtilityClass
+public class QueryBuilderUtils {
+  private static final NamedXContentRegistry namedXContentRegistry =
+      new NamedXContentRegistry(
+          new SearchModule(Settings.EMPTY, false, Collections.emptyList()).getNamedXContents());
+
+  public static String queryBuilderToJson(QueryBuilder queryBuilder) {
+    return Strings.toString(queryBuilder);
+  }
+
+  @SneakyThrows(IOException.class)
+  public static QueryBuilder queryBuilderFromJson(String json) {
+    try (XContentParser parser =
+        XContentType.JSON
+            .xContent()
+            .createParser(
+                namedXContentRegistry, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, json)) {
+      return AbstractQueryBuilder.parseInnerQueryBuilder(parser);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentRow;
+
+/**
+ * Encodes tsv rows as UTF-8 straight into a reusable buffer which is then written to the output
+ * stream in one call. The output is byte for byte what joining the values with tabs and calling
+ * getBytes(UTF_8) produces, including '?' for unpaired surrogates. Not thread safe, each file
+ * bundle has its own encoder.
+ */
+public class TsvRowEncoder {
+  private static final int INITIAL_BUFFER_SIZE = 4096;
+
+  private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+  private int length = 0;
+
+  /** Writes the row and returns the number of bytes written */
+  public int writeRow(AnalysisDocumentRow analysisDocumentRow, OutputStream outputStream)
+      throws IOException {
+    return writeRow(analysisDocumentRow.getTsvValues(), outputStream);
+  }
+
+  public int writeRow(String[] values, OutputStream outputStream) throws IOException {
+    length = 0;
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) {
+        putByte((byte) '\t');
+      }
+      putUtf8(values[i]);
+    }
+    putByte((byte) '\n');
+
+    outputStream.write(buffer, 0, length);
+    return length;
+  }
+
+  private void putByte(byte b) {
+    ensureCapacity(1);
+    buffer[length++] = b;
+  }
+
+  private void putUtf8(String value) {
+    if (value == null) {
+      return;
+    }
+
+    // a char never takes more than 3 bytes, surrogate pairs take 4 bytes for 2 chars
+    ensureCapacity(value.length() * 3);
+
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        buffer[length++] = (byte) c;
+      } else if (c < 0x800) {
+        buffer[length++] = (byte) (0xc0 | (c >> 6));
+        buffer[length++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < value.length()
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        buffer[length++] = (byte) (0xf0 | (codePoint >> 18));
+        buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        buffer[length++] = (byte) '?';
+      } else {
+        buffer[length++] = (byte) (0xe0 | (c >> 12));
+        buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buffer[length++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+  }
+
+  private void ensureCapacity(int additional) {
+    if (length + additional > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+    }
+  }
+}
@@ -42,6 +42,10 @@ public class TsvUtils {
     LIST_SEPARATOR = listSeparator;
   }
 
+  public static String getListSeparator() {
+    return LIST_SEPARATOR;
+  }
+
   @Getter
   private static final byte[] header =
     (String.join(
@@ -101,6 +105,61 @@ public class TsvUtils {
       + "\n")
       .getBytes(StandardCharsets.UTF_8);
 
+  // source field path of each column (in header order), see AnalysisDocumentRowDecoder
+  @Getter
+  private static final List<String> columnSourcePaths =
+    List.of(
+      "study_id",
+      "analysis.samples.donor.submitterDonorId",
+      "analysis.lineage_analysis.lineage_name",
+      "analysis.lineage_analysis.lineage_analysis_software_name",
+      "analysis.lineage_analysis.lineage_analysis_software_version",
+      "analysis.lineage_analysis.lineage_analysis_software_data_version",
+      "analysis.lineage_analysis.scorpio_call",
+      "analysis.lineage_analysis.scorpio_version",
+      "analysis.sample_collection.sample_collected_by",
+      "analysis.sample_collection.sequence_submitted_by",
+      "analysis.firstPublishedAt",
+      "analysis.sample_collection.sample_collection_date",
+      "analysis.sample_collection.sample_collection_date_null_reason",
+      "analysis.sample_collection.geo_loc_country",
+      "analysis.sample_collection.geo_loc_province",
+      "analysis.sample_collection.organism",
+      "analysis.sample_collection.isolate",
+      "analysis.sample_collection.fasta_header_name",
+      "analysis.sample_collection.purpose_of_sampling",
+      "analysis.sample_collection.purpose_of_sampling_details",
+      "analysis.sample_collection.anatomical_material",
+      "analysis.sample_collection.anatomical_part",
+      "analysis.sample_collection.body_product",
+      "analysis.sample_collection.environmental_material",
+      "analysis.sample_collection.environmental_site",
+      "analysis.sample_collection.collection_device",
+      "analysis.sample_collection.collection_method",
+      "analysis.host.host_scientific_name",
+      "analysis.host.host_disease",
+      "analysis.host.host_age_null_reason",
+      "analysis.host.host_age_unit",
+      "analysis.host.host_age_bin",
+      "analysis.host.host_gender",
+      "analysis.experiment.purpose_of_sequencing",
+      "analysis.experiment.purpose_of_sequencing_details",
+      "analysis.experiment.sequencing_instrument",
+      "analysis.experiment.sequencing_protocol",
+      "analysis.sequence_analysis.raw_sequence_data_processing_method",
+      "analysis.sequence_analysis.dehosting_method",
+      "analysis.sequence_analysis.consensus_sequence_software_name",
+      "analysis.sequence_analysis.consensus_sequence_software_version",
+      "analysis.sequence_analysis.metrics.breadth_of_coverage",
+      "analysis.sequence_analysis.metrics.depth_of_coverage",
+      "analysis.sequence_analysis.reference_genome_accession",
+      "analysis.sequence_analysis.bioinformatics_protocol",
+      "analysis.pathogen_diagnostic_testing.gene_name",
+      "analysis.pathogen_diagnostic_testing.diagnostic_pcr_ct_value",
+      "analysis.pathogen_diagnostic_testing.diagnostic_pcr_ct_value_null_reason",
+      "analysis.database_identifiers.gisaid_accession",
+      "analysis.updatedAt");
+
   public static byte[] analysisDocumentsToTsvRowsBytes(List<AnalysisDocument> analysisDocuments) {
     return (analysisDocuments.stream()
       .map(TsvUtils::analysisDocumentToTsvRow)
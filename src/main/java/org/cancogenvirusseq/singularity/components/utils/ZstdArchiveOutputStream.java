@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.cancogenvirusseq.singularity.components.utils;
+
+import com.github.luben.zstd.ZstdOutputStreamNoFinalizer;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Zstandard output stream writing a single frame, compressed by the given number of zstd worker
+ * threads (the native library's own multi-threading). Frames can be concatenated like gzip members
+ * so the archive is still a single zstd stream that tar --zstd, zstd -d etc. can read.
+ */
+public class ZstdArchiveOutputStream extends ArchiveCompressionOutputStream {
+  private final OutputStream out;
+  private final ZstdOutputStreamNoFinalizer zstdOutputStream;
+
+  private long compressionNanos = 0;
+  private boolean finished = false;
+  private boolean closed = false;
+
+  public ZstdArchiveOutputStream(OutputStream out, int compressionLevel, int workers)
+      throws IOException {
+    this.out = out;
+    this.zstdOutputStream =
+        new ZstdOutputStreamNoFinalizer(out, compressionLevel)
+            .setChecksum(true)
+            .setWorkers(workers);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    if (finished) {
+      throw new IOException("ZstdArchiveOutputStream has already been finished");
+    }
+
+    long start = System.nanoTime();
+    zstdOutputStream.write(bytes, offset, length);
+    compressionNanos += System.nanoTime() - start;
+  }
+
+  /** Only flushes the underlying stream, flushing zstd would end the current block early */
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+
+    long start = System.nanoTime();
+    zstdOutputStream.closeWithoutClosingParentStream();
+    compressionNanos += System.nanoTime() - start;
+
+    out.flush();
+    finished = true;
+  }
+
+  /**
+   * Time spent in writes and ending the frame, with workers this is time waiting on them rather
+   * than the sum of their compression time
+   */
+  @Override
+  public long getCompressionNanos() {
+    return compressionNanos;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    try {
+      finish();
+    } finally {
+      out.close();
+      closed = true;
+    }
+  }
+}
@@ -1,6 +1,13 @@
 package org.cancogenvirusseq.singularity.config.archive;
 
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
 import lombok.Data;
+import org.cancogenvirusseq.singularity.components.model.AllArchiveBuildTriggerPolicy;
+import org.cancogenvirusseq.singularity.components.model.AllArchiveBuildTriggerSource;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveFormat;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveType;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
@@ -11,4 +18,56 @@ import org.springframework.context.annotation.Configuration;
 public class ArchiveProperties {
   Long cancelPeriodSeconds;
   Long maxBuildingSeconds;
+  // gzip compression level (1-9) for archive bundles
+  Integer compressionLevel;
+  // zstd compression level (1-19) for TAR_ZST archive bundles
+  Integer zstdCompressionLevel = 3;
+  // size of the worker pool shared by all parallel archive compression
+  Integer compressionWorkers;
+  // input size of each independently compressed gzip member
+  Integer compressionBlockSizeBytes;
+  // archive types compressed on the worker pool, all others are compressed on the build thread
+  Set<ArchiveType> parallelCompressionTypes;
+  // format of the archives built for each type, SET_QUERY requests can ask for another format
+  Map<ArchiveType, ArchiveFormat> formats = new EnumMap<>(ArchiveType.class);
+  // archive types assembled by copying per analysis gzip members instead of compressing the data
+  Set<ArchiveType> compressedFragmentAssemblyTypes = Set.of();
+  // build ALL archives from the previous complete ALL archive plus the documents updated since
+  Boolean incrementalAllBuilds = false;
+  // incremental builds hold the updated documents in memory, with more a full build is run instead
+  Integer incrementalMaxUpdatedDocuments = 10000;
+  // downloads are counted in memory and added to the archive rows on this interval
+  Long downloadCountFlushIntervalSeconds = 10L;
+  // SET_QUERY builds each replica runs at once, the rest wait (smallest first) in the queue table
+  Integer setQueryMaxConcurrentBuilds = 2;
+  // requests for new SET_QUERY builds are rejected once this many are waiting
+  Integer setQueryMaxQueuedBuilds = 50;
+  // reuse a COMPLETE archive of the exact same documents for a set built from a different sqon
+  Boolean setQueryContentDedupEnabled = false;
+  // how often the build queue table is checked for builds to claim
+  Long setQueryQueuePollIntervalSeconds = 5L;
+  // claims not heart beaten for this long belonged to a stopped replica and are queued again
+  Long setQueryQueueClaimStaleSeconds = 60L;
+  // how often a replica retries a pending ALL build while another replica holds the build lock
+  Long allBuildLockRetrySeconds = 30L;
+  // how often the replica building the ALL archive checks that it still holds the build lock
+  Long allBuildLockHeartbeatSeconds = 30L;
+  // what an ALL build trigger does to a running build, per trigger source
+  Map<AllArchiveBuildTriggerSource, AllArchiveBuildTriggerPolicy> allBuildTriggerPolicies =
+      new EnumMap<>(
+          Map.of(
+              AllArchiveBuildTriggerSource.KAFKA, AllArchiveBuildTriggerPolicy.COALESCE,
+              AllArchiveBuildTriggerSource.INTERVAL, AllArchiveBuildTriggerPolicy.COALESCE));
+  // object ids a single genomes request can ask for
+  Integer genomesMaxPerRequest = 1000;
+  // genomes whose gzip members are at most this far apart in the archive are fetched in one read
+  Long genomesRangeMaxGapBytes = 0L;
+  // no ranged read of the archive for genomes is larger than this (unless a single genome is)
+  Long genomesRangeMaxBytes = 4L * 1024 * 1024;
+  // ranged reads of the archive in flight for a single genomes request
+  Integer genomesRangeReadConcurrency = 4;
+
+  public ArchiveFormat formatForType(ArchiveType archiveType) {
+    return formats.getOrDefault(archiveType, ArchiveFormat.TAR_GZ);
+  }
 }
\ No newline at end of file
@@ -29,6 +29,8 @@ import java.time.Duration;
 import java.util.List;
 import lombok.RequiredArgsConstructor;
 import lombok.val;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveFormat;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveFormatConverter;
 import org.cancogenvirusseq.singularity.repository.model.ArchiveStatus;
 import org.cancogenvirusseq.singularity.repository.model.ArchiveStatusConverter;
 import org.cancogenvirusseq.singularity.repository.model.ArchiveType;
@@ -74,7 +76,8 @@ public class R2DBCConfiguration extends AbstractR2dbcConfiguration {
 
   @Override
   protected List<Object> getCustomConverters() {
-    return List.of(new ArchiveStatusConverter(), new ArchiveTypeConverter());
+    return List.of(
+        new ArchiveStatusConverter(), new ArchiveTypeConverter(), new ArchiveFormatConverter());
   }
 
   public static PostgresqlConnectionFactory createPsqlConnectionFactory(
@@ -98,6 +101,7 @@ public class R2DBCConfiguration extends AbstractR2dbcConfiguration {
         EnumCodec.builder()
             .withEnum("archive_type", ArchiveType.class)
             .withEnum("archive_status", ArchiveStatus.class)
+            .withEnum("archive_format", ArchiveFormat.class)
             .build();
 
     return new PostgresqlConnectionFactory(
@@ -19,6 +19,7 @@
 package org.cancogenvirusseq.singularity.config.elasticsearch;
 
 import lombok.Data;
+import org.cancogenvirusseq.singularity.components.model.UniqueGenomesCountMode;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
@@ -35,4 +36,11 @@ public class ElasticsearchProperties {
   String fileCentricIndex;
   String arrangerSetsIndex;
   Long scrollTimeoutMinutes;
+  Integer scrollSlices = 1;
+  Integer scrollPageSize = 1000;
+  UniqueGenomesCountMode uniqueGenomesCountMode = UniqueGenomesCountMode.EXACT;
+  // counts below the threshold are expected to be close to exact (elasticsearch max is 40000)
+  Long uniqueGenomesPrecisionThreshold = 40000L;
+  // standard error of the HyperLogLog sketch
+  Double uniqueGenomesRelativeError = 0.01;
 }
@@ -0,0 +1,19 @@
+package org.cancogenvirusseq.singularity.config.fragmentCache;
+
+import java.util.Set;
+import lombok.Data;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveType;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "fragment-cache")
+public class FragmentCacheProperties {
+  // archive types whose builds read and fill the fragment cache, none by default
+  Set<ArchiveType> archiveTypes = Set.of();
+  // local directory holding one file per cached analysis
+  String directory = "/tmp/singularity-fragment-cache";
+  // least recently used fragments are deleted once the cached files exceed this size
+  Long maxSizeBytes = 1024L * 1024 * 1024;
+}
@@ -35,4 +35,12 @@ public class S3ClientProperties {
   private Integer maxConcurrency;
   private Long acquisitionTimeoutMs;
   private Long presignURLExpiresMins;
+  private Boolean multipartUploadEnabled = false;
+  private Long multipartPartSizeBytes = 16L * 1024 * 1024;
+  private Integer multipartUploadParallelism = 4;
+  private Long multipartPartMaxRetries = 3L;
+  private Boolean streamingDownloadEnabled = false;
+  private Long streamingDownloadBudgetBytes = 64L * 1024 * 1024;
+  private Boolean presignedDownloadRedirectEnabled = false;
+  private Long presignedDownloadExpiresMins = 5L;
 }
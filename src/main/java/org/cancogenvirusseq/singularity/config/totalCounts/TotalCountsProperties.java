@@ -0,0 +1,19 @@
+package org.cancogenvirusseq.singularity.config.totalCounts;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "total-counts")
+public class TotalCountsProperties {
+  // maintain the counts from the analyses updated since the last sync instead of recounting
+  Boolean incremental = false;
+  // interval of the full recount that also drops analyses removed from the index
+  Long fullRecomputeIntervalSeconds = 21600L;
+  // incremental syncs also fetch analyses updated this long before the last sync
+  Long incrementalOverlapSeconds = 300L;
+  // concurrent multi row upserts (one per scroll page) while syncing
+  Integer upsertConcurrency = 8;
+}
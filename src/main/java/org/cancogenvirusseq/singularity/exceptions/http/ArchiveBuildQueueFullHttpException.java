@@ -0,0 +1,27 @@
+package org.cancogenvirusseq.singularity.exceptions.http;
+
+import java.util.Map;
+import lombok.EqualsAndHashCode;
+import lombok.Value;
+import org.springframework.http.HttpStatus;
+
+@Value
+@EqualsAndHashCode(callSuper = true)
+public class ArchiveBuildQueueFullHttpException extends Throwable implements BaseHttpException {
+  Integer maxQueuedBuilds;
+
+  @Override
+  public HttpStatus getStatusCode() {
+    return HttpStatus.TOO_MANY_REQUESTS;
+  }
+
+  @Override
+  public String getMessage() {
+    return "Too many archives are waiting to be built, please try again later";
+  }
+
+  @Override
+  public Map<String, Object> getErrorInfo() {
+    return Map.of("maxQueuedBuilds", maxQueuedBuilds);
+  }
+}
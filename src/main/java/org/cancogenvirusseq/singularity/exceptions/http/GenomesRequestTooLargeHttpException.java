@@ -0,0 +1,27 @@
+package org.cancogenvirusseq.singularity.exceptions.http;
+
+import java.util.Map;
+import lombok.EqualsAndHashCode;
+import lombok.Value;
+import org.springframework.http.HttpStatus;
+
+@Value
+@EqualsAndHashCode(callSuper = true)
+public class GenomesRequestTooLargeHttpException extends Throwable implements BaseHttpException {
+  Integer maxGenomesPerRequest;
+
+  @Override
+  public HttpStatus getStatusCode() {
+    return HttpStatus.PAYLOAD_TOO_LARGE;
+  }
+
+  @Override
+  public String getMessage() {
+    return "Too many genomes requested at once, please split the request";
+  }
+
+  @Override
+  public Map<String, Object> getErrorInfo() {
+    return Map.of("maxGenomesPerRequest", maxGenomesPerRequest);
+  }
+}
@@ -0,0 +1,11 @@
+package org.cancogenvirusseq.singularity.exceptions.runtime;
+
+public class AllArchiveBuildLockLostException extends RuntimeException {
+  public AllArchiveBuildLockLostException(Throwable cause) {
+    super("The ALL archive build lock is no longer held, another replica may be building", cause);
+  }
+
+  public AllArchiveBuildLockLostException() {
+    this(null);
+  }
+}
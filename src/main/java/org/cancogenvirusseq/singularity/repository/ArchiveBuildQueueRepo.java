@@ -0,0 +1,58 @@
+package org.cancogenvirusseq.singularity.repository;
+
+import java.util.UUID;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveBuildQueueEntry;
+import org.springframework.data.r2dbc.repository.Modifying;
+import org.springframework.data.r2dbc.repository.Query;
+import org.springframework.data.repository.reactive.ReactiveCrudRepository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+public interface ArchiveBuildQueueRepo
+    extends ReactiveCrudRepository<ArchiveBuildQueueEntry, UUID> {
+
+  // serializes the enqueues of all replicas until the end of the transaction
+  @Query("SELECT 1 FROM (SELECT pg_advisory_xact_lock(:key)) AS locked")
+  Mono<Integer> lockEnqueue(Long key);
+
+  // only queued while fewer than maxQueued other entries are waiting, emits 0 when the queue is
+  // full, a restarted archive is queued again in place of its previous entry
+  @Modifying
+  @Query(
+      "INSERT INTO archive_build_queue (archive_id, query, num_of_samples, status, queued_at) "
+          + "SELECT :archiveId, :query, :numOfSamples, 'QUEUED', :queuedAt "
+          + "WHERE (SELECT count(*) FROM archive_build_queue "
+          + "WHERE status = 'QUEUED' AND archive_id <> :archiveId) < :maxQueued "
+          + "ON CONFLICT (archive_id) DO UPDATE SET "
+          + "query = EXCLUDED.query, "
+          + "num_of_samples = EXCLUDED.num_of_samples, "
+          + "status = 'QUEUED', "
+          + "queued_at = EXCLUDED.queued_at, "
+          + "claimed_by = NULL, "
+          + "heartbeat_at = NULL")
+  Mono<Integer> enqueueIfNotFull(
+      UUID archiveId, String query, Long numOfSamples, Long queuedAt, Integer maxQueued);
+
+  // entries locked by another worker's claim are skipped rather than waited on
+  @Query(
+      "UPDATE archive_build_queue SET status = 'CLAIMED', claimed_by = :workerId, heartbeat_at = :now "
+          + "WHERE archive_id IN ("
+          + "SELECT archive_id FROM archive_build_queue WHERE status = 'QUEUED' "
+          + "ORDER BY num_of_samples, queued_at LIMIT :limit FOR UPDATE SKIP LOCKED) "
+          + "RETURNING *")
+  Flux<ArchiveBuildQueueEntry> claim(String workerId, Long now, Integer limit);
+
+  @Modifying
+  @Query("UPDATE archive_build_queue SET heartbeat_at = :now WHERE claimed_by = :workerId")
+  Mono<Integer> heartbeat(String workerId, Long now);
+
+  // entries of a worker that stopped heart beating (crashed or restarted) are claimable again
+  @Modifying
+  @Query(
+      "UPDATE archive_build_queue SET status = 'QUEUED', claimed_by = NULL, heartbeat_at = NULL "
+          + "WHERE status = 'CLAIMED' AND heartbeat_at < :staleBefore")
+  Mono<Integer> requeueStaleClaims(Long staleBefore);
+
+  @Query("SELECT count(*) FROM archive_build_queue WHERE status = 'QUEUED'")
+  Mono<Long> countQueued();
+}
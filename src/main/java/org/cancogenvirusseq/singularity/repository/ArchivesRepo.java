@@ -5,10 +5,13 @@ import java.util.UUID;
 import lombok.NonNull;
 import lombok.val;
 import org.cancogenvirusseq.singularity.repository.model.Archive;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveFormat;
 import org.cancogenvirusseq.singularity.repository.model.ArchiveStatus;
 import org.cancogenvirusseq.singularity.repository.model.ArchiveType;
 import org.cancogenvirusseq.singularity.repository.query.FindArchivesQuery;
 import org.springframework.data.domain.*;
+import org.springframework.data.r2dbc.repository.Modifying;
+import org.springframework.data.r2dbc.repository.Query;
 import org.springframework.data.repository.reactive.ReactiveCrudRepository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -32,14 +35,26 @@ public interface ArchivesRepo extends ReactiveCrudRepository<Archive, UUID> {
 
   Flux<Archive> findByStatus(ArchiveStatus status);
 
+  Mono<Archive> findTopByContentHashAndFormatAndStatusOrderByCreatedAtDesc(
+      String contentHash, ArchiveFormat format, ArchiveStatus status);
+
   Flux<Archive> findByStatusAndCreatedAtLessThan(ArchiveStatus status, Long fromTime);
 
   Flux<Archive> findByHashInAndStatusAndCreatedAtLessThan(List<String> hash, ArchiveStatus status, Long fromTime);
 
+  @Modifying
+  @Query("UPDATE archive SET num_of_downloads = num_of_downloads + :downloads WHERE id = :id")
+  Mono<Integer> incrementNumOfDownloads(UUID id, Long downloads);
+
   default Mono<Archive> findLatestAllArchive() {
     return findTopByTypeAndStatusOrderByCreatedAtDesc(ArchiveType.ALL, ArchiveStatus.COMPLETE);
   }
 
+  default Mono<Archive> findCompletedArchiveByContentHash(String contentHash, ArchiveFormat format) {
+    return findTopByContentHashAndFormatAndStatusOrderByCreatedAtDesc(
+        contentHash, format, ArchiveStatus.COMPLETE);
+  }
+
   default Mono<Archive> findCompletedArchiveById(UUID id) {
     return findArchiveByIdEqualsAndStatusEquals(id, ArchiveStatus.COMPLETE);
   }
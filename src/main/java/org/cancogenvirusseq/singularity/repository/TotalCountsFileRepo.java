@@ -0,0 +1,81 @@
+package org.cancogenvirusseq.singularity.repository;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.val;
+import org.cancogenvirusseq.singularity.components.model.TotalCountsAggregate;
+import org.cancogenvirusseq.singularity.components.model.TotalCountsFile;
+import org.springframework.data.r2dbc.repository.Modifying;
+import org.springframework.data.r2dbc.repository.Query;
+import org.springframework.data.repository.reactive.ReactiveCrudRepository;
+import reactor.core.publisher.Mono;
+
+public interface TotalCountsFileRepo extends ReactiveCrudRepository<TotalCountsFile, String> {
+
+  // submitter donor ids are sent as one postgres array literal per row since unnest would flatten
+  // a two dimensional array
+  @Modifying
+  @Query(
+      "INSERT INTO total_count_file (object_id, study_id, file_size_bytes, submitter_donor_ids, seen_at) "
+          + "SELECT object_id, study_id, file_size_bytes, CAST(submitter_donor_ids AS VARCHAR[]), :seenAt "
+          + "FROM unnest(CAST(:objectIds AS VARCHAR[]), CAST(:studyIds AS VARCHAR[]), "
+          + "CAST(:fileSizesBytes AS BIGINT[]), CAST(:submitterDonorIds AS VARCHAR[])) "
+          + "AS upserted (object_id, study_id, file_size_bytes, submitter_donor_ids) "
+          + "ON CONFLICT (object_id) DO UPDATE SET "
+          + "study_id = EXCLUDED.study_id, "
+          + "file_size_bytes = EXCLUDED.file_size_bytes, "
+          + "submitter_donor_ids = EXCLUDED.submitter_donor_ids, "
+          + "seen_at = EXCLUDED.seen_at")
+  Mono<Integer> upsertAll(
+      String[] objectIds,
+      String[] studyIds,
+      Long[] fileSizesBytes,
+      String[] submitterDonorIds,
+      Long seenAt);
+
+  @Modifying
+  @Query("DELETE FROM total_count_file WHERE seen_at < :seenAt")
+  Mono<Integer> deleteBySeenAtLessThan(Long seenAt);
+
+  // files and file size follow the elasticsearch stats aggregation on file.size (nulls ignored)
+  @Query(
+      "SELECT count(file_size_bytes) AS files, "
+          + "(SELECT count(DISTINCT donor_id) FROM total_count_file, unnest(submitter_donor_ids) AS donor_id) AS samples, "
+          + "count(DISTINCT study_id) AS studies, "
+          + "coalesce(sum(file_size_bytes), 0) AS file_size_bytes "
+          + "FROM total_count_file")
+  Mono<TotalCountsAggregate> aggregate();
+
+  /** Upserts the files in one statement, all files are expected to share the same seenAt */
+  default Mono<Integer> upsertAll(List<TotalCountsFile> totalCountsFiles) {
+    if (totalCountsFiles.isEmpty()) {
+      return Mono.just(0);
+    }
+
+    // a row can only be affected once per statement so the last file of an objectId wins
+    val files =
+        totalCountsFiles.stream()
+            .collect(
+                Collectors.toMap(
+                    TotalCountsFile::getObjectId, file -> file, (a, b) -> b, LinkedHashMap::new))
+            .values();
+
+    return upsertAll(
+        files.stream().map(TotalCountsFile::getObjectId).toArray(String[]::new),
+        files.stream().map(TotalCountsFile::getStudyId).toArray(String[]::new),
+        files.stream().map(TotalCountsFile::getFileSizeBytes).toArray(Long[]::new),
+        files.stream()
+            .map(TotalCountsFile::getSubmitterDonorIds)
+            .map(TotalCountsFileRepo::toArrayLiteral)
+            .toArray(String[]::new),
+        totalCountsFiles.get(0).getSeenAt());
+  }
+
+  static String toArrayLiteral(String[] values) {
+    return Stream.of(values == null ? new String[0] : values)
+        .map(value -> "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"")
+        .collect(Collectors.joining(",", "{", "}"));
+  }
+}
@@ -21,6 +21,8 @@ public class Archive {
   @NonNull private ArchiveType type;
   @NonNull private String hashInfo;
   private String hash;
+  // hash of the archived documents (object ids and last updated), identical sets share it
+  private String contentHash;
   private UUID objectId;
   private Long createdAt;
 
@@ -29,6 +31,8 @@ public class Archive {
   // always initialized to zero when creating
   private Integer numOfDownloads;
 
+  @NonNull @Builder.Default private ArchiveFormat format = ArchiveFormat.TAR_GZ;
+
   @RequiredArgsConstructor
   public enum Fields {
     createdAt("createdAt"),
@@ -48,14 +52,15 @@ public class Archive {
   }
 
   public static Archive newAllArchiveFromCountAndLastUpdatedResult(
-      CountAndLastUpdatedResult countAndLastUpdatedResult) {
+      CountAndLastUpdatedResult countAndLastUpdatedResult, ArchiveFormat format) {
     return Archive.builder()
         .status(ArchiveStatus.BUILDING)
         .type(ArchiveType.ALL)
         .hashInfo(
-            AllArchiveHashInfo.parseFromCountAndLastUpdatedResult(countAndLastUpdatedResult)
+            AllArchiveHashInfo.parseFromCountAndLastUpdatedResult(countAndLastUpdatedResult, format)
                 .toString())
         .numOfSamples(countAndLastUpdatedResult.getNumDocuments().getValue())
+        .format(format)
         .build();
   }
 
@@ -66,22 +71,25 @@ public class Archive {
         .type(ArchiveType.SET_QUERY)
         .hashInfo(setQueryArchiveHashInfo.toString())
         .numOfSamples(setQueryArchiveHashInfo.getNumSamples())
+        .format(setQueryArchiveHashInfo.getArchiveFormat())
         .build();
   }
 
-  public static Archive incrementDownloadsForArchive(Archive archive) {
-    archive.setNumOfDownloads(archive.getNumOfDownloads() + 1);
-    return archive;
+  /** Archive objects are never rewritten once built so the object id is a strong entity tag */
+  public static String parseEtagFromArchive(Archive archive) {
+    return format("\"%s\"", archive.getObjectId());
   }
 
   public static String parseFilenameFromArchive(Archive archive) {
     if (archive.getType().equals(ArchiveType.ALL)) {
       // for a download all entry, use the createdAt timestamp for the filename
       return format(
-          "virusseq-data-release-%s.tar.gz", Instant.ofEpochSecond(archive.getCreatedAt()));
+          "virusseq-data-release-%s%s",
+          Instant.ofEpochSecond(archive.getCreatedAt()), archive.getFormat().getExtension());
     } else {
       // for all other export types just note that it's an export and the download time
-      return format("virusseq-search-export-%s.tar.gz", Instant.now());
+      return format(
+          "virusseq-search-export-%s%s", Instant.now(), archive.getFormat().getExtension());
     }
   }
 }
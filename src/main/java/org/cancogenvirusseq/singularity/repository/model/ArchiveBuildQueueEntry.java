@@ -0,0 +1,26 @@
+package org.cancogenvirusseq.singularity.repository.model;
+
+import java.util.UUID;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.relational.core.mapping.Table;
+
+/** A pending archive build, the query is the elasticsearch query of the build serialized as json */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Table("archive_build_queue")
+public class ArchiveBuildQueueEntry {
+  @Id private UUID archiveId;
+  private String query;
+  private Long numOfSamples;
+  private ArchiveBuildQueueStatus status;
+  private Long queuedAt;
+  // the worker that claimed the entry keeps heartbeat_at current while it is building
+  private String claimedBy;
+  private Long heartbeatAt;
+}
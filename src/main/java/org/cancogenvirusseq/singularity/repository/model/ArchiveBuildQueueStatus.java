@@ -0,0 +1,6 @@
+package org.cancogenvirusseq.singularity.repository.model;
+
+public enum ArchiveBuildQueueStatus {
+  QUEUED,
+  CLAIMED
+}
@@ -0,0 +1,24 @@
+package org.cancogenvirusseq.singularity.repository.model;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/** How an archive's files are packaged and compressed, decides its filename and media type */
+@Getter
+@RequiredArgsConstructor
+public enum ArchiveFormat {
+  // gzip compressed tar of the fasta and tsv
+  TAR_GZ(".tar.gz", "application/x-gtar"),
+  // zstd compressed tar of the fasta and tsv
+  TAR_ZST(".tar.zst", "application/zstd"),
+  // uncompressed tar of the bgzip compressed fasta with its .fai and .gzi indexes and the tsv
+  BGZF_FASTA(".tar", "application/x-tar");
+
+  private final String extension;
+  private final String mediaType;
+
+  /** Whether the tar itself is compressed, otherwise only the files in it are */
+  public boolean isCompressedTar() {
+    return !BGZF_FASTA.equals(this);
+  }
+}
@@ -0,0 +1,13 @@
+package org.cancogenvirusseq.singularity.repository.model;
+
+import lombok.NonNull;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.data.convert.WritingConverter;
+
+@WritingConverter
+public class ArchiveFormatConverter implements Converter<ArchiveFormat, ArchiveFormat> {
+  @Override
+  public ArchiveFormat convert(@NonNull ArchiveFormat source) {
+    return source;
+  }
+}
@@ -0,0 +1,11 @@
+CREATE TABLE if not exists total_count_file
+(
+    object_id           VARCHAR     NOT NULL,
+    study_id            VARCHAR,
+    file_size_bytes     bigint,
+    submitter_donor_ids VARCHAR[]   NOT NULL DEFAULT '{}',
+    seen_at             bigint      NOT NULL,
+    PRIMARY KEY (object_id)
+);
+
+CREATE INDEX if not exists total_count_file_seen_at_idx ON total_count_file (seen_at);
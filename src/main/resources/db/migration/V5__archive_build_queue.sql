@@ -0,0 +1,13 @@
+CREATE TABLE if not exists archive_build_queue
+(
+    archive_id          uuid        NOT NULL REFERENCES archive (id) ON DELETE CASCADE,
+    query               VARCHAR     NOT NULL CHECK (query <> ''),
+    num_of_samples      bigint      NOT NULL,
+    status              VARCHAR     NOT NULL DEFAULT 'QUEUED',
+    queued_at           bigint      NOT NULL,
+    claimed_by          VARCHAR,
+    heartbeat_at        bigint,
+    PRIMARY KEY (archive_id)
+);
+
+CREATE INDEX if not exists archive_build_queue_claim_idx ON archive_build_queue (status, num_of_samples, queued_at);
@@ -0,0 +1,3 @@
+ALTER TABLE archive ADD COLUMN if not exists content_hash VARCHAR;
+
+CREATE INDEX if not exists archive_content_hash_idx ON archive (content_hash);
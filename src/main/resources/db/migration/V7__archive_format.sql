@@ -0,0 +1,3 @@
+CREATE TYPE archive_format as enum ('TAR_GZ', 'TAR_ZST', 'BGZF_FASTA');
+
+ALTER TABLE archive ADD COLUMN if not exists format archive_format NOT NULL DEFAULT 'TAR_GZ';
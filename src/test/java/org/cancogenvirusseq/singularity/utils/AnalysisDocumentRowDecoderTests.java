@@ -0,0 +1,85 @@
+package org.cancogenvirusseq.singularity.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocument;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentRow;
+import org.cancogenvirusseq.singularity.components.utils.AnalysisDocumentRowDecoder;
+import org.cancogenvirusseq.singularity.components.utils.TsvRowEncoder;
+import org.cancogenvirusseq.singularity.components.utils.TsvUtils;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class AnalysisDocumentRowDecoderTests {
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private static final List<String> sources =
+      List.of(
+          // minimal document
+          "{\"object_id\":\"obj-1\",\"study_id\":\"STUDY\",\"analysis\":{"
+              + "\"samples\":[{\"donor\":{\"submitterDonorId\":\"donor-1\"}}],"
+              + "\"sequence_analysis\":{\"metrics\":{}}}}",
+          // lists, numbers, booleans, nulls, nested values and fields that are not needed
+          "{\"study_id\":\"STUDY\",\"unused\":{\"a\":[1,{\"b\":2}]},\"analysis\":{"
+              + "\"updatedAt\":1637351239000,\"firstPublishedAt\":\"2021-11-19\","
+              + "\"samples\":[{\"donor\":{\"submitterDonorId\":\"donor-2\",\"other\":[1]}},"
+              + "{\"donor\":{\"submitterDonorId\":\"donor-3\"}}],"
+              + "\"host\":{\"host_gender\":null,\"host_age_bin\":[\"10 - 19\",null,1.50,true,{},[]],"
+              + "\"host_disease\":{\"name\":\"COVID-19\"}},"
+              + "\"pathogen_diagnostic_testing\":{\"gene_name\":[\"E\",\"RdRp\"],"
+              + "\"diagnostic_pcr_ct_value\":21.50,\"diagnostic_pcr_ct_value_null_reason\":false},"
+              + "\"sequence_analysis\":{\"dehosting_method\":\"\",\"metrics\":"
+              + "{\"breadth_of_coverage\":1E2,\"depth_of_coverage\":-12}},"
+              + "\"sample_collection\":{\"geo_loc_country\":\"Canada\",\"isolate\":\"h\\u00e9llo\\tx\"}},"
+              + "\"object_id\":\"obj-2\"}",
+          // object and list values where text is expected
+          "{\"object_id\":\"obj-3\",\"study_id\":[\"A\",\"B\"],\"analysis\":{"
+              + "\"samples\":[{\"donor\":{\"submitterDonorId\":{\"id\":1}}}],"
+              + "\"sequence_analysis\":{\"metrics\":{\"depth_of_coverage\":{}}}}}");
+
+  @BeforeAll
+  public static void setup() {
+    new TsvUtils().setListSeparator(";");
+  }
+
+  @Test
+  @SneakyThrows
+  public void testDecodedRowMatchesAnalysisDocument() {
+    for (val source : sources) {
+      val analysisDocumentRow =
+          AnalysisDocumentRowDecoder.decode(objectMapper.getFactory().createParser(source));
+
+      val analysisDocument = objectMapper.readValue(source, AnalysisDocument.class);
+
+      assertEquals(analysisDocument.getObjectId().textValue(), analysisDocumentRow.getObjectId());
+      assertArrayEquals(
+          TsvUtils.analysisDocumentToTsvRowBytes(analysisDocument),
+          encodeTsvRow(analysisDocumentRow),
+          source);
+    }
+  }
+
+  @SneakyThrows
+  private static byte[] encodeTsvRow(AnalysisDocumentRow analysisDocumentRow) {
+    val outputStream = new ByteArrayOutputStream();
+    new TsvRowEncoder().writeRow(analysisDocumentRow, outputStream);
+    return outputStream.toByteArray();
+  }
+
+  @Test
+  public void testMissingObjectIdIsRejected() {
+    assertThrows(
+        IOException.class,
+        () ->
+            AnalysisDocumentRowDecoder.decode(
+                objectMapper.getFactory().createParser("{\"study_id\":\"STUDY\"}")));
+  }
+}
@@ -0,0 +1,62 @@
+package org.cancogenvirusseq.singularity.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.val;
+import org.cancogenvirusseq.singularity.components.utils.ByteBudget;
+import org.junit.jupiter.api.Test;
+
+public class ByteBudgetTests {
+
+  @Test
+  public void testAcquireWaitsForRelease() {
+    val byteBudget = new ByteBudget(100);
+
+    val first = new AtomicReference<Boolean>();
+    byteBudget.acquire(80, () -> false, accounted -> accounted).subscribe(first::set);
+    assertTrue(first.get());
+    assertEquals(20, byteBudget.getAvailable());
+
+    val second = new AtomicReference<Boolean>();
+    byteBudget.acquire(50, () -> false, accounted -> accounted).subscribe(second::set);
+    assertNull(second.get());
+
+    byteBudget.release(80);
+    assertTrue(second.get());
+    assertEquals(50, byteBudget.getAvailable());
+  }
+
+  @Test
+  public void testBypassIsGrantedWithoutTakingFromBudget() {
+    val byteBudget = new ByteBudget(100);
+    byteBudget.acquire(100, () -> false, accounted -> accounted).subscribe();
+
+    val bypass = new AtomicBoolean(false);
+    val waiting = new AtomicReference<Boolean>();
+    byteBudget.acquire(10, bypass::get, accounted -> accounted).subscribe(waiting::set);
+    assertNull(waiting.get());
+
+    bypass.set(true);
+    byteBudget.wakeUp();
+    assertFalse(waiting.get());
+    assertEquals(0, byteBudget.getAvailable());
+  }
+
+  @Test
+  public void testCancelledAcquireTakesNothing() {
+    val byteBudget = new ByteBudget(100);
+    byteBudget.acquire(60, () -> false, accounted -> accounted).subscribe();
+
+    val cancelled = new AtomicReference<Boolean>();
+    byteBudget.acquire(60, () -> false, accounted -> accounted).subscribe(cancelled::set).dispose();
+
+    byteBudget.release(60);
+    assertNull(cancelled.get());
+    assertEquals(100, byteBudget.getAvailable());
+  }
+}
@@ -0,0 +1,41 @@
+package org.cancogenvirusseq.singularity.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.util.LinkedHashMap;
+import lombok.val;
+import org.cancogenvirusseq.singularity.components.utils.ContentHashUtils;
+import org.junit.jupiter.api.Test;
+
+public class ContentHashUtilsTests {
+
+  @Test
+  public void testContentHashIgnoresDocumentOrder() {
+    val documents = new LinkedHashMap<String, String>();
+    documents.put("object-a", "1620000000000");
+    documents.put("object-b", "1620000000001");
+
+    val reversed = new LinkedHashMap<String, String>();
+    reversed.put("object-b", "1620000000001");
+    reversed.put("object-a", "1620000000000");
+
+    assertEquals(
+        ContentHashUtils.contentHashForDocuments(documents),
+        ContentHashUtils.contentHashForDocuments(reversed));
+  }
+
+  @Test
+  public void testContentHashChangesWithUpdatedDocument() {
+    val documents = new LinkedHashMap<String, String>();
+    documents.put("object-a", "1620000000000");
+    documents.put("object-b", "1620000000001");
+
+    val updated = new LinkedHashMap<>(documents);
+    updated.put("object-b", "1620000000002");
+
+    assertNotEquals(
+        ContentHashUtils.contentHashForDocuments(documents),
+        ContentHashUtils.contentHashForDocuments(updated));
+  }
+}
@@ -0,0 +1,54 @@
+package org.cancogenvirusseq.singularity.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.cancogenvirusseq.singularity.components.utils.FastaIndexingOutputStream;
+import org.junit.jupiter.api.Test;
+
+public class FastaIndexingOutputStreamTests {
+
+  @Test
+  @SneakyThrows
+  public void testIndexIsSamtoolsFai() {
+    val fasta =
+        ">seq1 first sequence\nACGT\nACGT\nAC\n>seq2\nACG\n>seq3\r\nACGT\r\nAC\r\n>seq4\nACGTA";
+
+    val indexedFasta = new ByteArrayOutputStream();
+    val fai = new ByteArrayOutputStream();
+    try (val indexingOutputStream = new FastaIndexingOutputStream(indexedFasta, fai)) {
+      // written in pieces so lines and headers span writes
+      val bytes = fasta.getBytes(StandardCharsets.UTF_8);
+      for (int offset = 0; offset < bytes.length; offset += 5) {
+        indexingOutputStream.write(bytes, offset, Math.min(5, bytes.length - offset));
+      }
+    }
+
+    assertArrayEquals(fasta.getBytes(StandardCharsets.UTF_8), indexedFasta.toByteArray());
+    assertEquals(
+        "seq1\t10\t21\t4\t5\n"
+            + "seq2\t3\t40\t3\t4\n"
+            + "seq3\t6\t51\t4\t6\n"
+            + "seq4\t5\t67\t5\t6\n",
+        fai.toString(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  @SneakyThrows
+  public void testIrregularSequencesAreNotIndexed() {
+    val fasta = ">short-middle\nACGT\nAC\nACGT\n>long-last\nACGT\nACGTA\n>regular\nACGT\nA\n";
+
+    val fai = new ByteArrayOutputStream();
+    val indexingOutputStream = new FastaIndexingOutputStream(new ByteArrayOutputStream(), fai);
+    indexingOutputStream.write(fasta.getBytes(StandardCharsets.UTF_8));
+    indexingOutputStream.close();
+
+    assertEquals("regular\t5\t58\t4\t5\n", fai.toString(StandardCharsets.UTF_8));
+    assertEquals(1, indexingOutputStream.getIndexedSequences());
+    assertEquals(2, indexingOutputStream.getSkippedSequences());
+  }
+}
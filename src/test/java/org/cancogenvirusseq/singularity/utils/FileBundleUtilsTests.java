@@ -0,0 +1,516 @@
+package org.cancogenvirusseq.singularity.utils;
+
+import static org.cancogenvirusseq.singularity.components.utils.ArchiveOffsetIndexUtils.coalesceEntries;
+import static org.cancogenvirusseq.singularity.components.utils.ArchiveOffsetIndexUtils.groupByteRange;
+import static org.cancogenvirusseq.singularity.components.utils.ArchiveOffsetIndexUtils.sliceMolecularData;
+import static org.cancogenvirusseq.singularity.components.utils.FileBundleUtils.createFileBundleFromCompressedFragmentsWithArchive;
+import static org.cancogenvirusseq.singularity.components.utils.FileBundleUtils.createFileBundleFromPairsWithArchive;
+import static org.cancogenvirusseq.singularity.components.utils.FileBundleUtils.deleteFileBundleForArchive;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.luben.zstd.ZstdInputStream;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.cancogenvirusseq.singularity.components.model.AnalysisDocumentMolecularDataPair;
+import org.cancogenvirusseq.singularity.components.model.CompressedFragment;
+import org.cancogenvirusseq.singularity.components.model.FileBundle;
+import org.cancogenvirusseq.singularity.components.utils.AnalysisDocumentRowDecoder;
+import org.cancogenvirusseq.singularity.components.utils.ArchiveManifestUtils;
+import org.cancogenvirusseq.singularity.components.utils.ArchiveOffsetIndexUtils;
+import org.cancogenvirusseq.singularity.components.utils.ParallelGzipOutputStream;
+import org.cancogenvirusseq.singularity.components.utils.TsvRowEncoder;
+import org.cancogenvirusseq.singularity.components.utils.TsvUtils;
+import org.cancogenvirusseq.singularity.components.utils.ZstdArchiveOutputStream;
+import org.cancogenvirusseq.singularity.repository.model.Archive;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveFormat;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveStatus;
+import org.cancogenvirusseq.singularity.repository.model.ArchiveType;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+
+public class FileBundleUtilsTests {
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private static final int NUM_PAIRS = 1000;
+
+  @Test
+  @SneakyThrows
+  public void testCreateFileBundleIsStandardTarGzip() {
+    val archive =
+        Archive.builder()
+            .id(UUID.randomUUID())
+            .status(ArchiveStatus.BUILDING)
+            .type(ArchiveType.ALL)
+            .hashInfo("test")
+            .numOfSamples((long) NUM_PAIRS)
+            .build();
+
+    val expectedMolecular = new ByteArrayOutputStream();
+    val expectedMetadata = new ByteArrayOutputStream();
+    expectedMetadata.write(TsvUtils.getHeader());
+
+    val pairs =
+        Flux.range(0, NUM_PAIRS)
+            .map(FileBundleUtilsTests::createPair)
+            .doOnNext(
+                pair -> {
+                  expectedMolecular.writeBytes(pair.getMolecularData());
+                  writeTsvRow(pair, expectedMetadata);
+                });
+
+    // small blocks so that both the molecular and metadata data span many gzip members
+    val executorService = Executors.newFixedThreadPool(4);
+    Path archivePath =
+        pairs
+            .transform(
+                createFileBundleFromPairsWithArchive(
+                    archive,
+                    outputStream ->
+                        new ParallelGzipOutputStream(outputStream, 6, 4096, executorService, 8),
+                    archiveBytesWritten -> {}))
+            .blockLast();
+
+    try (val tarInputStream =
+        new TarArchiveInputStream(
+            new GZIPInputStream(new BufferedInputStream(Files.newInputStream(archivePath))))) {
+      val molecularEntry = tarInputStream.getNextTarEntry();
+      assertTrue(molecularEntry.getName().endsWith(".fasta"));
+      assertEquals(expectedMolecular.size(), molecularEntry.getSize());
+      assertArrayEquals(expectedMolecular.toByteArray(), IOUtils.toByteArray(tarInputStream));
+
+      val metadataEntry = tarInputStream.getNextTarEntry();
+      assertTrue(metadataEntry.getName().endsWith(".tsv"));
+      assertArrayEquals(expectedMetadata.toByteArray(), IOUtils.toByteArray(tarInputStream));
+
+      assertNull(tarInputStream.getNextTarEntry());
+    } finally {
+      executorService.shutdownNow();
+      deleteFileBundleForArchive.accept(archive);
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void testAssembleFromCompressedFragmentsIsStandardTarGzip() {
+    val archive =
+        Archive.builder()
+            .id(UUID.randomUUID())
+            .status(ArchiveStatus.BUILDING)
+            .type(ArchiveType.SET_QUERY)
+            .hashInfo("test")
+            .numOfSamples((long) NUM_PAIRS)
+            .build();
+
+    val expectedMolecular = new ByteArrayOutputStream();
+    val expectedMetadata = new ByteArrayOutputStream();
+    expectedMetadata.write(TsvUtils.getHeader());
+
+    val fragments =
+        Flux.range(0, NUM_PAIRS)
+            .map(FileBundleUtilsTests::createPair)
+            .map(
+                pair -> {
+                  val tsvRow = new ByteArrayOutputStream();
+                  writeTsvRow(pair, tsvRow);
+                  expectedMolecular.writeBytes(pair.getMolecularData());
+                  expectedMetadata.writeBytes(tsvRow.toByteArray());
+
+                  return new CompressedFragment(
+                      pair.getAnalysisDocumentRow(),
+                      ParallelGzipOutputStream.compressMember(
+                          pair.getMolecularData(), pair.getMolecularData().length, 6),
+                      pair.getMolecularData().length,
+                      ParallelGzipOutputStream.compressMember(
+                          tsvRow.toByteArray(), tsvRow.size(), 6),
+                      tsvRow.size());
+                });
+
+    Path archivePath =
+        fragments
+            .transform(
+                createFileBundleFromCompressedFragmentsWithArchive(
+                    archive,
+                    outputStream ->
+                        new ParallelGzipOutputStream(
+                            outputStream, 6, 4096, MoreExecutors.newDirectExecutorService(), 1),
+                    archiveBytesWritten -> {}))
+            .blockLast();
+
+    try (val tarInputStream =
+        new TarArchiveInputStream(
+            new GZIPInputStream(new BufferedInputStream(Files.newInputStream(archivePath))))) {
+      val molecularEntry = tarInputStream.getNextTarEntry();
+      assertTrue(molecularEntry.getName().endsWith(".fasta"));
+      assertEquals(expectedMolecular.size(), molecularEntry.getSize());
+      assertArrayEquals(expectedMolecular.toByteArray(), IOUtils.toByteArray(tarInputStream));
+
+      val metadataEntry = tarInputStream.getNextTarEntry();
+      assertTrue(metadataEntry.getName().endsWith(".tsv"));
+      assertEquals(expectedMetadata.size(), metadataEntry.getSize());
+      assertArrayEquals(expectedMetadata.toByteArray(), IOUtils.toByteArray(tarInputStream));
+
+      assertNull(tarInputStream.getNextTarEntry());
+    } finally {
+      deleteFileBundleForArchive.accept(archive);
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void testCreateTarZstFileBundleIsStandardTarZstd() {
+    val archive =
+        Archive.builder()
+            .id(UUID.randomUUID())
+            .status(ArchiveStatus.BUILDING)
+            .type(ArchiveType.SET_QUERY)
+            .hashInfo("test")
+            .numOfSamples((long) NUM_PAIRS)
+            .format(ArchiveFormat.TAR_ZST)
+            .build();
+
+    val expectedMolecular = new ByteArrayOutputStream();
+    val expectedMetadata = new ByteArrayOutputStream();
+    expectedMetadata.write(TsvUtils.getHeader());
+
+    val pairs =
+        Flux.range(0, NUM_PAIRS)
+            .map(FileBundleUtilsTests::createPair)
+            .doOnNext(
+                pair -> {
+                  expectedMolecular.writeBytes(pair.getMolecularData());
+                  writeTsvRow(pair, expectedMetadata);
+                });
+
+    Path archivePath =
+        pairs
+            .transform(
+                createFileBundleFromPairsWithArchive(
+                    archive, FileBundleUtilsTests::zstdOutputStream, archiveBytesWritten -> {}))
+            .blockLast();
+
+    // the molecular entry header, the molecular data and the rest of the tar are separate frames
+    try (val tarInputStream =
+        new TarArchiveInputStream(
+            new ZstdInputStream(new BufferedInputStream(Files.newInputStream(archivePath))))) {
+      val molecularEntry = tarInputStream.getNextTarEntry();
+      assertTrue(molecularEntry.getName().endsWith(".fasta"));
+      assertEquals(expectedMolecular.size(), molecularEntry.getSize());
+      assertArrayEquals(expectedMolecular.toByteArray(), IOUtils.toByteArray(tarInputStream));
+
+      val metadataEntry = tarInputStream.getNextTarEntry();
+      assertTrue(metadataEntry.getName().endsWith(".tsv"));
+      assertArrayEquals(expectedMetadata.toByteArray(), IOUtils.toByteArray(tarInputStream));
+
+      assertNull(tarInputStream.getNextTarEntry());
+    } finally {
+      deleteFileBundleForArchive.accept(archive);
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void testCreateBgzfFastaFileBundleIsIndexed() {
+    val archive =
+        Archive.builder()
+            .id(UUID.randomUUID())
+            .status(ArchiveStatus.BUILDING)
+            .type(ArchiveType.ALL)
+            .hashInfo("test")
+            .numOfSamples((long) NUM_PAIRS)
+            .format(ArchiveFormat.BGZF_FASTA)
+            .build();
+
+    val expectedMolecular = new ByteArrayOutputStream();
+    val expectedMetadata = new ByteArrayOutputStream();
+    expectedMetadata.write(TsvUtils.getHeader());
+
+    val pairs =
+        Flux.range(0, NUM_PAIRS)
+            .map(FileBundleUtilsTests::createPair)
+            .doOnNext(
+                pair -> {
+                  expectedMolecular.writeBytes(pair.getMolecularData());
+                  writeTsvRow(pair, expectedMetadata);
+                });
+
+    val executorService = Executors.newFixedThreadPool(4);
+    Path archivePath =
+        pairs
+            .transform(
+                createFileBundleFromPairsWithArchive(
+                    archive,
+                    outputStream ->
+                        ParallelGzipOutputStream.bgzf(outputStream, 6, executorService, 8),
+                    archiveBytesWritten -> {}))
+            .blockLast();
+
+    try (val tarInputStream =
+        new TarArchiveInputStream(new BufferedInputStream(Files.newInputStream(archivePath)))) {
+      val molecularEntry = tarInputStream.getNextTarEntry();
+      assertTrue(molecularEntry.getName().endsWith(".fasta.gz"));
+      val bgzfMolecular = IOUtils.toByteArray(tarInputStream);
+      assertEquals(bgzfMolecular.length, molecularEntry.getSize());
+      assertArrayEquals(expectedMolecular.toByteArray(), gunzip(bgzfMolecular));
+
+      assertTrue(tarInputStream.getNextTarEntry().getName().endsWith(".fasta.gz.fai"));
+      val fai = new String(IOUtils.toByteArray(tarInputStream), StandardCharsets.UTF_8).split("\n");
+      assertTrue(tarInputStream.getNextTarEntry().getName().endsWith(".fasta.gz.gzi"));
+      val gzi = ByteBuffer.wrap(IOUtils.toByteArray(tarInputStream)).order(ByteOrder.LITTLE_ENDIAN);
+
+      // every sequence can be read from the block the gzi gives for its offset in the fai
+      val blockStarts = new TreeMap<Long, Long>(Map.of(0L, 0L));
+      for (long i = gzi.getLong(); i > 0; i--) {
+        val compressedOffset = gzi.getLong();
+        blockStarts.put(gzi.getLong(), compressedOffset);
+      }
+      assertEquals(NUM_PAIRS, fai.length);
+      for (int i = 0; i < NUM_PAIRS; i++) {
+        val faiFields = fai[i].split("\t");
+        assertEquals(String.format("hCoV-19/test/%d", i), faiFields[0]);
+
+        val offset = Long.parseLong(faiFields[2]);
+        val block = blockStarts.floorEntry(offset);
+        try (val sequenceInputStream =
+            new GZIPInputStream(
+                new ByteArrayInputStream(
+                    bgzfMolecular,
+                    block.getValue().intValue(),
+                    bgzfMolecular.length - block.getValue().intValue()))) {
+          IOUtils.skip(sequenceInputStream, offset - block.getKey());
+          val sequence = new byte[Integer.parseInt(faiFields[1])];
+          IOUtils.readFully(sequenceInputStream, sequence);
+          assertEquals("ACGTN".repeat(i % 97 + 1), new String(sequence, StandardCharsets.UTF_8));
+        }
+      }
+
+      val metadataEntry = tarInputStream.getNextTarEntry();
+      assertTrue(metadataEntry.getName().endsWith(".tsv.gz"));
+      assertArrayEquals(
+          expectedMetadata.toByteArray(), gunzip(IOUtils.toByteArray(tarInputStream)));
+
+      assertNull(tarInputStream.getNextTarEntry());
+    } finally {
+      executorService.shutdownNow();
+      deleteFileBundleForArchive.accept(archive);
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void testCreateFileBundleWritesManifest() {
+    val archive =
+        Archive.builder()
+            .id(UUID.randomUUID())
+            .status(ArchiveStatus.BUILDING)
+            .type(ArchiveType.ALL)
+            .hashInfo("test")
+            .numOfSamples((long) NUM_PAIRS)
+            .build();
+
+    val pairs =
+        Flux.range(0, NUM_PAIRS).map(FileBundleUtilsTests::createPair).collectList().block();
+
+    Flux.fromIterable(pairs)
+        .transform(
+            createFileBundleFromPairsWithArchive(
+                archive,
+                outputStream ->
+                    new ParallelGzipOutputStream(
+                        outputStream, 6, 4096, MoreExecutors.newDirectExecutorService(), 1),
+                archiveBytesWritten -> {}))
+        .blockLast();
+
+    try {
+      val manifest =
+          ArchiveManifestUtils.readManifest(
+                  Files.readAllBytes(
+                      Paths.get(
+                          String.format(
+                              "%s/%s",
+                              FileBundle.DOWNLOAD_DIR,
+                              FileBundle.archiveManifestFilenameFromArchiveId(archive.getId())))))
+              .orElseThrow();
+
+      assertEquals(NUM_PAIRS, manifest.size());
+      for (int i = 0; i < NUM_PAIRS; i++) {
+        val pair = pairs.get(i);
+        val tsvRow = new ByteArrayOutputStream();
+        writeTsvRow(pair, tsvRow);
+
+        assertEquals(pair.getAnalysisDocumentRow().getObjectId(), manifest.get(i).getObjectId());
+        assertEquals(pair.getMolecularData().length, manifest.get(i).getMolecularDataLength());
+        assertEquals(tsvRow.size(), manifest.get(i).getTsvRowLength());
+      }
+    } finally {
+      deleteFileBundleForArchive.accept(archive);
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void testCreateFileBundleWritesOffsetIndex() {
+    val pairs =
+        Flux.range(0, NUM_PAIRS).map(FileBundleUtilsTests::createPair).collectList().block();
+
+    for (val format : List.of(ArchiveFormat.TAR_GZ, ArchiveFormat.BGZF_FASTA)) {
+      val archive =
+          Archive.builder()
+              .id(UUID.randomUUID())
+              .status(ArchiveStatus.BUILDING)
+              .type(ArchiveType.ALL)
+              .format(format)
+              .hashInfo("test")
+              .numOfSamples((long) NUM_PAIRS)
+              .build();
+
+      val path =
+          Flux.fromIterable(pairs)
+              .transform(
+                  createFileBundleFromPairsWithArchive(
+                      archive,
+                      outputStream ->
+                          ArchiveFormat.TAR_GZ.equals(format)
+                              ? new ParallelGzipOutputStream(
+                                  outputStream,
+                                  6,
+                                  4096,
+                                  MoreExecutors.newDirectExecutorService(),
+                                  1)
+                              : ParallelGzipOutputStream.bgzf(
+                                  outputStream, 6, MoreExecutors.newDirectExecutorService(), 1),
+                      archiveBytesWritten -> {}))
+              .blockLast();
+
+      try {
+        val archiveBytes = Files.readAllBytes(path);
+
+        // every third pair, the requested order does not matter
+        val requestedObjectIds = new HashSet<String>();
+        for (int i = NUM_PAIRS - 1; i >= 0; i -= 3) {
+          requestedObjectIds.add(pairs.get(i).getAnalysisDocumentRow().getObjectId());
+        }
+        requestedObjectIds.add("not-in-the-archive");
+
+        val offsetIndexPath = Files.createTempFile("offset-index", ".offsets");
+        ArchiveOffsetIndexUtils.decompressOffsetIndex(
+            Paths.get(
+                FileBundle.DOWNLOAD_DIR,
+                FileBundle.archiveOffsetIndexFilenameFromArchiveId(archive.getId())),
+            offsetIndexPath);
+        val offsetIndex = ArchiveOffsetIndexUtils.loadOffsetIndex(offsetIndexPath);
+        val entries = offsetIndex.entriesOf(requestedObjectIds);
+
+        assertArrayEquals(TsvUtils.getHeader(), offsetIndex.getTsvHeader());
+        assertEquals(NUM_PAIRS, offsetIndex.getEntries().size());
+        assertEquals(requestedObjectIds.size() - 1, entries.size());
+
+        // ranged reads of the archive, as the genomes are served from the archive object
+        val molecularData = new ArrayList<ByteBuffer>();
+        for (val group : coalesceEntries(entries, 1024, 16 * 1024)) {
+          val byteRange = groupByteRange(group);
+          molecularData.addAll(
+              sliceMolecularData(
+                  group,
+                  Arrays.copyOfRange(
+                      archiveBytes,
+                      byteRange.getFirst().intValue(),
+                      byteRange.getLast().intValue() + 1)));
+        }
+
+        int entry = 0;
+        try (val offsetIndexChannel = FileChannel.open(offsetIndexPath, StandardOpenOption.READ)) {
+          for (int i = 0; i < NUM_PAIRS; i++) {
+            val pair = pairs.get(i);
+            if (!requestedObjectIds.contains(pair.getAnalysisDocumentRow().getObjectId())) {
+              continue;
+            }
+
+            val tsvRow = new ByteArrayOutputStream();
+            writeTsvRow(pair, tsvRow);
+
+            assertEquals(
+                pair.getAnalysisDocumentRow().getObjectId(), entries.get(entry).getObjectId());
+            assertEquals(ByteBuffer.wrap(pair.getMolecularData()), molecularData.get(entry));
+            assertEquals(
+                ByteBuffer.wrap(tsvRow.toByteArray()),
+                ArchiveOffsetIndexUtils.readTsvRow(offsetIndexChannel, entries.get(entry)));
+            entry++;
+          }
+        }
+
+        Files.delete(offsetIndexPath);
+      } finally {
+        deleteFileBundleForArchive.accept(archive);
+      }
+    }
+  }
+
+  @SneakyThrows
+  private static ZstdArchiveOutputStream zstdOutputStream(OutputStream outputStream) {
+    return new ZstdArchiveOutputStream(outputStream, 3, 2);
+  }
+
+  @SneakyThrows
+  private static byte[] gunzip(byte[] compressed) {
+    try (val gzipInputStream = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      return IOUtils.toByteArray(gzipInputStream);
+    }
+  }
+
+  @SneakyThrows
+  private static void writeTsvRow(
+      AnalysisDocumentMolecularDataPair pair, ByteArrayOutputStream outputStream) {
+    new TsvRowEncoder().writeRow(pair.getAnalysisDocumentRow(), outputStream);
+  }
+
+  @SneakyThrows
+  private static AnalysisDocumentMolecularDataPair createPair(Integer index) {
+    val analysisDocumentRow =
+        AnalysisDocumentRowDecoder.decode(
+            objectMapper
+                .getFactory()
+                .createParser(
+                    String.format(
+                        "{\"object_id\":\"%s\",\"study_id\":\"STUDY-%d\",\"analysis\":{"
+                            + "\"updatedAt\":\"1637351239000\","
+                            + "\"samples\":[{\"donor\":{\"submitterDonorId\":\"donor-%d\"}}],"
+                            + "\"sequence_analysis\":{\"metrics\":{\"depth_of_coverage\":%d}}}}",
+                        UUID.randomUUID(), index % 7, index, index)));
+
+    return new AnalysisDocumentMolecularDataPair(
+        analysisDocumentRow, fastaForIndex(index).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String fastaForIndex(Integer index) throws IOException {
+    return String.format(">hCoV-19/test/%d\n%s\n", index, "ACGTN".repeat(index % 97 + 1));
+  }
+}
@@ -0,0 +1,57 @@
+package org.cancogenvirusseq.singularity.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Optional;
+import org.cancogenvirusseq.singularity.components.model.ByteRange;
+import org.cancogenvirusseq.singularity.components.utils.HttpHeaderUtils;
+import org.junit.jupiter.api.Test;
+
+public class HttpHeaderUtilsTests {
+
+  @Test
+  public void testParseSingleByteRange() {
+    assertEquals(
+        Optional.of(ByteRange.fromFirstToLast(0L, 499L)),
+        HttpHeaderUtils.parseSingleByteRange("bytes=0-499"));
+    assertEquals(
+        Optional.of(ByteRange.fromFirst(1000L)),
+        HttpHeaderUtils.parseSingleByteRange("bytes=1000-"));
+    assertEquals(
+        Optional.of(ByteRange.suffix(500L)), HttpHeaderUtils.parseSingleByteRange("bytes=-500"));
+
+    assertEquals("bytes=0-499", ByteRange.fromFirstToLast(0L, 499L).toRangeHeaderValue());
+    assertEquals("bytes=1000-", ByteRange.fromFirst(1000L).toRangeHeaderValue());
+    assertEquals("bytes=-500", ByteRange.suffix(500L).toRangeHeaderValue());
+
+    assertTrue(ByteRange.fromFirst(0L).isFromStart());
+    assertFalse(ByteRange.fromFirst(1000L).isFromStart());
+    assertFalse(ByteRange.suffix(500L).isFromStart());
+  }
+
+  @Test
+  public void testParseSingleByteRangeIgnoresUnsupportedRanges() {
+    assertEquals(Optional.empty(), HttpHeaderUtils.parseSingleByteRange(null));
+    assertEquals(Optional.empty(), HttpHeaderUtils.parseSingleByteRange("bytes=0-99,200-299"));
+    assertEquals(Optional.empty(), HttpHeaderUtils.parseSingleByteRange("bytes=500-100"));
+    assertEquals(Optional.empty(), HttpHeaderUtils.parseSingleByteRange("bytes=-0"));
+    assertEquals(Optional.empty(), HttpHeaderUtils.parseSingleByteRange("bytes=-"));
+    assertEquals(Optional.empty(), HttpHeaderUtils.parseSingleByteRange("items=0-10"));
+  }
+
+  @Test
+  public void testUnsatisfiedContentRange() {
+    assertEquals("bytes */1234", HttpHeaderUtils.unsatisfiedContentRange(1234L));
+  }
+
+  @Test
+  public void testEtagMatches() {
+    assertTrue(HttpHeaderUtils.etagMatches("\"abc\"", "\"abc\""));
+    assertTrue(HttpHeaderUtils.etagMatches("\"xyz\", W/\"abc\"", "\"abc\""));
+    assertTrue(HttpHeaderUtils.etagMatches("*", "\"abc\""));
+    assertFalse(HttpHeaderUtils.etagMatches("\"xyz\"", "\"abc\""));
+    assertFalse(HttpHeaderUtils.etagMatches(null, "\"abc\""));
+  }
+}
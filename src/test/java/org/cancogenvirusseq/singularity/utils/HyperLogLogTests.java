@@ -0,0 +1,36 @@
+package org.cancogenvirusseq.singularity.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.UUID;
+import java.util.stream.IntStream;
+import lombok.val;
+import org.cancogenvirusseq.singularity.components.utils.HyperLogLog;
+import org.junit.jupiter.api.Test;
+
+public class HyperLogLogTests {
+  private static final double RELATIVE_ERROR = 0.01;
+
+  @Test
+  public void testCardinalityIsWithinErrorBound() {
+    val hyperLogLog = HyperLogLog.withRelativeError(RELATIVE_ERROR);
+    val distinct = 200_000;
+
+    IntStream.range(0, distinct).forEach(i -> hyperLogLog.add(UUID.randomUUID().toString()));
+
+    // 4 standard errors
+    val error = Math.abs(hyperLogLog.cardinality() - distinct) / (double) distinct;
+    assertTrue(error < 4 * RELATIVE_ERROR, "relative error was " + error);
+  }
+
+  @Test
+  public void testDuplicatesAreCountedOnce() {
+    val hyperLogLog = HyperLogLog.withRelativeError(RELATIVE_ERROR);
+
+    IntStream.range(0, 10_000).forEach(i -> hyperLogLog.add("donor-" + (i % 100)));
+
+    // small cardinalities are linear counted which is close to exact
+    assertEquals(100, hyperLogLog.cardinality(), 2);
+  }
+}
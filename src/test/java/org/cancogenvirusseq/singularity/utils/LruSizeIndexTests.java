@@ -0,0 +1,53 @@
+package org.cancogenvirusseq.singularity.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import lombok.val;
+import org.cancogenvirusseq.singularity.components.utils.LruSizeIndex;
+import org.junit.jupiter.api.Test;
+
+public class LruSizeIndexTests {
+
+  @Test
+  public void testEvictsLeastRecentlyUsedOverCapacity() {
+    val index = new LruSizeIndex(100);
+
+    assertTrue(index.put("a", 40).isEmpty());
+    assertTrue(index.put("b", 40).isEmpty());
+    // reading a makes b the least recently used
+    assertTrue(index.touch("a"));
+
+    assertEquals(List.of("b"), index.put("c", 40));
+    assertEquals(80, index.getTotalSize());
+    assertFalse(index.touch("b"));
+    assertTrue(index.touch("a"));
+    assertTrue(index.touch("c"));
+  }
+
+  @Test
+  public void testReplacingEntryUpdatesTotalSize() {
+    val index = new LruSizeIndex(100);
+
+    index.put("a", 40);
+    index.put("a", 60);
+    assertEquals(60, index.getTotalSize());
+    assertEquals(1, index.size());
+
+    index.remove("a");
+    assertEquals(0, index.getTotalSize());
+    assertFalse(index.touch("a"));
+  }
+
+  @Test
+  public void testEntryLargerThanCapacityIsEvicted() {
+    val index = new LruSizeIndex(100);
+
+    index.put("a", 40);
+    assertEquals(List.of("a", "b"), index.put("b", 150));
+    assertEquals(0, index.getTotalSize());
+    assertEquals(0, index.size());
+  }
+}
@@ -0,0 +1,127 @@
+package org.cancogenvirusseq.singularity.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.google.common.io.BaseEncoding;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.apache.commons.compress.utils.IOUtils;
+import org.cancogenvirusseq.singularity.components.utils.ParallelGzipOutputStream;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class ParallelGzipOutputStreamTests {
+  private static ExecutorService executorService;
+
+  @BeforeAll
+  public static void setup() {
+    executorService = Executors.newFixedThreadPool(4);
+  }
+
+  @AfterAll
+  public static void teardown() {
+    executorService.shutdownNow();
+  }
+
+  @Test
+  @SneakyThrows
+  public void testMultiMemberOutputIsStandardGzip() {
+    val random = new Random(42);
+    val input = new byte[1_000_000];
+    for (int i = 0; i < input.length; i++) {
+      input[i] = (byte) "ACGTN\n".charAt(random.nextInt(6));
+    }
+
+    // uneven write sizes so writes straddle block boundaries
+    val compressed = new ByteArrayOutputStream();
+    try (val gzipOutputStream =
+        new ParallelGzipOutputStream(compressed, 6, 64 * 1024, executorService, 2)) {
+      for (int offset = 0; offset < input.length; ) {
+        int length = Math.min(random.nextInt(10_000), input.length - offset);
+        gzipOutputStream.write(input, offset, length);
+        offset += length;
+      }
+    }
+
+    assertArrayEquals(input, decompress(compressed.toByteArray()));
+  }
+
+  @Test
+  @SneakyThrows
+  public void testEmptyInputIsStandardGzip() {
+    val compressed = new ByteArrayOutputStream();
+    new ParallelGzipOutputStream(compressed, 6, 1024, executorService, 2).close();
+
+    assertArrayEquals(new byte[0], decompress(compressed.toByteArray()));
+  }
+
+  @Test
+  @SneakyThrows
+  public void testBgzfBlocksAreIndexed() {
+    val random = new Random(42);
+    val input = new byte[1_000_000];
+    for (int i = 0; i < input.length; i++) {
+      input[i] = (byte) "ACGTN\n".charAt(random.nextInt(6));
+    }
+
+    val compressed = new ByteArrayOutputStream();
+    val bgzfOutputStream = ParallelGzipOutputStream.bgzf(compressed, 6, executorService, 8);
+    bgzfOutputStream.write(input);
+    bgzfOutputStream.close();
+
+    val bytes = compressed.toByteArray();
+    assertArrayEquals(input, decompress(bytes));
+    assertEquals(bytes.length, bgzfOutputStream.getCompressedBytesWritten());
+
+    // ends with the bgzf end of file block
+    val eofBlock =
+        BaseEncoding.base16()
+            .lowerCase()
+            .decode("1f8b08040000000000ff0600424302001b0003000000000000000000");
+    assertArrayEquals(
+        eofBlock, Arrays.copyOfRange(bytes, bytes.length - eofBlock.length, bytes.length));
+
+    // every indexed block starts with a bgzf header and decompresses to the input at its offset
+    val gziIndex = ByteBuffer.wrap(bgzfOutputStream.getGziIndex()).order(ByteOrder.LITTLE_ENDIAN);
+    val numBlocks =
+        (input.length + ParallelGzipOutputStream.BGZF_BLOCK_SIZE - 1)
+            / ParallelGzipOutputStream.BGZF_BLOCK_SIZE;
+    assertEquals(numBlocks - 1, gziIndex.getLong());
+    while (gziIndex.hasRemaining()) {
+      val compressedOffset = (int) gziIndex.getLong();
+      val uncompressedOffset = (int) gziIndex.getLong();
+      assertEquals(4, bytes[compressedOffset + 3]);
+      assertEquals('B', bytes[compressedOffset + 12]);
+      assertEquals('C', bytes[compressedOffset + 13]);
+
+      val blockSize =
+          (ByteBuffer.wrap(bytes, compressedOffset + 16, 2)
+                      .order(ByteOrder.LITTLE_ENDIAN)
+                      .getShort()
+                  & 0xffff)
+              + 1;
+      val block =
+          decompress(Arrays.copyOfRange(bytes, compressedOffset, compressedOffset + blockSize));
+      assertArrayEquals(
+          Arrays.copyOfRange(input, uncompressedOffset, uncompressedOffset + block.length), block);
+    }
+  }
+
+  @SneakyThrows
+  private static byte[] decompress(byte[] compressed) {
+    try (val gzipInputStream = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      return IOUtils.toByteArray(gzipInputStream);
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package org.cancogenvirusseq.singularity.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.UUID;
+import lombok.val;
+import org.cancogenvirusseq.singularity.components.utils.QueryBuilderUtils;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.indices.TermsLookup;
+import org.junit.jupiter.api.Test;
+
+public class QueryBuilderUtilsTests {
+
+  @Test
+  public void testTermsLookupQueryRoundTrip() {
+    val query =
+        QueryBuilders.termsLookupQuery(
+            "_id", new TermsLookup("arranger-sets", UUID.randomUUID().toString(), "ids"));
+
+    val json = QueryBuilderUtils.queryBuilderToJson(query);
+
+    assertEquals(query, QueryBuilderUtils.queryBuilderFromJson(json));
+  }
+
+  @Test
+  public void testRangeQueryRoundTrip() {
+    val query = QueryBuilders.rangeQuery("analysis.updatedAt").gte(1000L).to(2000L);
+    val json = QueryBuilderUtils.queryBuilderToJson(query);
+
+    // bounds are read back as the narrowest number type, the serialized query is unchanged
+    assertEquals(
+        json, QueryBuilderUtils.queryBuilderToJson(QueryBuilderUtils.queryBuilderFromJson(json)));
+  }
+}
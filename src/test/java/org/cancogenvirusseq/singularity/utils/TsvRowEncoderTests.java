@@ -0,0 +1,53 @@
+package org.cancogenvirusseq.singularity.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.apache.commons.compress.utils.IOUtils;
+import org.cancogenvirusseq.singularity.components.utils.AnalysisDocumentRowDecoder;
+import org.cancogenvirusseq.singularity.components.utils.TsvRowEncoder;
+import org.cancogenvirusseq.singularity.components.utils.TsvUtils;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class TsvRowEncoderTests {
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  // tsv-golden.tsv was produced from tsv-golden-documents.jsonl by the string based TsvUtils rows
+  private static final String GOLDEN_DOCUMENTS = "tsv-golden-documents.jsonl";
+  private static final String GOLDEN_TSV = "tsv-golden.tsv";
+
+  @BeforeAll
+  public static void setup() {
+    new TsvUtils().setListSeparator(";");
+  }
+
+  @Test
+  @SneakyThrows
+  public void testEncodedTsvMatchesGoldenFile() {
+    val tsvRowEncoder = new TsvRowEncoder();
+    val tsv = new ByteArrayOutputStream();
+    tsv.write(TsvUtils.getHeader());
+
+    try (val reader =
+        new BufferedReader(
+            new InputStreamReader(
+                getClass().getResourceAsStream(GOLDEN_DOCUMENTS), StandardCharsets.UTF_8))) {
+      String document;
+      while ((document = reader.readLine()) != null) {
+        tsvRowEncoder.writeRow(
+            AnalysisDocumentRowDecoder.decode(objectMapper.getFactory().createParser(document)),
+            tsv);
+      }
+    }
+
+    assertArrayEquals(
+        IOUtils.toByteArray(getClass().getResourceAsStream(GOLDEN_TSV)), tsv.toByteArray());
+  }
+}